@@ -1,12 +1,15 @@
 package jbash;
 
 import jbash.environment.JKernel;
+import jbash.filesystem.FileSystemAPI;
 
 import java.util.List;
 
 public class Main {
     public static void main(String[] args) {
+        FileSystemAPI.getInstance().mount();
         JKernel kernel = JKernel.getInstance();
         kernel.exec("jbash", List.of());
+        FileSystemAPI.getInstance().unmount();
     }
 }
\ No newline at end of file
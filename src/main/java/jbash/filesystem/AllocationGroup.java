@@ -0,0 +1,213 @@
+package jbash.filesystem;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * One allocation group of a TBFF disk: a slice of the inode table and a slice of the data region, with its own
+ * part of each bitmap and its own free counters.
+ * Both slices start on a 64-bit boundary, so no bitmap word is shared with another group.
+ * Not thread safe, the owning TBFF only touches it while holding its own lock.
+ * <p>
+ * The counters are loaded from the group's descriptor when the disk is opened. The bitmaps are only read the first
+ * time the group allocates or frees something. Callers write changed bitmap words and the descriptor back themselves.
+ */
+class AllocationGroup {
+    /** Reads a group's bitmap slices from disk. */
+    interface Loader {
+        Bitmap inodes(AllocationGroup group);
+        Bitmap blocks(AllocationGroup group);
+    }
+
+    /** Bytes one descriptor takes up on disk. */
+    static final int DESCRIPTOR_BYTES = 24;
+
+    final int index;
+    final int firstInode;
+    final int numInodes;
+    final long firstBlock;
+    final int numBlocks;
+
+    private final Loader loader;
+    private Bitmap inodes;          // null until loaded
+    private BlockAllocator blocks;  // null until loaded
+    private int freeInodes;
+    private long freeBlocks;        // only used until the allocator is loaded, which keeps its own count
+    private int directories;
+    private int inodeHint;
+    private int blockHint;
+
+    /**
+     * @param descriptor The group's on-disk descriptor, see encodeDescriptor().
+     */
+    AllocationGroup(int index, int firstInode, int numInodes, long firstBlock, int numBlocks, byte[] descriptor, Loader loader) {
+        this.index = index;
+        this.firstInode = firstInode;
+        this.numInodes = numInodes;
+        this.firstBlock = firstBlock;
+        this.numBlocks = numBlocks;
+        this.loader = loader;
+        ByteBuffer buf = ByteBuffer.wrap(descriptor);
+        freeInodes = buf.getInt();
+        freeBlocks = buf.getInt();
+        directories = buf.getInt();
+        inodeHint = buf.getInt();
+        blockHint = buf.getInt();
+    }
+
+    /**
+     * Descriptor of a freshly formatted group.
+     * @param freeBlocks Number of free blocks, which is less than the group's size if some are reserved.
+     */
+    static byte[] newDescriptor(int numInodes, int freeBlocks) {
+        return ByteBuffer.allocate(DESCRIPTOR_BYTES).putInt(numInodes).putInt(freeBlocks).array();
+    }
+
+    /**
+     * Packs the counters and search hints: free inodes, free blocks, directories, inode hint, block hint, 4 spare bytes.
+     */
+    byte[] encodeDescriptor() {
+        ByteBuffer buf = ByteBuffer.allocate(DESCRIPTOR_BYTES);
+        buf.putInt(freeInodes).putInt((int) getFreeBlocks()).putInt(directories);
+        buf.putInt((inodes == null) ? inodeHint : inodes.getHint());
+        buf.putInt((blocks == null) ? blockHint : (int) blocks.getHint());
+        return buf.array();
+    }
+
+    /**
+     * The same group resized to <code>numBlocks</code> blocks, for when the disk grows. The added blocks start out free.
+     * The new group loads its bitmaps from disk again, so this one's changes must all have been written back.
+     */
+    AllocationGroup resized(int numBlocks) {
+        ByteBuffer descriptor = ByteBuffer.wrap(encodeDescriptor());
+        descriptor.putInt(Integer.BYTES, (int) (getFreeBlocks() + numBlocks - this.numBlocks));
+        return new AllocationGroup(index, firstInode, numInodes, firstBlock, numBlocks, descriptor.array(), loader);
+    }
+
+    int getFreeInodes() {
+        return freeInodes;
+    }
+
+    long getFreeBlocks() {
+        return (blocks == null) ? freeBlocks : blocks.getFreeBlocks();
+    }
+
+    int getDirectories() {
+        return directories;
+    }
+
+    boolean hasInode(int inodeNum) {
+        return inodeNum >= firstInode && inodeNum < firstInode + numInodes;
+    }
+
+    /**
+     * Claims a free inode in this group.
+     * @return Number of the claimed inode, or -1 if the group has none left.
+     */
+    int allocateInode(boolean directory) {
+        if (freeInodes == 0) return -1;
+        int local = inodes().allocate();
+        if (local == -1) return -1;
+        freeInodes--;
+        if (directory) directories++;
+        return firstInode + local;
+    }
+
+    /**
+     * Releases inode <code>inodeNum</code>.
+     * @return false if it was already free.
+     */
+    boolean freeInode(int inodeNum, boolean directory) {
+        int local = inodeNum - firstInode;
+        if (!inodes().get(local)) return false;
+        inodes().clear(local);
+        freeInodes++;
+        if (directory) directories--;
+        return true;
+    }
+
+    boolean isInodeUsed(int inodeNum) {
+        return inodes().get(inodeNum - firstInode);
+    }
+
+    /** @return A free inode in this group without claiming it, or -1. */
+    int findFreeInode() {
+        int local = inodes().findClear();
+        return (local == -1) ? -1 : firstInode + local;
+    }
+
+    /** The bitmap word holding <code>inodeNum</code>'s bit. */
+    long inodeWordOf(int inodeNum) {
+        return inodes().wordOf(inodeNum - firstInode);
+    }
+
+    /** Numbers of every inode in use in this group, in order. */
+    List<Integer> usedInodes() {
+        List<Integer> used = new ArrayList<>();
+        Bitmap bitmap = inodes();
+        for (int i = bitmap.nextSet(0); i < numInodes; i = bitmap.nextSet(i + 1)) used.add(firstInode + i);
+        return used;
+    }
+
+    /**
+     * Allocates up to <code>count</code> blocks from this group, see {@link BlockAllocator#allocate(long, long)}.
+     * @param goal Preferred first block as a disk-wide block number, or -1.
+     * @return The extents allocated, with disk-wide block numbers. Empty if the group doesn't have <code>count</code> free.
+     */
+    List<Extent> allocateBlocks(long count, long goal) {
+        long localGoal = (goal >= firstBlock && goal < firstBlock + numBlocks) ? goal - firstBlock : -1;
+        List<Extent> extents = new ArrayList<>();
+        for (Extent extent : blocks().allocate(count, localGoal)) extents.add(new Extent(extent.start() + firstBlock, extent.length()));
+        return extents;
+    }
+
+    /** Frees <code>extent</code>, which must lie inside this group. */
+    void freeBlocks(Extent extent) {
+        blocks().free(new Extent(extent.start() - firstBlock, extent.length()));
+    }
+
+    /** Marks <code>extent</code> as in use. It must lie inside this group and be free. */
+    void reserveBlocks(Extent extent) {
+        blocks().reserve(new Extent(extent.start() - firstBlock, extent.length()));
+    }
+
+    boolean isBlockUsed(long blockNo) {
+        return blocks().getBitmap().get((int) (blockNo - firstBlock));
+    }
+
+    /** Bitmap words covering <code>extent</code>, ready to be written at the words' disk-wide position. */
+    byte[] blockWordsCovering(Extent extent) {
+        return blocks().getBitmap().wordsCovering((int) (extent.start() - firstBlock), (int) (extent.end() - firstBlock));
+    }
+
+    /** All of this group's block bitmap words. */
+    byte[] blockWords() {
+        return blocks().getBitmap().wordsCovering(0, numBlocks);
+    }
+
+    /**
+     * Recounts the free inodes from the bitmap. Only for consistency checks.
+     * @param directories Number of directories found in the group.
+     */
+    void recount(int directories) {
+        freeInodes = numInodes - inodes().cardinality();
+        this.directories = directories;
+    }
+
+    private Bitmap inodes() {
+        if (inodes == null) {
+            inodes = loader.inodes(this);
+            inodes.setHint(inodeHint);
+        }
+        return inodes;
+    }
+
+    private BlockAllocator blocks() {
+        if (blocks == null) {
+            blocks = new BlockAllocator(loader.blocks(this));
+            blocks.setHint(blockHint);
+        }
+        return blocks;
+    }
+}
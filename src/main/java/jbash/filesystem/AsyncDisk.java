@@ -0,0 +1,90 @@
+package jbash.filesystem;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.CompletionHandler;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Asynchronous positional I/O on an image file, built on AsynchronousFileChannel.
+ * Many requests can be in flight at once, up to <code>queueDepth</code>. Past that, submitting blocks until one
+ * finishes, so a huge flush can't queue up unbounded amounts of memory.
+ */
+class AsyncDisk {
+    private final AsynchronousFileChannel channel;
+    private final Semaphore slots;
+    private final int queueDepth;
+
+    /**
+     * @param path Image file, which must already exist.
+     * @param queueDepth Maximum number of requests in flight.
+     */
+    AsyncDisk(Path path, int queueDepth) throws IOException {
+        this.channel = AsynchronousFileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        this.queueDepth = Math.max(1, queueDepth);
+        this.slots = new Semaphore(this.queueDepth);
+    }
+
+    /**
+     * Starts writing <code>len</code> bytes of <code>src</code> at offset <code>pos</code>.
+     * <code>src</code> must not change until the returned future completes.
+     */
+    CompletableFuture<Void> write(long pos, byte[] src, int off, int len) {
+        return submit(pos, ByteBuffer.wrap(src, off, len), true);
+    }
+
+    /**
+     * Starts reading <code>len</code> bytes at offset <code>pos</code> into <code>dst</code>.
+     * Anything past the end of the file reads as zeros.
+     */
+    CompletableFuture<Void> read(long pos, byte[] dst, int off, int len) {
+        return submit(pos, ByteBuffer.wrap(dst, off, len), false);
+    }
+
+    void force() throws IOException {
+        channel.force(false);
+    }
+
+    /**
+     * Waits for everything in flight, then closes the channel.
+     */
+    void close() throws IOException {
+        slots.acquireUninterruptibly(queueDepth);
+        channel.close();
+    }
+
+    private CompletableFuture<Void> submit(long pos, ByteBuffer buf, boolean write) {
+        slots.acquireUninterruptibly();
+        CompletableFuture<Void> done = new CompletableFuture<>();
+        int start = buf.position();
+        // Channels may transfer fewer bytes than asked, so keep going from where the last call stopped
+        CompletionHandler<Integer, Void> handler = new CompletionHandler<>() {
+            public void completed(Integer transferred, Void unused) {
+                if (transferred < 0) buf.position(buf.limit());  // read past the end, the rest stays zero
+                if (!buf.hasRemaining()) {
+                    slots.release();
+                    done.complete(null);
+                } else if (write) {
+                    channel.write(buf, pos + (buf.position() - start), null, this);
+                } else {
+                    channel.read(buf, pos + (buf.position() - start), null, this);
+                }
+            }
+            public void failed(Throwable e, Void unused) {
+                slots.release();
+                done.completeExceptionally(e);
+            }
+        };
+        try {
+            if (write) channel.write(buf, pos, null, handler);
+            else channel.read(buf, pos, null, handler);
+        } catch (RuntimeException e) {
+            handler.failed(e, null);
+        }
+        return done;
+    }
+}
@@ -0,0 +1,17 @@
+package jbash.filesystem;
+
+/**
+ * How a TBFF disk keeps the access times of its inodes up to date, see TBFFOptions.atime().
+ */
+public enum AtimeMode {
+    /** Every read sets the access time, and the inode is written back like any other change. */
+    STRICT,
+    /**
+     * A read only sets the access time if it's older than the last modification or a day old. The new time is kept
+     * in memory and written along with the inode's next real change, when it leaves the inode cache, on sync and
+     * unmount, or at the latest once per TBFF.ATIME_FLUSH_MS. Reading alone never costs a metadata write.
+     */
+    RELATIME,
+    /** Access times are set when an inode is created and never again. */
+    NOATIME
+}
@@ -0,0 +1,182 @@
+package jbash.filesystem;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Creates a whole list of directories and files in one go, for populating a disk with a big tree.
+ * Get one from FileSystemAPI.newBatch(), add the entries, then commit():
+ * <pre>
+ *   api.newBatch().directory("/home/user").directory("/home/user/docs").file("/home/user/docs/a.txt", "hi").commit();
+ * </pre>
+ * Each entry is created exactly like createDirectory(path) or createFile() would, and fails in the same cases
+ * (missing parent, name taken, read-only), which only skips that entry. A parent has to come before the entries
+ * in it. The difference is the cost: every parent path is resolved once for the whole batch, and on a mounted disk
+ * the entries of each directory are created together, see TBFF.createEntries(). The new entries aren't loaded into
+ * memory; like everything else on the disk they're loaded when a path reaches them.
+ * <p>
+ * Entries are matched to the batch's own directories by path, after dropping empty and <code>.</code> parts, so
+ * refer to a new directory the same way it was added: <code>docs</code> and <code>/home/user/docs</code> aren't
+ * the same path here, and <code>..</code> isn't resolved.
+ */
+public class Batch {
+    private final FileSystemAPI api;
+    private final List<String> paths = new ArrayList<>();
+    private final List<String> contents = new ArrayList<>();  // null for directories
+
+    /**
+     * A directory that gets new entries: either one that already exists, or one the batch creates, which only
+     * gets its <code>inodePtr</code> once its own parent's entries are created.
+     */
+    private static class Target {
+        Directory existing;
+        Mount mount;
+        long inodePtr = -1;
+        final Set<String> names = new HashSet<>();  // names added by the batch, plus all of an in-memory directory's
+        final List<String> newNames = new ArrayList<>();
+        final List<String> newContents = new ArrayList<>();
+        final List<Target> newTargets = new ArrayList<>();  // the Target of each new directory, null for files
+    }
+
+    Batch(FileSystemAPI api) {
+        this.api = api;
+    }
+
+    /**
+     * Adds a directory to create.
+     * @param path Absolute or relative path of the new directory.
+     * @return This batch.
+     */
+    public Batch directory(String path) {
+        paths.add(path);
+        contents.add(null);
+        return this;
+    }
+
+    /**
+     * Adds an empty file to create.
+     * @param path Absolute or relative path of the new file.
+     * @return This batch.
+     */
+    public Batch file(String path) {
+        return file(path, "");
+    }
+
+    /**
+     * Adds a file to create.
+     * @param path Absolute or relative path of the new file.
+     * @param contents Contents of the new file.
+     * @return This batch.
+     */
+    public Batch file(String path, String contents) {
+        paths.add(path);
+        this.contents.add(contents);
+        return this;
+    }
+
+    /**
+     * Creates every entry added so far, in order. The batch is empty again afterwards.
+     * Throws a runtime exception if the disk runs out of inodes or space. Directories whose entries were already
+     * created by then keep them.
+     * @return Number of entries created. Entries that failed are skipped, see the class comment.
+     */
+    public int commit() {
+        Map<String, Target> targets = new HashMap<>();  // by path: parents resolved so far, and the new directories
+        List<Target> used = new ArrayList<>();          // targets that got entries, in the order they first did
+        int created = 0;
+        for (int i = 0; i < paths.size(); i++) {
+            String path = normalise(paths.get(i));
+            int lastSlash = path.lastIndexOf('/');
+            String name = path.substring(lastSlash + 1);
+            if (name.isEmpty()) continue;
+            String parentPath = (lastSlash == -1) ? "." : (lastSlash == 0) ? "/" : path.substring(0, lastSlash);
+
+            if (!targets.containsKey(parentPath)) targets.put(parentPath, resolve(parentPath));
+            Target parent = targets.get(parentPath);
+            if (parent == null || isTaken(parent, name)) continue;
+
+            Target child = (contents.get(i) == null) ? new Target() : null;
+            if (child != null) {
+                child.mount = parent.mount;
+                targets.put(path, child);
+            }
+            if (parent.newNames.isEmpty()) used.add(parent);
+            parent.names.add(name);
+            parent.newNames.add(name);
+            parent.newContents.add(contents.get(i));
+            parent.newTargets.add(child);
+            created++;
+        }
+        for (Target target : used) create(target);
+        paths.clear();
+        contents.clear();
+        return created;
+    }
+
+    /** Drops empty and <code>.</code> parts of <code>path</code>, and any trailing slashes. */
+    private static String normalise(String path) {
+        List<String> parts = new ArrayList<>();
+        for (String part : path.split("/")) {
+            if (!part.isEmpty() && !part.equals(".")) parts.add(part);
+        }
+        return (path.startsWith("/") ? "/" : "") + String.join("/", parts);
+    }
+
+    /** Looks up an existing directory. Null if there's none or it can't be written to. */
+    private Target resolve(String path) {
+        Directory dir = api.getFileSystemDirectory(path).orElse(null);
+        if (dir == null || api.isReadOnly(dir)) return null;
+        Target target = new Target();
+        target.existing = dir;
+        target.mount = dir.mount;
+        if (dir.mount == null) {
+            for (FileSystemObject child : dir.getChildren()) target.names.add(child.getName());
+        }
+        return target;
+    }
+
+    private boolean isTaken(Target parent, String name) {
+        if (parent.names.contains(name)) return true;
+        // A mounted directory may have entries that aren't loaded, so ask it. New directories start out empty.
+        return parent.existing != null && parent.mount != null && parent.existing.findChild(name).isPresent();
+    }
+
+    /** Creates <code>target</code>'s new entries, then passes each new directory its inode. */
+    private void create(Target target) {
+        if (target.mount == null) {
+            for (int i = 0; i < target.newNames.size(); i++) {
+                String name = target.newNames.get(i);
+                FileSystemObject child = (target.newTargets.get(i) != null)
+                        ? new Directory(name, target.existing)
+                        : new File(name, target.existing, target.newContents.get(i));
+                target.existing.addChild(child);
+                if (child instanceof Directory dir) target.newTargets.get(i).existing = dir;
+            }
+            return;
+        }
+
+        Volume volume = target.mount.volume;
+        List<Inode> inodes = new ArrayList<>();
+        List<byte[]> data = new ArrayList<>();
+        for (int i = 0; i < target.newNames.size(); i++) {
+            if (target.newTargets.get(i) != null) {
+                inodes.add(new Inode(FileType.Directory, Inode.parsePerms("rwxr-xr-x")));
+                data.add(null);
+            } else {
+                inodes.add(new Inode(FileType.File));
+                data.add(target.newContents.get(i).getBytes(StandardCharsets.UTF_8));
+            }
+        }
+        Inode dir = (target.existing != null) ? target.existing.inode() : volume.readInodeFromDisk(target.inodePtr);
+        long[] inodePtrs = volume.createEntries(dir, target.newNames, inodes, data);
+        for (int i = 0; i < inodePtrs.length; i++) {
+            if (target.newTargets.get(i) != null) target.newTargets.get(i).inodePtr = inodePtrs[i];
+        }
+        if (target.existing != null) target.existing.addedOnDisk();
+    }
+}
@@ -0,0 +1,154 @@
+package jbash.filesystem;
+
+import java.nio.ByteBuffer;
+
+/**
+ * In-memory copy of an on-disk allocation bitmap, one bit per object (set = in use).
+ * On disk the bitmap is an array of big-endian longs, bit <code>i</code> living in word <code>i / 64</code>.
+ * Searches go a whole word at a time and start from a rotating hint, so allocation skips
+ * full regions 64 objects at a time instead of probing each slot.
+ */
+class Bitmap {
+    private final long[] words;
+    private final int size;
+    private int hint = 0;  // word to start the next search from
+
+    /**
+     * Creates an empty bitmap of <code>size</code> bits.
+     */
+    Bitmap(int size) {
+        this.size = size;
+        this.words = new long[wordsFor(size)];
+    }
+
+    /**
+     * Creates a bitmap of <code>size</code> bits from its on-disk bytes.
+     * @param raw At least <code>bytesFor(size)</code> bytes, as written to disk.
+     */
+    Bitmap(int size, byte[] raw) {
+        this(size);
+        ByteBuffer buf = ByteBuffer.wrap(raw);
+        for (int i = 0; i < words.length; i++) words[i] = buf.getLong();
+    }
+
+    /** Number of longs needed to hold <code>size</code> bits. */
+    static int wordsFor(int size) {
+        return (size + 63) / 64;
+    }
+
+    /** Number of bytes the bitmap takes up on disk. */
+    static int bytesFor(int size) {
+        return wordsFor(size) * Long.BYTES;
+    }
+
+    int size() {
+        return size;
+    }
+
+    boolean get(int bit) {
+        return (words[bit >>> 6] & (1L << bit)) != 0;
+    }
+
+    void set(int bit) {
+        words[bit >>> 6] |= 1L << bit;
+    }
+
+    void clear(int bit) {
+        words[bit >>> 6] &= ~(1L << bit);
+    }
+
+    /** Sets bits <code>from</code> (inclusive) to <code>to</code> (exclusive). */
+    void setRange(int from, int to) {
+        for (int bit = from; bit < to; bit++) set(bit);
+    }
+
+    /** Clears bits <code>from</code> (inclusive) to <code>to</code> (exclusive). */
+    void clearRange(int from, int to) {
+        for (int bit = from; bit < to; bit++) clear(bit);
+    }
+
+    /** Returns the word holding <code>bit</code>, for writing just that word back to disk. */
+    long wordOf(int bit) {
+        return words[bit >>> 6];
+    }
+
+    /**
+     * Serialises the words covering bits <code>from</code> to <code>to</code> (exclusive) in their on-disk form.
+     * The result starts at word <code>from / 64</code>.
+     */
+    byte[] wordsCovering(int from, int to) {
+        int first = from >>> 6, last = (to - 1) >>> 6;
+        ByteBuffer buf = ByteBuffer.allocate((last - first + 1) * Long.BYTES);
+        for (int w = first; w <= last; w++) buf.putLong(words[w]);
+        return buf.array();
+    }
+
+    /**
+     * Returns the first clear bit at or after <code>from</code>, or size() if there is none.
+     * Whole words of set bits are skipped at once.
+     */
+    int nextClear(int from) {
+        while (from < size) {
+            long free = ~words[from >>> 6] & (-1L << from);
+            if (free != 0) return Math.min(size, (from & ~63) + Long.numberOfTrailingZeros(free));
+            from = (from & ~63) + 64;
+        }
+        return size;
+    }
+
+    /**
+     * Returns the first set bit at or after <code>from</code>, or size() if there is none.
+     * Whole words of clear bits are skipped at once.
+     */
+    int nextSet(int from) {
+        while (from < size) {
+            long used = words[from >>> 6] & (-1L << from);
+            if (used != 0) return Math.min(size, (from & ~63) + Long.numberOfTrailingZeros(used));
+            from = (from & ~63) + 64;
+        }
+        return size;
+    }
+
+    /** Word the next search starts from. Saved on unmount so the next mount picks up where this one stopped. */
+    int getHint() {
+        return hint;
+    }
+
+    void setHint(int hint) {
+        if (hint >= 0 && hint < words.length) this.hint = hint;
+    }
+
+    /**
+     * Finds the first clear bit at or after the hint, wrapping around once.
+     * @return Index of a clear bit, or -1 if the bitmap is full.
+     */
+    int findClear() {
+        for (int n = 0; n < words.length; n++) {
+            int w = (hint + n) % words.length;
+            long free = ~words[w];
+            if (w == words.length - 1 && size % 64 != 0) free &= (1L << (size % 64)) - 1;  // ignore padding bits
+            if (free != 0) {
+                hint = w;
+                return w * 64 + Long.numberOfTrailingZeros(free);
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Finds a clear bit and sets it.
+     * @return Index of the newly allocated bit, or -1 if the bitmap is full.
+     */
+    int allocate() {
+        int bit = findClear();
+        if (bit != -1) set(bit);
+        return bit;
+    }
+
+    /** Counts the set bits. Only meant for rebuilding counters, normal callers should keep their own. */
+    int cardinality() {
+        int count = 0;
+        for (long word : words) count += Long.bitCount(word);
+        return count;
+    }
+}
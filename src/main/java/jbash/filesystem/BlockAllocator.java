@@ -0,0 +1,150 @@
+package jbash.filesystem;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * Hands out runs of contiguous data blocks.
+ * The block bitmap is the persistent record of what's in use. Next to it we keep the free space as a tree of
+ * extents (start -> length) plus an index by length, so a request for n blocks finds the smallest run that
+ * fits in O(log n) instead of walking the bitmap, and a file's blocks end up laid out back to back.
+ * <p>
+ * Callers are responsible for writing the bitmap words covering each returned or freed extent back to disk.
+ */
+class BlockAllocator {
+    private final Bitmap bitmap;
+    private final TreeMap<Long, Long> freeByStart = new TreeMap<>();          // start -> length
+    private final TreeMap<Long, TreeSet<Long>> freeByLength = new TreeMap<>(); // length -> starts
+    private long freeBlocks = 0;
+    private long hint = -1;  // end of the last allocation, where requests without a goal start looking
+
+    /**
+     * Builds the free-extent tree from <code>bitmap</code>.
+     * @param bitmap Block bitmap, one bit per data block. Kept and updated by the allocator.
+     */
+    BlockAllocator(Bitmap bitmap) {
+        this.bitmap = bitmap;
+        int start = bitmap.nextClear(0);
+        while (start < bitmap.size()) {
+            int end = bitmap.nextSet(start);
+            addFree(start, end - start);
+            start = bitmap.nextClear(end);
+        }
+    }
+
+    Bitmap getBitmap() {
+        return bitmap;
+    }
+
+    long getFreeBlocks() {
+        return freeBlocks;
+    }
+
+    long getHint() {
+        return hint;
+    }
+
+    void setHint(long hint) {
+        this.hint = hint;
+    }
+
+    /**
+     * Allocates <code>count</code> blocks, as few extents as possible.
+     * If <code>goal</code> is free it's used first, so a growing file stays contiguous.
+     * Otherwise the smallest free run that fits the whole request is used, closest to <code>goal</code>,
+     * or to the end of the previous allocation if there's no goal.
+     * Only when no single run is big enough does the request get split over several runs, largest first.
+     * @param count Number of blocks wanted.
+     * @param goal Preferred first block, usually the block after the file's current last block. -1 for none.
+     * @return The extents allocated, in file order, or an empty list if there isn't enough free space.
+     */
+    List<Extent> allocate(long count, long goal) {
+        List<Extent> result = new ArrayList<>();
+        if (count <= 0 || count > freeBlocks) return result;
+
+        // Continue right where the file left off if we can
+        Map.Entry<Long, Long> goalRun = (goal >= 0) ? freeByStart.floorEntry(goal) : null;
+        if (goalRun != null && goalRun.getKey() + goalRun.getValue() > goal) {
+            long available = goalRun.getKey() + goalRun.getValue() - goal;
+            Extent taken = take(goalRun.getKey(), goalRun.getValue(), goal, Math.min(count, available));
+            result.add(taken);
+            count -= taken.length();
+        }
+
+        while (count > 0) {
+            Map.Entry<Long, TreeSet<Long>> fit = freeByLength.ceilingEntry(count);
+            if (fit == null) fit = freeByLength.lastEntry();  // nothing big enough, take the largest run
+            long near = (goal >= 0) ? goal : hint;
+            Long start = (near >= 0) ? fit.getValue().ceiling(near) : null;
+            if (start == null) start = fit.getValue().first();
+            Extent taken = take(start, fit.getKey(), start, Math.min(count, fit.getKey()));
+            result.add(taken);
+            count -= taken.length();
+        }
+        hint = result.get(result.size() - 1).end();
+        return result;
+    }
+
+    /**
+     * Returns an extent to the free pool, merging it with its free neighbours.
+     * @param extent Blocks to free. Must currently be allocated.
+     */
+    void free(Extent extent) {
+        long start = extent.start(), length = extent.length();
+        bitmap.clearRange((int) start, (int) extent.end());
+
+        Map.Entry<Long, Long> before = freeByStart.lowerEntry(start);
+        if (before != null && before.getKey() + before.getValue() == start) {
+            removeFree(before.getKey(), before.getValue());
+            start = before.getKey();
+            length += before.getValue();
+        }
+        Long afterLength = freeByStart.get(extent.end());
+        if (afterLength != null) {
+            removeFree(extent.end(), afterLength);
+            length += afterLength;
+        }
+        addFree(start, length);
+    }
+
+    /**
+     * Marks an extent as in use without going through allocate(), e.g. for reserved blocks.
+     * The extent must lie inside a single free run.
+     */
+    void reserve(Extent extent) {
+        Map.Entry<Long, Long> run = freeByStart.floorEntry(extent.start());
+        if (run == null || run.getKey() + run.getValue() < extent.end()) {
+            throw new IllegalStateException("Blocks " + extent + " are not free");
+        }
+        take(run.getKey(), run.getValue(), extent.start(), extent.length());
+    }
+
+    /**
+     * Carves <code>count</code> blocks starting at <code>at</code> out of the free run
+     * (<code>runStart</code>, <code>runLength</code>), keeping whatever is left on either side free.
+     */
+    private Extent take(long runStart, long runLength, long at, long count) {
+        removeFree(runStart, runLength);
+        if (at > runStart) addFree(runStart, at - runStart);
+        if (runStart + runLength > at + count) addFree(at + count, runStart + runLength - (at + count));
+        bitmap.setRange((int) at, (int) (at + count));
+        return new Extent(at, count);
+    }
+
+    private void addFree(long start, long length) {
+        freeByStart.put(start, length);
+        freeByLength.computeIfAbsent(length, l -> new TreeSet<>()).add(start);
+        freeBlocks += length;
+    }
+
+    private void removeFree(long start, long length) {
+        freeByStart.remove(start);
+        TreeSet<Long> starts = freeByLength.get(length);
+        starts.remove(start);
+        if (starts.isEmpty()) freeByLength.remove(length);
+        freeBlocks -= length;
+    }
+}
@@ -0,0 +1,367 @@
+package jbash.filesystem;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.LongSupplier;
+
+/**
+ * Bounded write-back cache of disk blocks, keyed by block number (offset / block size).
+ * Eviction uses the CLOCK algorithm: every slot has a referenced bit that is set on access, and the
+ * clock hand clears bits as it sweeps until it finds a slot that wasn't touched since the last pass.
+ * Writes only dirty the cached copy. Dirty blocks reach the disk when they're evicted, when flush()
+ * is called, or when the background flusher runs; flushes are sorted and adjacent blocks go out as one write.
+ * <p>
+ * Blocks changed by a journal transaction are tagged with its sequence number and held back until the journal
+ * reports that transaction as durable, so a home location is never written before its log record.
+ * If every cached block is held back, the cache grows past its capacity rather than blocking.
+ * <p>
+ * Flushes and prefetches are asynchronous: all the runs of a flush are submitted at once and complete in the
+ * background. A block whose write is still in flight is remembered in <code>pending</code>, and anything that
+ * would read or write that block on disk waits for it first.
+ */
+class BlockCache {
+    /** Raw block I/O underneath the cache. */
+    interface Backing {
+        void read(long firstBlock, byte[] dst, int off, int numBlocks);
+        void write(long firstBlock, byte[] src, int off, int numBlocks);
+        CompletableFuture<Void> readAsync(long firstBlock, byte[] dst, int off, int numBlocks);
+        CompletableFuture<Void> writeAsync(long firstBlock, byte[] src, int off, int numBlocks);
+    }
+
+    private static final class Entry {
+        long blockNo;
+        byte[] data;
+        boolean dirty;
+        boolean referenced;
+        long txnSeq;  // journal transaction that last changed this block, 0 if none
+    }
+
+    private final Backing backing;
+    private final int blockSize;
+    private final int capacity;
+    private final ArrayList<Entry> slots = new ArrayList<>();
+    private final HashMap<Long, Entry> index = new HashMap<>();
+    private int hand = 0;
+    private LongSupplier durableSeq = () -> Long.MAX_VALUE;  // no journal: everything may be written
+
+    private long hits = 0, misses = 0, evictions = 0, writebacks = 0;
+
+    // Writes submitted but not finished yet, by block. Completion handlers remove themselves without the cache lock.
+    private final ConcurrentHashMap<Long, CompletableFuture<Void>> pending = new ConcurrentHashMap<>();
+    // Blocks written to disk while a prefetch was reading, so the prefetch doesn't install an older copy
+    private int prefetchesInFlight = 0;
+    private final HashSet<Long> writtenDuringPrefetch = new HashSet<>();
+
+    private final Thread flusher;
+    private volatile boolean closed = false;
+
+    /**
+     * @param backing Where blocks are loaded from and written back to.
+     * @param blockSize Size of one block in bytes.
+     * @param capacity Maximum number of blocks kept in memory.
+     * @param flushIntervalMs How often the background flusher writes dirty blocks back, or 0 for no flusher.
+     */
+    BlockCache(Backing backing, int blockSize, int capacity, long flushIntervalMs) {
+        this.backing = backing;
+        this.blockSize = blockSize;
+        this.capacity = Math.max(1, capacity);
+        if (flushIntervalMs > 0) {
+            flusher = new Thread(() -> flushLoop(flushIntervalMs), "tbff-flusher");
+            flusher.setDaemon(true);
+            flusher.start();
+        } else {
+            flusher = null;
+        }
+    }
+
+    /**
+     * Copies <code>len</code> bytes starting at disk offset <code>pos</code> into <code>dst</code>.
+     * Runs of blocks that aren't cached are loaded with a single read.
+     */
+    synchronized void read(long pos, byte[] dst, int off, int len) {
+        while (len > 0) {
+            long blockNo = pos / blockSize;
+            int inBlock = (int) (pos % blockSize);
+            Entry entry = index.get(blockNo);
+            if (entry != null) {
+                hits++;
+                entry.referenced = true;
+                int chunk = Math.min(len, blockSize - inBlock);
+                System.arraycopy(entry.data, inBlock, dst, off, chunk);
+                pos += chunk; off += chunk; len -= chunk;
+                continue;
+            }
+
+            // Miss: load every uncached block up to the next cached one (or the end of the request) in one go
+            long lastBlock = (pos + len - 1) / blockSize;
+            long runEnd = blockNo + 1;
+            while (runEnd <= lastBlock && runEnd - blockNo < capacity && !index.containsKey(runEnd)) runEnd++;
+            int numBlocks = (int) (runEnd - blockNo);
+            byte[] run = new byte[numBlocks * blockSize];
+            awaitPending(blockNo, numBlocks);
+            backing.read(blockNo, run, 0, numBlocks);
+            misses += numBlocks;
+            for (int i = 0; i < numBlocks; i++) {
+                Entry loaded = install(blockNo + i);
+                System.arraycopy(run, i * blockSize, loaded.data, 0, blockSize);
+            }
+            int chunk = (int) Math.min(len, (long) numBlocks * blockSize - inBlock);
+            System.arraycopy(run, inBlock, dst, off, chunk);
+            pos += chunk; off += chunk; len -= chunk;
+        }
+    }
+
+    /**
+     * Tells the cache how far the journal has committed. Blocks tagged with a later transaction stay in memory.
+     * @param durableSeq Supplies the sequence number of the last durable journal transaction.
+     */
+    synchronized void setWriteAheadLog(LongSupplier durableSeq) {
+        this.durableSeq = durableSeq;
+    }
+
+    /**
+     * Copies <code>len</code> bytes of <code>src</code> into the cache at disk offset <code>pos</code> and marks
+     * the blocks dirty. Blocks that are overwritten entirely aren't read from disk first.
+     */
+    synchronized void write(long pos, byte[] src, int off, int len) {
+        write(pos, src, off, len, 0);
+    }
+
+    /**
+     * Same as {@link #write(long, byte[], int, int)}, for a change logged in journal transaction <code>txnSeq</code>.
+     */
+    synchronized void write(long pos, byte[] src, int off, int len, long txnSeq) {
+        while (len > 0) {
+            long blockNo = pos / blockSize;
+            int inBlock = (int) (pos % blockSize);
+            int chunk = Math.min(len, blockSize - inBlock);
+            Entry entry = index.get(blockNo);
+            if (entry != null) {
+                hits++;
+                entry.referenced = true;
+            } else {
+                misses++;
+                entry = install(blockNo);
+                if (chunk < blockSize) {
+                    awaitPending(blockNo, 1);
+                    backing.read(blockNo, entry.data, 0, 1);
+                }
+            }
+            System.arraycopy(src, off, entry.data, inBlock, chunk);
+            entry.dirty = true;
+            entry.txnSeq = Math.max(entry.txnSeq, txnSeq);
+            pos += chunk; off += chunk; len -= chunk;
+        }
+    }
+
+    /**
+     * Writes every dirty block back to the disk and waits until it's there, including writes other flushes
+     * still have in flight. Blocks whose journal transaction isn't durable yet are skipped.
+     */
+    void flush() {
+        flushAsync().join();
+    }
+
+    /**
+     * Starts writing every dirty block back to the disk, sorted by block number with adjacent blocks merged into
+     * one write. Every run is in flight at the same time. Blocks whose journal transaction isn't durable yet are skipped.
+     * @return Future that completes once this flush's writes, and any submitted before it, are on disk.
+     */
+    CompletableFuture<Void> flushAsync() {
+        List<long[]> runs = new ArrayList<>();  // first block and block count
+        List<byte[]> data = new ArrayList<>();
+        List<CompletableFuture<Void>> waits = new ArrayList<>();
+        List<CompletableFuture<Void>> dones = new ArrayList<>();
+        synchronized (this) {
+            long durable = durableSeq.getAsLong();
+            List<Entry> dirty = new ArrayList<>();
+            for (Entry entry : index.values()) if (entry.dirty && entry.txnSeq <= durable) dirty.add(entry);
+            dirty.sort((a, b) -> Long.compare(a.blockNo, b.blockNo));
+            List<CompletableFuture<Void>> all = new ArrayList<>(pending.values());
+
+            for (int i = 0; i < dirty.size(); ) {
+                int j = i + 1;
+                while (j < dirty.size() && dirty.get(j).blockNo == dirty.get(j - 1).blockNo + 1) j++;
+                long first = dirty.get(i).blockNo;
+                byte[] run = new byte[(j - i) * blockSize];
+                List<CompletableFuture<Void>> older = new ArrayList<>();
+                CompletableFuture<Void> done = new CompletableFuture<>();
+                for (int k = i; k < j; k++) {
+                    Entry entry = dirty.get(k);
+                    System.arraycopy(entry.data, 0, run, (k - i) * blockSize, blockSize);
+                    entry.dirty = false;
+                    entry.txnSeq = 0;
+                    // An older copy of this block may still be on its way out, this one has to land after it
+                    CompletableFuture<Void> before = pending.put(entry.blockNo, done);
+                    if (before != null) older.add(before);
+                    noteWritten(entry.blockNo);
+                }
+                runs.add(new long[] { first, j - i });
+                data.add(run);
+                waits.add(CompletableFuture.allOf(older.toArray(new CompletableFuture<?>[0])));
+                dones.add(done);
+                writebacks += j - i;
+                i = j;
+            }
+            all.addAll(dones);
+            dones.add(CompletableFuture.allOf(all.toArray(new CompletableFuture<?>[0])));
+        }
+
+        // Submitted outside the lock: a full submission queue blocks here, and completions never need the lock
+        for (int r = 0; r < runs.size(); r++) {
+            long first = runs.get(r)[0];
+            int numBlocks = (int) runs.get(r)[1];
+            CompletableFuture<Void> done = dones.get(r);
+            waits.get(r).handle((v, e) -> null).join();
+            backing.writeAsync(first, data.get(r), 0, numBlocks).whenComplete((v, e) -> {
+                for (int i = 0; i < numBlocks; i++) pending.remove(first + i, done);
+                if (e != null) done.completeExceptionally(e);
+                else done.complete(null);
+            });
+        }
+        return dones.get(dones.size() - 1);
+    }
+
+    /**
+     * Starts loading the blocks covering <code>len</code> bytes at disk offset <code>pos</code> into the cache
+     * without waiting for them. Blocks that are already cached are skipped.
+     * @return Future that completes once the blocks are cached.
+     */
+    CompletableFuture<Void> prefetch(long pos, int len) {
+        return prefetch(pos, len, false);
+    }
+
+    /**
+     * Same as {@link #prefetch(long, int)}.
+     * @param readSoon True if the blocks are about to be read, like a read-ahead window. They're then kept like blocks
+     *                 that were just read, instead of being the first to go.
+     */
+    CompletableFuture<Void> prefetch(long pos, int len, boolean readSoon) {
+        List<long[]> runs = new ArrayList<>();
+        synchronized (this) {
+            long lastBlock = (pos + len - 1) / blockSize;
+            for (long blockNo = pos / blockSize; blockNo <= lastBlock; blockNo++) {
+                if (index.containsKey(blockNo) || pending.containsKey(blockNo)) continue;
+                long runEnd = blockNo + 1;
+                while (runEnd <= lastBlock && runEnd - blockNo < capacity
+                        && !index.containsKey(runEnd) && !pending.containsKey(runEnd)) runEnd++;
+                runs.add(new long[] { blockNo, runEnd - blockNo });
+                blockNo = runEnd;
+            }
+            if (runs.isEmpty()) return CompletableFuture.completedFuture(null);
+            prefetchesInFlight++;
+        }
+
+        List<CompletableFuture<Void>> reads = new ArrayList<>();
+        for (long[] run : runs) {
+            byte[] buf = new byte[(int) run[1] * blockSize];
+            reads.add(backing.readAsync(run[0], buf, 0, (int) run[1]).thenRun(() -> installPrefetched(run[0], buf, (int) run[1], readSoon)));
+        }
+        return CompletableFuture.allOf(reads.toArray(new CompletableFuture<?>[0])).whenComplete((v, e) -> {
+            synchronized (this) {
+                if (--prefetchesInFlight == 0) writtenDuringPrefetch.clear();
+            }
+        });
+    }
+
+    /**
+     * Stops the background flusher and writes back everything that's dirty.
+     */
+    void close() {
+        closed = true;
+        if (flusher != null) flusher.interrupt();
+        flush();
+    }
+
+    /**
+     * Puts prefetched blocks in the cache, unless they got cached or written in the meantime.
+     * Unless they're about to be read they go in unreferenced, so prefetched blocks nobody reads are the first to be evicted.
+     */
+    private synchronized void installPrefetched(long first, byte[] buf, int numBlocks, boolean readSoon) {
+        for (int i = 0; i < numBlocks; i++) {
+            long blockNo = first + i;
+            if (index.containsKey(blockNo) || pending.containsKey(blockNo) || writtenDuringPrefetch.contains(blockNo)) continue;
+            Entry entry = install(blockNo);
+            System.arraycopy(buf, i * blockSize, entry.data, 0, blockSize);
+            entry.referenced = readSoon;
+        }
+    }
+
+    /** Waits for in-flight writes to any of <code>numBlocks</code> blocks from <code>first</code>. */
+    private void awaitPending(long first, int numBlocks) {
+        if (pending.isEmpty()) return;
+        for (int i = 0; i < numBlocks; i++) {
+            CompletableFuture<Void> write = pending.get(first + i);
+            if (write != null) write.join();
+        }
+    }
+
+    private void noteWritten(long blockNo) {
+        if (prefetchesInFlight > 0) writtenDuringPrefetch.add(blockNo);
+    }
+
+    synchronized CacheStats getStats() {
+        return new CacheStats(hits, misses, evictions, writebacks, slots.size(), capacity);
+    }
+
+    /**
+     * Puts an empty entry for <code>blockNo</code> in the cache, evicting another block if it's full.
+     */
+    private Entry install(long blockNo) {
+        Entry entry = (slots.size() < capacity) ? null : evict();
+        if (entry == null) {
+            entry = new Entry();
+            entry.data = new byte[blockSize];
+            slots.add(entry);
+        }
+        entry.blockNo = blockNo;
+        entry.dirty = false;
+        entry.referenced = true;
+        entry.txnSeq = 0;
+        index.put(blockNo, entry);
+        return entry;
+    }
+
+    /**
+     * Advances the clock hand to the first slot whose referenced bit is clear, writes it back if needed,
+     * and hands its (now unindexed) entry back for reuse.
+     * @return The reusable entry, or null if every block is held back by the journal.
+     */
+    private Entry evict() {
+        long durable = durableSeq.getAsLong();
+        for (int scanned = 0; scanned < 2 * slots.size(); scanned++) {
+            Entry candidate = slots.get(hand);
+            hand = (hand + 1) % slots.size();
+            if (candidate.referenced) {
+                candidate.referenced = false;
+                continue;
+            }
+            if (candidate.dirty && candidate.txnSeq > durable) continue;  // log record not on disk yet
+            if (candidate.dirty) {
+                awaitPending(candidate.blockNo, 1);
+                noteWritten(candidate.blockNo);
+                backing.write(candidate.blockNo, candidate.data, 0, 1);
+                writebacks++;
+            }
+            index.remove(candidate.blockNo);
+            evictions++;
+            return candidate;
+        }
+        return null;
+    }
+
+    private void flushLoop(long intervalMs) {
+        while (!closed) {
+            try {
+                Thread.sleep(intervalMs);
+            } catch (InterruptedException e) {
+                return;
+            }
+            flush();
+        }
+    }
+}
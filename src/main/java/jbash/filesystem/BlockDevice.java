@@ -0,0 +1,64 @@
+package jbash.filesystem;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Storage a TBFF disk lives on: a flat run of bytes that can be read and written at any offset.
+ * TBFF only ever talks to its device through this interface, so a disk works the same on every kind of device.
+ * The built-in ones are picked with TBFFOptions.device(), see DeviceType. Anything else can be passed to
+ * {@link TBFF#TBFF(BlockDevice, String, long, TBFFOptions)}.
+ * <p>
+ * Bytes that were never written read as zeros. Reads and writes may come from several threads at once (the block
+ * cache flushes in the background), but never for overlapping ranges. Failures are thrown as runtime exceptions.
+ */
+public interface BlockDevice {
+    /**
+     * @return Size of the device in bytes.
+     */
+    long size();
+
+    /**
+     * Changes the size of the device. Growing adds bytes that read as zeros, shrinking throws away everything past
+     * <code>sizeBytes</code>.
+     * @param sizeBytes New size in bytes.
+     */
+    void resize(long sizeBytes);
+
+    /**
+     * Copies <code>len</code> bytes starting at <code>pos</code> into <code>dst</code>.
+     */
+    void read(long pos, byte[] dst, int off, int len);
+
+    /**
+     * Copies <code>len</code> bytes of <code>src</code> to the device at <code>pos</code>.
+     */
+    void write(long pos, byte[] src, int off, int len);
+
+    /**
+     * Starts a read without waiting for it. <code>dst</code> is filled once the future completes.
+     * By default this just reads on the calling thread.
+     */
+    default CompletableFuture<Void> readAsync(long pos, byte[] dst, int off, int len) {
+        read(pos, dst, off, len);
+        return CompletableFuture.completedFuture(null);
+    }
+
+    /**
+     * Starts a write without waiting for it. <code>src</code> must not change until the future completes.
+     * By default this just writes on the calling thread.
+     */
+    default CompletableFuture<Void> writeAsync(long pos, byte[] src, int off, int len) {
+        write(pos, src, off, len);
+        return CompletableFuture.completedFuture(null);
+    }
+
+    /**
+     * Makes every write so far durable, including asynchronous ones that have completed.
+     */
+    void force();
+
+    /**
+     * Waits for anything still in flight, then releases the device. It can't be used afterwards.
+     */
+    void close();
+}
@@ -0,0 +1,64 @@
+package jbash.filesystem;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * A file's logical-to-physical block mapping, held as runs: first file block -> extent of data blocks.
+ * TBFF builds one the first time it needs an inode's layout, walking the direct and indirect pointers once,
+ * and keeps it on the (cached) Inode. After that, finding where a file block lives is a single tree lookup
+ * no matter how deep in the indirect blocks its pointer is stored.
+ */
+class BlockMap {
+    private final TreeMap<Long, Extent> runs = new TreeMap<>();
+
+    /**
+     * Maps file block <code>fileBlock</code> to data block <code>dataBlock</code>, growing the previous run
+     * if they're contiguous. Blocks must be added in increasing file order. A data block of 0 is a hole.
+     */
+    void add(long fileBlock, long dataBlock) {
+        if (dataBlock == 0) return;
+        Map.Entry<Long, Extent> last = runs.lastEntry();
+        if (last != null && last.getKey() + last.getValue().length() == fileBlock && last.getValue().end() == dataBlock) {
+            runs.put(last.getKey(), new Extent(last.getValue().start(), last.getValue().length() + 1));
+        } else {
+            runs.put(fileBlock, new Extent(dataBlock, 1));
+        }
+    }
+
+    /**
+     * Maps a whole extent starting at file block <code>fileBlock</code>. Same ordering rule as add().
+     */
+    void addRun(long fileBlock, Extent extent) {
+        Map.Entry<Long, Extent> last = runs.lastEntry();
+        if (last != null && last.getKey() + last.getValue().length() == fileBlock && last.getValue().end() == extent.start()) {
+            runs.put(last.getKey(), new Extent(last.getValue().start(), last.getValue().length() + extent.length()));
+        } else {
+            runs.put(fileBlock, extent);
+        }
+    }
+
+    /**
+     * @return The data block holding file block <code>fileBlock</code>, or 0 if it isn't mapped.
+     */
+    long lookup(long fileBlock) {
+        Map.Entry<Long, Extent> run = runs.floorEntry(fileBlock);
+        if (run == null || fileBlock >= run.getKey() + run.getValue().length()) return 0;
+        return run.getValue().start() + (fileBlock - run.getKey());
+    }
+
+    /**
+     * @return Every run, keyed by its first file block, in file order.
+     */
+    Map<Long, Extent> runs() {
+        return runs;
+    }
+
+    /**
+     * @return The data extents, in file order.
+     */
+    Collection<Extent> extents() {
+        return runs.values();
+    }
+}
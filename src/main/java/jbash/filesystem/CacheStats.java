@@ -0,0 +1,16 @@
+package jbash.filesystem;
+
+/**
+ * Snapshot of a TBFF block cache's counters.
+ * @param hits Block accesses served from memory.
+ * @param misses Block accesses that had to go to the disk.
+ * @param evictions Blocks dropped to make room for others.
+ * @param writebacks Dirty blocks written back to the disk.
+ * @param cachedBlocks Blocks currently held in memory.
+ * @param capacity Maximum number of blocks held in memory.
+ */
+public record CacheStats(long hits, long misses, long evictions, long writebacks, int cachedBlocks, int capacity) {
+    public double hitRate() {
+        return (hits + misses == 0) ? 0 : (double) hits / (hits + misses);
+    }
+}
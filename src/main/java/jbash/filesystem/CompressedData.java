@@ -0,0 +1,131 @@
+package jbash.filesystem;
+
+import java.nio.ByteBuffer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Packs file contents into the stored form of a compressed file, and back.
+ * The contents are cut into CLUSTER_BYTES clusters that are deflated separately, so reading the start of a file
+ * doesn't mean inflating all of it. Stored form:
+ * <pre>
+ *   4 bytes per cluster  stored length of the cluster. Less than the cluster's real length means deflated,
+ *                        otherwise the cluster is stored as is (it didn't shrink).
+ *   ...                  the clusters, back to back
+ * </pre>
+ * The number of clusters follows from the file's size, which the inode keeps.
+ */
+class CompressedData {
+    /** Reads bytes of the stored form. */
+    interface Source {
+        void read(long offset, byte[] dst, int off, int len);
+    }
+
+    static final int CLUSTER_BYTES = 64 * 1024;
+
+    /**
+     * Compresses <code>data</code>.
+     * @param blockSize Block size of the disk. Compression is only worth it if it saves a block.
+     * @return The stored form, or null if it wouldn't take fewer blocks than <code>data</code> itself.
+     */
+    static byte[] pack(byte[] data, int blockSize) {
+        int numClusters = numClusters(data.length);
+        ByteBuffer out = ByteBuffer.allocate(numClusters * Integer.BYTES + data.length);
+        out.position(numClusters * Integer.BYTES);
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        byte[] buf = new byte[CLUSTER_BYTES];
+        try {
+            for (int c = 0; c < numClusters; c++) {
+                int start = c * CLUSTER_BYTES;
+                int len = Math.min(CLUSTER_BYTES, data.length - start);
+                deflater.reset();
+                deflater.setInput(data, start, len);
+                deflater.finish();
+                int packed = 0;
+                while (!deflater.finished() && packed < len) packed += deflater.deflate(buf, packed, len - packed);
+                if (!deflater.finished() || packed >= len) {
+                    out.putInt(c * Integer.BYTES, len);  // didn't shrink, keep it raw
+                    out.put(data, start, len);
+                } else {
+                    out.putInt(c * Integer.BYTES, packed);
+                    out.put(buf, 0, packed);
+                }
+                // Give up early once the stored form can't come out smaller
+                if (out.position() > data.length) return null;
+            }
+        } finally {
+            deflater.end();
+        }
+        if (blocks(out.position(), blockSize) >= blocks(data.length, blockSize)) return null;
+        byte[] stored = new byte[out.position()];
+        out.get(0, stored);
+        return stored;
+    }
+
+    /**
+     * Fills <code>dst</code> with the start of the contents of a file of <code>size</code> bytes.
+     * Only the clusters <code>dst</code> reaches into are read.
+     */
+    static void unpack(Source source, long size, byte[] dst) {
+        unpack(source, size, 0, dst, 0, (int) Math.min(size, dst.length));
+    }
+
+    /**
+     * Reads <code>len</code> bytes of the contents of a file of <code>size</code> bytes, starting at
+     * <code>offset</code>, into <code>dst</code>. Only the clusters the range touches are read and inflated.
+     */
+    static void unpack(Source source, long size, long offset, byte[] dst, int off, int len) {
+        if (len <= 0) return;
+        int first = (int) (offset / CLUSTER_BYTES);
+        int last = numClusters(offset + len);  // exclusive
+        byte[] header = new byte[last * Integer.BYTES];
+        source.read(0, header, 0, header.length);
+        ByteBuffer lengths = ByteBuffer.wrap(header);
+
+        // Skip the stored clusters before the first one we need
+        long pos = (long) numClusters(size) * Integer.BYTES;
+        for (int c = 0; c < first; c++) pos += lengths.getInt();
+
+        Inflater inflater = new Inflater();
+        try {
+            for (int c = first; c < last; c++) {
+                int stored = lengths.getInt();
+                long start = (long) c * CLUSTER_BYTES;
+                int clusterLen = (int) Math.min(CLUSTER_BYTES, size - start);
+                int skip = (int) Math.max(0, offset - start);
+                int wanted = (int) Math.min(clusterLen, offset + len - start);  // bytes of the cluster up to the end of the range
+                byte[] cluster = new byte[stored];
+                source.read(pos, cluster, 0, stored);
+                pos += stored;
+                int dstPos = (int) (off + start + skip - offset);
+                if (stored >= clusterLen) {
+                    System.arraycopy(cluster, skip, dst, dstPos, wanted - skip);
+                    continue;
+                }
+                byte[] plain = new byte[wanted];
+                inflater.reset();
+                inflater.setInput(cluster);
+                int done = 0;
+                while (done < wanted) {
+                    int n = inflater.inflate(plain, done, wanted - done);
+                    if (n == 0 && (inflater.finished() || inflater.needsInput())) throw new RuntimeException("Corrupt compressed cluster " + c);
+                    done += n;
+                }
+                System.arraycopy(plain, skip, dst, dstPos, wanted - skip);
+            }
+        } catch (DataFormatException e) {
+            throw new RuntimeException("Corrupt compressed data", e);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    private static int numClusters(long size) {
+        return (int) ((size + CLUSTER_BYTES - 1) / CLUSTER_BYTES);
+    }
+
+    private static long blocks(long bytes, int blockSize) {
+        return (bytes + blockSize - 1) / blockSize;
+    }
+}
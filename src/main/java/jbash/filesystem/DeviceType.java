@@ -0,0 +1,16 @@
+package jbash.filesystem;
+
+/**
+ * The built-in kinds of BlockDevice a TBFF disk can be opened on, see TBFFOptions.device().
+ */
+public enum DeviceType {
+    /** An image file, accessed with RandomAccessFile calls and asynchronous channel I/O. See FileDisk. */
+    FILE,
+    /** An image file, accessed through memory-mapped buffers. See MappedDisk. */
+    MAPPED,
+    /**
+     * Heap memory. Nothing is written to the host and the disk is gone once it's closed, which suits tests and
+     * throwaway sessions. The name of the disk is only used in messages. See MemoryDisk.
+     */
+    MEMORY
+}
@@ -3,27 +3,116 @@ package jbash.filesystem;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Optional;
+import java.util.Set;
 
 public class Directory extends FileSystemObject {
     private final List<FileSystemObject> children = new ArrayList<>();
+    private boolean complete = true;  // false while some of a mounted directory's children haven't been loaded
 
     public Directory(String name, Directory parent) {
         super(name, parent);
     }
 
+    /** A directory that already exists on a mounted disk. Children are loaded as they're looked up. */
+    Directory(String name, Directory parent, Mount mount, long inodePtr) {
+        super(name, parent, mount, inodePtr);
+        this.complete = false;
+    }
+
     public void addChild(FileSystemObject fileSystemObject) {
+        if (mount != null) {
+            if (fileSystemObject.mount == null) {
+                fileSystemObject.save(mount);
+                mount.adjustLoaded(1);
+            }
+            mount.volume.addEntry(inode(), fileSystemObject.getName(), fileSystemObject.inodePtr);
+        }
         children.add(fileSystemObject);
     }
 
     public void removeChild(FileSystemObject file) {
+        if (mount != null) {
+            // On an overlay the child may have been copied up since it was loaded. Its old pointer stops leading to
+            // the copy once the entry is gone, so hang on to the copy's in case the child is being moved.
+            if (file.mount == mount) file.inodePtr = file.inode().inodePtr;
+            mount.volume.removeEntry(inode(), file.getName());
+        }
         children.remove(file);
     }
 
+    /**
+     * Puts <code>replacement</code> where child <code>old</code> was, without touching the disk. Used to swap a
+     * directory for the root of a volume mounted over it, and back.
+     */
+    void replaceChild(FileSystemObject old, FileSystemObject replacement) {
+        children.set(children.indexOf(old), replacement);
+    }
+
+    /**
+     * Records that entries were added to this directory on its disk without going through addChild(), see Batch.
+     * They get loaded when they're looked up, like the rest of a directory that isn't fully loaded.
+     */
+    void addedOnDisk() {
+        if (mount != null) complete = false;
+    }
+
+    /**
+     * On a mounted disk, a name that isn't loaded yet is looked up in the directory's on-disk index
+     * and only that child is loaded.
+     */
     public Optional<FileSystemObject> findChild(String name) {
-        return children.stream().filter(FSO -> FSO.getName().equals(name)).findFirst();
+        Optional<FileSystemObject> loaded = children.stream().filter(FSO -> FSO.getName().equals(name)).findFirst();
+        if (loaded.isPresent() || complete) return loaded;
+
+        long childPtr = mount.volume.lookupEntry(inode(), name);
+        if (childPtr == -1) return Optional.empty();
+        FileSystemObject child = mount.load(name, this, childPtr);
+        children.add(child);
+        return Optional.of(child);
     }
 
+    /**
+     * Returns every child. On a mounted disk this loads the whole directory the first time.
+     */
     public List<FileSystemObject> getChildren() {
+        if (!complete) {
+            mount.volume.listEntries(inode()).forEach((name, childPtr) -> {
+                if (children.stream().noneMatch(FSO -> FSO.getName().equals(name))) {
+                    children.add(mount.load(name, this, childPtr));
+                }
+            });
+            complete = true;
+        }
         return this.children;
     }
+
+    /**
+     * Drops the loaded children of every mounted directory in this subtree that isn't in <code>pinned</code>.
+     * Everything they hold is already on disk, so they're simply loaded again when next looked up. Each mount's count
+     * of loaded objects is adjusted for what's dropped from it.
+     * @param pinned Directories whose children must stay loaded, e.g. the path to the current directory.
+     * @return Number of objects dropped.
+     */
+    int evictChildren(Set<Directory> pinned) {
+        int dropped = 0;
+        for (FileSystemObject child : children) {
+            if (child instanceof Directory dir) dropped += dir.evictChildren(pinned);
+        }
+        // In-memory directories only exist in memory, but disks may be mounted below them
+        if (mount != null && !pinned.contains(this)) {
+            dropped += children.size();
+            mount.adjustLoaded(-children.size());
+            children.clear();
+            complete = false;
+        }
+        return dropped;
+    }
+
+    @Override
+    void save(Mount mount) {
+        Inode inode = new Inode(FileType.Directory, Inode.parsePerms("rwxr-xr-x"));
+        this.inodePtr = mount.volume.writeInodeToDisk(inode, getParent().inodePtr);
+        this.mount = mount;
+        mount.volume.initDirectory(inode);
+    }
 }
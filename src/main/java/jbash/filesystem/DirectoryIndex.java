@@ -0,0 +1,490 @@
+package jbash.filesystem;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Hashed directory format for TBFF, a simplified htree using extendible hashing.
+ * A directory's first block is the index root: a table of 2^depth slots, each pointing at a leaf block.
+ * A name goes to the leaf in slot <code>hash(name) &amp; (2^depth - 1)</code>, so a lookup reads the root
+ * (usually already cached) and exactly one leaf, however many entries the directory has.
+ * When a leaf fills up it splits in two on the next hash bit, and the table doubles if it has to.
+ * Once the root can't double any more, a full leaf turns into an index node instead: a table just like the root's
+ * that splits its share of names on the hash bits after the root's, so a huge directory costs one more read per
+ * lookup. Index nodes can nest the same way until the hash runs out of bits.
+ * When removing a name leaves a leaf and its buddy (the leaf it was split from) less than half full between them,
+ * they're merged back together, and the block that's no longer needed goes on a free list for the next split.
+ * <p>
+ * Root block: <code>magic (4), depth (1), first free block (3)</code>, then one int per slot giving the leaf's
+ * block number within the directory.
+ * <br>
+ * Index node: <code>hash bits used above it (1), type 1 (1), padding (2), depth (1), padding (3)</code>, then
+ * slots like the root's.
+ * <br>
+ * Leaf block: <code>local depth (1), type 0 (1), entry count (2), bytes used (2), padding (2)</code>, then
+ * packed entries of <code>name hash (4), inode pointer (8), name length (1), name bytes</code>.
+ * A leaf's local depth counts every hash bit it covers, the ones its index nodes used included.
+ * <br>
+ * Free block: <code>padding (1), type 2 (1), padding (2), next free block (4)</code>.
+ */
+class DirectoryIndex {
+    /** Block-level access to one directory's data. */
+    interface Storage {
+        void read(long fileBlock, byte[] dst);
+        void write(long fileBlock, byte[] src);
+        /** Adds an empty block to the end of the directory and returns its block number. */
+        long append();
+        /** Number of blocks the directory has. */
+        long numBlocks();
+    }
+
+    private static final int MAGIC = 0x48444952;  // "HDIR"
+    private static final int TABLE_HEADER_SIZE = 8;  // root and index nodes
+    private static final int OFFSET_DEPTH = 4;        // of a table's depth, root and index nodes alike
+    private static final int LEAF_HEADER_SIZE = 8;
+    private static final int ENTRY_HEADER_SIZE = 4 + 8 + 1;
+    private static final byte TYPE_LEAF = 0;
+    private static final byte TYPE_NODE = 1;
+    private static final byte TYPE_FREE = 2;
+    static final int MAX_NAME_BYTES = 255;
+    /** Blocks an empty directory takes: the root and one leaf. */
+    static final int EMPTY_BLOCKS = 2;
+
+    private final Storage storage;
+    private final int blockSize;
+    private final int maxDepth;  // deepest table that still fits in a block
+
+    private record Entry(int hash, long inodePtr, byte[] name) {}
+
+    /** Where a name's hash leads: the tables on the way down from the root, and the leaf. */
+    private record Path(List<Long> tables, long leaf) {}
+
+    /** A leaf being changed in memory, see Changes. */
+    private static class Leaf {
+        final int depth;
+        final List<Entry> entries = new ArrayList<>();
+        int used = LEAF_HEADER_SIZE;
+        boolean dirty = true;  // new leaves have to be written even if they stay empty
+
+        Leaf(int depth) {
+            this.depth = depth;
+        }
+
+        void add(Entry entry) {
+            entries.add(entry);
+            used += ENTRY_HEADER_SIZE + entry.name().length;
+            dirty = true;
+        }
+
+        boolean contains(Entry entry) {
+            for (Entry e : entries) {
+                if (e.hash() == entry.hash() && Arrays.equals(e.name(), entry.name())) return true;
+            }
+            return false;
+        }
+    }
+
+    /**
+     * The blocks one insertAll() or remove() changes, read and changed in memory as needed and written back
+     * together by commit(), each changed block once, in block order.
+     */
+    private class Changes {
+        final Map<Long, byte[]> tables = new HashMap<>();  // root and index nodes
+        final Set<Long> dirtyTables = new HashSet<>();
+        final Map<Long, Leaf> leaves = new HashMap<>();
+        final Map<Long, Integer> freed = new HashMap<>();  // block -> next free block
+        final long firstNew = storage.numBlocks();
+        long nextBlock = firstNew;  // new blocks are only appended in commit(), once everything is known to fit
+
+        Changes() {
+            tables.put(0L, readRoot());
+        }
+
+        Path find(int hash) {
+            List<Long> path = new ArrayList<>();
+            long block = 0;
+            while (true) {
+                path.add(block);
+                byte[] table = tables.get(block);
+                block = slotAt(table, slotOf(table, block, hash));
+                if (!isNode(block)) return new Path(path, block);
+            }
+        }
+
+        /** Whether <code>block</code> is an index node. Reads and parses it the first time it's needed. */
+        boolean isNode(long block) {
+            if (tables.containsKey(block)) return true;
+            if (leaves.containsKey(block)) return false;
+            byte[] raw = new byte[blockSize];
+            storage.read(block, raw);
+            if (raw[1] == TYPE_NODE) {
+                tables.put(block, raw);
+                return true;
+            }
+            Leaf leaf = new Leaf(raw[0]);
+            leaf.entries.addAll(parseLeaf(raw));
+            leaf.used = usedBytes(leaf.entries);
+            leaf.dirty = false;
+            leaves.put(block, leaf);
+            return false;
+        }
+
+        /**
+         * Splits the full leaf at the end of <code>path</code> on its next hash bit, doubling its table first if
+         * the leaf is already as deep as the table. A table that can't double any more gets an index node in
+         * place of the leaf, and the leaf splits into two under it.
+         */
+        void split(Path path) {
+            long tableBlock = path.tables().get(path.tables().size() - 1);
+            byte[] table = tables.get(tableBlock);
+            ByteBuffer buf = ByteBuffer.wrap(table);
+            int shift = shift(table, tableBlock);
+            int depth = table[OFFSET_DEPTH];
+            Leaf leaf = leaves.get(path.leaf());
+            int localDepth = leaf.depth - shift;
+            if (leaf.depth == Integer.SIZE) throw new RuntimeException("Directory is full");
+
+            Leaf stay = new Leaf(leaf.depth + 1), move = new Leaf(leaf.depth + 1);
+            for (Entry e : leaf.entries) ((((e.hash() >>> leaf.depth) & 1) == 0) ? stay : move).add(e);
+            long newLeafBlock = newBlock();
+            leaves.put(path.leaf(), stay);
+            leaves.put(newLeafBlock, move);
+            dirtyTables.add(tableBlock);
+
+            if (localDepth == depth && depth == Math.min(maxDepth, Integer.SIZE - shift)) {
+                // Only this slot points at the leaf, it gets a node with a slot for each half
+                long nodeBlock = newBlock();
+                byte[] node = new byte[blockSize];
+                node[0] = (byte) leaf.depth;
+                node[1] = TYPE_NODE;
+                node[OFFSET_DEPTH] = 1;
+                ByteBuffer.wrap(node).putInt(TABLE_HEADER_SIZE, (int) path.leaf()).putInt(TABLE_HEADER_SIZE + Integer.BYTES, (int) newLeafBlock);
+                replaceSlots(table, path.leaf(), nodeBlock);
+                tables.put(nodeBlock, node);
+                dirtyTables.add(nodeBlock);
+                return;
+            }
+            if (localDepth == depth) {
+                // Doubling: slot i + 2^depth points wherever slot i does
+                int numSlots = 1 << depth;
+                for (int i = 0; i < numSlots; i++) {
+                    buf.putInt(TABLE_HEADER_SIZE + (numSlots + i) * Integer.BYTES, buf.getInt(TABLE_HEADER_SIZE + i * Integer.BYTES));
+                }
+                table[OFFSET_DEPTH] = (byte) ++depth;
+            }
+            for (int i = 0; i < (1 << depth); i++) {
+                int slotPos = TABLE_HEADER_SIZE + i * Integer.BYTES;
+                if (buf.getInt(slotPos) == path.leaf() && ((i >>> localDepth) & 1) == 1) buf.putInt(slotPos, (int) newLeafBlock);
+            }
+        }
+
+        /**
+         * Merges the leaf at the end of <code>path</code> with its buddy for as long as the two fit in half a
+         * block, and puts a leaf that ends up alone under an index node back in the node's place.
+         * @param hash Hash of any name in the leaf.
+         */
+        void merge(Path path, int hash) {
+            long leafBlock = path.leaf();
+            Leaf leaf = leaves.get(leafBlock);
+            for (int level = path.tables().size() - 1; level >= 0; level--) {
+                long tableBlock = path.tables().get(level);
+                byte[] table = tables.get(tableBlock);
+                int shift = shift(table, tableBlock);
+                while (leaf.depth > shift) {
+                    int bit = 1 << (leaf.depth - shift - 1);
+                    int slot = slotOf(table, tableBlock, hash);
+                    long buddyBlock = slotAt(table, slot ^ bit);
+                    if (isNode(buddyBlock)) return;
+                    Leaf buddy = leaves.get(buddyBlock);
+                    if (buddy.depth != leaf.depth || leaf.used + buddy.used - LEAF_HEADER_SIZE > blockSize / 2) return;
+
+                    Leaf merged = new Leaf(leaf.depth - 1);
+                    leaf.entries.forEach(merged::add);
+                    buddy.entries.forEach(merged::add);
+                    long keep = ((slot & bit) == 0) ? leafBlock : buddyBlock;
+                    long drop = (keep == leafBlock) ? buddyBlock : leafBlock;
+                    replaceSlots(table, drop, keep);
+                    dirtyTables.add(tableBlock);
+                    leaves.put(keep, merged);
+                    free(drop);
+                    leafBlock = keep;
+                    leaf = merged;
+                }
+                if (level == 0) return;
+
+                long parentBlock = path.tables().get(level - 1);
+                replaceSlots(tables.get(parentBlock), tableBlock, leafBlock);
+                dirtyTables.add(parentBlock);
+                free(tableBlock);
+            }
+        }
+
+        /** A block for a new leaf or node: the first free one, or one appended in commit(). */
+        long newBlock() {
+            byte[] root = tables.get(0L);
+            long block = freeHead(root);
+            if (block == 0) return nextBlock++;
+            Integer next = freed.remove(block);
+            if (next == null) {
+                byte[] raw = new byte[blockSize];
+                storage.read(block, raw);
+                next = ByteBuffer.wrap(raw).getInt(4);
+            }
+            setFreeHead(root, next);
+            dirtyTables.add(0L);
+            return block;
+        }
+
+        void free(long block) {
+            byte[] root = tables.get(0L);
+            freed.put(block, (int) freeHead(root));
+            setFreeHead(root, block);
+            dirtyTables.add(0L);
+            tables.remove(block);
+            dirtyTables.remove(block);
+            leaves.remove(block);
+        }
+
+        void commit() {
+            for (long block = firstNew; block < nextBlock; block++) storage.append();
+            TreeMap<Long, byte[]> writes = new TreeMap<>();
+            leaves.forEach((block, leaf) -> { if (leaf.dirty) writes.put(block, encodeLeaf(leaf.depth, leaf.entries)); });
+            for (long block : dirtyTables) writes.put(block, tables.get(block));
+            freed.forEach((block, next) -> {
+                ByteBuffer free = ByteBuffer.allocate(blockSize);
+                free.put(1, TYPE_FREE).putInt(4, next);
+                writes.put(block, free.array());
+            });
+            writes.forEach(storage::write);
+        }
+    }
+
+    DirectoryIndex(Storage storage, int blockSize) {
+        this.storage = storage;
+        this.blockSize = blockSize;
+        this.maxDepth = 31 - Integer.numberOfLeadingZeros((blockSize - TABLE_HEADER_SIZE) / Integer.BYTES);
+    }
+
+    /**
+     * Sets up an empty directory: a root with one slot and one empty leaf. The directory must have no blocks yet.
+     */
+    void init() {
+        byte[] image = emptyImage(blockSize);
+        for (int block = 0; block < EMPTY_BLOCKS; block++) {
+            storage.write(storage.append(), Arrays.copyOfRange(image, block * blockSize, (block + 1) * blockSize));
+        }
+    }
+
+    /**
+     * The blocks of an empty directory as init() sets them up, back to back. Lets many new directories be
+     * written at once without a Storage each.
+     */
+    static byte[] emptyImage(int blockSize) {
+        ByteBuffer image = ByteBuffer.allocate(EMPTY_BLOCKS * blockSize);
+        image.putInt(MAGIC).put((byte) 0).position(TABLE_HEADER_SIZE);
+        image.putInt(1);  // the one slot points at the leaf, block 1 of the directory
+        image.putShort(blockSize + 4, (short) LEAF_HEADER_SIZE);  // leaf: depth 0, no entries
+        return image.array();
+    }
+
+    /**
+     * @return Pointer to the inode called <code>name</code>, or -1 if there's no such entry.
+     */
+    long lookup(String name) {
+        byte[] nameBytes = encodeName(name);
+        int hash = hash(nameBytes);
+        byte[] block = readRoot();
+        long blockNo = 0;
+        do {
+            blockNo = slotAt(block, slotOf(block, blockNo, hash));
+            storage.read(blockNo, block);
+        } while (block[1] == TYPE_NODE);
+
+        // Walk the packed entries in place, only comparing names when the hash matches
+        ByteBuffer buf = ByteBuffer.wrap(block);
+        int count = buf.getShort(2) & 0xFFFF;
+        int pos = LEAF_HEADER_SIZE;
+        for (int i = 0; i < count; i++) {
+            int nameLen = block[pos + 12] & 0xFF;
+            if (buf.getInt(pos) == hash && nameLen == nameBytes.length
+                    && Arrays.equals(block, pos + ENTRY_HEADER_SIZE, pos + ENTRY_HEADER_SIZE + nameLen, nameBytes, 0, nameLen)) {
+                return buf.getLong(pos + 4);
+            }
+            pos += ENTRY_HEADER_SIZE + nameLen;
+        }
+        return -1;
+    }
+
+    /**
+     * Adds an entry, splitting its leaf first if it's full. Throws a runtime exception if the name is taken.
+     */
+    void insert(String name, long inodePtr) {
+        insertAll(Map.of(name, inodePtr));
+    }
+
+    /**
+     * Adds many entries at once. The leaves are parsed and split in memory, and each leaf that changed is
+     * written once at the end, in block order, however many of the entries landed in it.
+     * Throws a runtime exception if any of the names is taken or the directory fills up, before anything is written.
+     * @param entries Name -> inode pointer.
+     */
+    void insertAll(Map<String, Long> entries) {
+        Changes changes = new Changes();
+        List<Entry> toInsert = new ArrayList<>(entries.size());
+        for (Map.Entry<String, Long> e : entries.entrySet()) {
+            byte[] nameBytes = encodeName(e.getKey());
+            Entry entry = new Entry(hash(nameBytes), e.getValue(), nameBytes);
+            if (changes.leaves.get(changes.find(entry.hash()).leaf()).contains(entry)) throw new RuntimeException("Entry already exists: " + e.getKey());
+            toInsert.add(entry);
+        }
+
+        for (Entry entry : toInsert) {
+            while (true) {
+                Path path = changes.find(entry.hash());
+                Leaf leaf = changes.leaves.get(path.leaf());
+                if (leaf.used + ENTRY_HEADER_SIZE + entry.name().length <= blockSize) {
+                    leaf.add(entry);
+                    break;
+                }
+                changes.split(path);
+            }
+        }
+        changes.commit();
+    }
+
+    /**
+     * Removes the entry called <code>name</code>, merging its leaf with its buddy if they've both emptied out.
+     * @return Whether there was such an entry.
+     */
+    boolean remove(String name) {
+        byte[] nameBytes = encodeName(name);
+        int hash = hash(nameBytes);
+        Changes changes = new Changes();
+        Path path = changes.find(hash);
+        Leaf leaf = changes.leaves.get(path.leaf());
+        if (!leaf.entries.removeIf(e -> e.hash() == hash && Arrays.equals(e.name(), nameBytes))) return false;
+        leaf.used = usedBytes(leaf.entries);
+        leaf.dirty = true;
+        changes.merge(path, hash);
+        changes.commit();
+        return true;
+    }
+
+    /**
+     * @return Every entry, name -> inode pointer, in hash order.
+     */
+    LinkedHashMap<String, Long> list() {
+        LinkedHashMap<String, Long> result = new LinkedHashMap<>();
+        listTable(readRoot(), 0, result, new HashSet<>());
+        return result;
+    }
+
+    private void listTable(byte[] table, long tableBlock, Map<String, Long> result, Set<Long> seen) {
+        for (int i = 0; i < (1 << table[OFFSET_DEPTH]); i++) {
+            long block = slotAt(table, i);
+            if (!seen.add(block)) continue;  // several slots share a leaf until it splits
+            byte[] raw = new byte[blockSize];
+            storage.read(block, raw);
+            if (raw[1] == TYPE_NODE) {
+                listTable(raw, block, result, seen);
+                continue;
+            }
+            for (Entry e : parseLeaf(raw)) result.put(new String(e.name(), StandardCharsets.UTF_8), e.inodePtr());
+        }
+    }
+
+    private byte[] readRoot() {
+        byte[] root = new byte[blockSize];
+        storage.read(0, root);
+        if (ByteBuffer.wrap(root).getInt() != MAGIC) throw new RuntimeException("Not an indexed directory");
+        return root;
+    }
+
+    /** Number of hash bits the tables above <code>table</code> already used. */
+    private static int shift(byte[] table, long tableBlock) {
+        return (tableBlock == 0) ? 0 : table[0];
+    }
+
+    /** Slot of <code>table</code> that <code>hash</code> goes to. */
+    private static int slotOf(byte[] table, long tableBlock, int hash) {
+        return (hash >>> shift(table, tableBlock)) & ((1 << table[OFFSET_DEPTH]) - 1);
+    }
+
+    private static long slotAt(byte[] table, int slot) {
+        return ByteBuffer.wrap(table).getInt(TABLE_HEADER_SIZE + slot * Integer.BYTES);
+    }
+
+    /** Points every slot of <code>table</code> that points at block <code>from</code> at block <code>to</code>. */
+    private static void replaceSlots(byte[] table, long from, long to) {
+        ByteBuffer buf = ByteBuffer.wrap(table);
+        for (int i = 0; i < (1 << table[OFFSET_DEPTH]); i++) {
+            int slotPos = TABLE_HEADER_SIZE + i * Integer.BYTES;
+            if (buf.getInt(slotPos) == from) buf.putInt(slotPos, (int) to);
+        }
+    }
+
+    /** First block on the root's free list, 0 if it's empty. */
+    private static long freeHead(byte[] root) {
+        return ((root[5] & 0xFF) << 16) | ((root[6] & 0xFF) << 8) | (root[7] & 0xFF);
+    }
+
+    private static void setFreeHead(byte[] root, long block) {
+        root[5] = (byte) (block >>> 16);
+        root[6] = (byte) (block >>> 8);
+        root[7] = (byte) block;
+    }
+
+    private List<Entry> parseLeaf(byte[] leaf) {
+        ByteBuffer buf = ByteBuffer.wrap(leaf);
+        int count = buf.getShort(2) & 0xFFFF;
+        List<Entry> entries = new ArrayList<>(count + 1);
+        buf.position(LEAF_HEADER_SIZE);
+        for (int i = 0; i < count; i++) {
+            int hash = buf.getInt();
+            long inodePtr = buf.getLong();
+            byte[] name = new byte[buf.get() & 0xFF];
+            buf.get(name);
+            entries.add(new Entry(hash, inodePtr, name));
+        }
+        return entries;
+    }
+
+    private byte[] encodeLeaf(int localDepth, List<Entry> entries) {
+        ByteBuffer buf = ByteBuffer.allocate(blockSize);
+        buf.put((byte) localDepth).put(TYPE_LEAF).putShort((short) entries.size()).putShort((short) usedBytes(entries));
+        buf.position(LEAF_HEADER_SIZE);
+        for (Entry e : entries) buf.putInt(e.hash()).putLong(e.inodePtr()).put((byte) e.name().length).put(e.name());
+        return buf.array();
+    }
+
+    private static int usedBytes(List<Entry> entries) {
+        int used = LEAF_HEADER_SIZE;
+        for (Entry e : entries) used += ENTRY_HEADER_SIZE + e.name().length;
+        return used;
+    }
+
+    private static byte[] encodeName(String name) {
+        byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length == 0 || bytes.length > MAX_NAME_BYTES) throw new RuntimeException("Invalid file name length: " + name);
+        return bytes;
+    }
+
+    /** 32-bit FNV-1a. Cheap and spreads similar names (log.1, log.2, ...) well across the low bits. */
+    private static int hash(byte[] name) {
+        int h = 0x811C9DC5;
+        for (byte b : name) {
+            h ^= b & 0xFF;
+            h *= 0x01000193;
+        }
+        return h;
+    }
+}
@@ -0,0 +1,10 @@
+package jbash.filesystem;
+
+/**
+ * A run of <code>length</code> contiguous data blocks starting at block <code>start</code>.
+ */
+record Extent(long start, long length) {
+    long end() {
+        return start + length;
+    }
+}
@@ -1,7 +1,11 @@
 package jbash.filesystem;
 
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
 public class File extends FileSystemObject {
-    private String contents;
+    private String contents;  // on a mounted disk, null until first read
 
     public File(String name, Directory parent) {
         super(name, parent);
@@ -13,11 +17,49 @@ public class File extends FileSystemObject {
         this.contents = contents;
     }
 
+    /** A file that already exists on a mounted disk. Its contents are read on first use. */
+    File(String name, Directory parent, Mount mount, long inodePtr) {
+        super(name, parent, mount, inodePtr);
+        this.contents = null;
+    }
+
     public String getContents() {
+        if (contents == null) {
+            Inode inode = inode();
+            byte[] data = new byte[(int) inode.getSize()];
+            mount.volume.readData(inode, data);
+            contents = new String(data, StandardCharsets.UTF_8);
+        }
         return contents;
     }
 
+    /**
+     * Opens the file's contents for reading a piece at a time. On a disk, sequential reads get read-ahead,
+     * see FileStream.
+     */
+    public InputStream openStream() {
+        if (mount == null) return new ByteArrayInputStream(contents.getBytes(StandardCharsets.UTF_8));
+        return new FileStream(mount.volume, inode());
+    }
+
     public void setContents(String newContents) {
+        if (mount != null) mount.volume.writeData(inode(), newContents.getBytes(StandardCharsets.UTF_8));
         this.contents = newContents;
     }
+
+    /**
+     * Reserves disk space for the file to grow to <code>sizeBytes</code>, so writing it up to that size doesn't allocate.
+     * Its contents don't change. Does nothing for a file that isn't on a disk.
+     */
+    public void preallocate(long sizeBytes) {
+        if (mount != null) mount.volume.preallocate(inode(), sizeBytes);
+    }
+
+    @Override
+    void save(Mount mount) {
+        Inode inode = new Inode(FileType.File);
+        this.inodePtr = mount.volume.writeInodeToDisk(inode, getParent().inodePtr);
+        this.mount = mount;
+        if (!contents.isEmpty()) mount.volume.writeData(inode, contents.getBytes(StandardCharsets.UTF_8));
+    }
 }
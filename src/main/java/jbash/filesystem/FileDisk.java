@@ -0,0 +1,89 @@
+package jbash.filesystem;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Path;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * BlockDevice on an image file. Each read or write is a seek() followed by a RandomAccessFile call, and the
+ * asynchronous ones go through an AsyncDisk on the same file, so many of them can be in flight at once.
+ */
+class FileDisk implements BlockDevice {
+    private final RandomAccessFile fs;
+    private final AsyncDisk async;
+
+    /**
+     * @param name Image file. Created empty if it doesn't exist.
+     * @param queueDepth Maximum number of asynchronous reads and writes in flight at once.
+     */
+    FileDisk(String name, int queueDepth) throws IOException {
+        this.fs = new RandomAccessFile(name, "rw");
+        this.async = new AsyncDisk(Path.of(name), queueDepth);
+    }
+
+    public long size() {
+        try {
+            return fs.length();
+        } catch (IOException e) {
+            throw new RuntimeException("Cannot read disk size", e);
+        }
+    }
+
+    public void resize(long sizeBytes) {
+        try {
+            synchronized (fs) {
+                fs.setLength(sizeBytes);
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Cannot resize disk to " + sizeBytes + " bytes", e);
+        }
+    }
+
+    public void read(long pos, byte[] dst, int off, int len) {
+        try {
+            synchronized (fs) {
+                fs.seek(pos);
+                fs.readFully(dst, off, len);
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Cannot read disk at offset " + pos, e);
+        }
+    }
+
+    public void write(long pos, byte[] src, int off, int len) {
+        try {
+            synchronized (fs) {
+                fs.seek(pos);
+                fs.write(src, off, len);
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Cannot write disk at offset " + pos, e);
+        }
+    }
+
+    public CompletableFuture<Void> readAsync(long pos, byte[] dst, int off, int len) {
+        return async.read(pos, dst, off, len);
+    }
+
+    public CompletableFuture<Void> writeAsync(long pos, byte[] src, int off, int len) {
+        return async.write(pos, src, off, len);
+    }
+
+    public void force() {
+        try {
+            fs.getChannel().force(false);  // also covers anything written through the async channel
+        } catch (IOException e) {
+            throw new RuntimeException("Cannot sync disk", e);
+        }
+    }
+
+    public void close() {
+        try {
+            async.close();
+            fs.close();
+        } catch (IOException e) {
+            throw new RuntimeException("Cannot close disk", e);
+        }
+    }
+}
@@ -0,0 +1,58 @@
+package jbash.filesystem;
+
+import java.io.InputStream;
+import java.util.Objects;
+
+/**
+ * A file on a disk, open for reading a piece at a time. Each stream keeps its own position and read-ahead
+ * state, so one that's read front to back gets the data ahead of it prefetched into the block cache in
+ * growing windows, and reads mostly come out of the cache. See ReadAhead.
+ * The inode is looked up again for every read, so a stream that's open while the file is rewritten reads the
+ * new contents from where it got to, never blocks the old ones were freed from.
+ */
+public class FileStream extends InputStream {
+    // Two windows can be in the cache at once, so this keeps read-ahead to a quarter of the default cache
+    private static final long MAX_READ_AHEAD_BYTES = 512 * 1024;
+
+    private final Volume volume;
+    private final long inodePtr;
+    private final ReadAhead readAhead = new ReadAhead(MAX_READ_AHEAD_BYTES);
+    private long position = 0;
+
+    FileStream(Volume volume, Inode inode) {
+        this.volume = volume;
+        this.inodePtr = inode.inodePtr;
+    }
+
+    private Inode inode() {
+        return volume.readInodeFromDisk(inodePtr);
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) {
+        Objects.checkFromIndexSize(off, len, b.length);
+        if (len == 0) return 0;
+        int n = volume.read(inode(), position, b, off, len, readAhead);
+        if (n == 0) return -1;
+        position += n;
+        return n;
+    }
+
+    @Override
+    public int read() {
+        byte[] one = new byte[1];
+        return (read(one, 0, 1) == -1) ? -1 : one[0] & 0xFF;
+    }
+
+    @Override
+    public long skip(long n) {
+        long skipped = Math.max(0, Math.min(n, inode().getSize() - position));
+        position += skipped;
+        return skipped;
+    }
+
+    @Override
+    public int available() {
+        return (int) Math.max(0, Math.min(Integer.MAX_VALUE, inode().getSize() - position));
+    }
+}
@@ -2,33 +2,204 @@ package jbash.filesystem;
 
 import jbash.environment.JKernel;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Optional;
+import java.util.Set;
 
 public class FileSystemAPI {
-    private final Directory root;
+    private Directory root;
     private Directory currentDirectory;
 
     final TBFF disk;
+    private Mount mount = null;  // set once the tree is loaded from disk, see mount()
+    private final List<Mount> mounts = new ArrayList<>();  // volumes mounted on directories, see mountAt()
+    private static final int MAX_LOADED_OBJECTS = 10000;
     private static FileSystemAPI instance = null;
     private static JKernel kernel = JKernel.getInstance();
 
     private FileSystemAPI() {
         this.root = new Directory("root", null);
-        this.disk = new TBFF("fs10m.tbff", 10*1024*1024);  // 10MB filesystem
+        this.disk = new TBFF("fs10m.tbff", 10*1024*1024, TBFFOptions.defaults().withDevice(diskDevice()));  // 10MB filesystem
         this.currentDirectory = this.root;
     }
 
+    /**
+     * Picks what the disk is stored on from the <code>jbash.disk</code> system property: <code>file</code> (the
+     * default), <code>mapped</code> or <code>memory</code>. A memory disk starts out empty every time and never
+     * touches the image file.
+     */
+    private static DeviceType diskDevice() {
+        String device = System.getProperty("jbash.disk", "file");
+        try {
+            return DeviceType.valueOf(device.toUpperCase());
+        } catch (IllegalArgumentException e) {
+            throw new RuntimeException("Unknown disk device: " + device);
+        }
+    }
+
     public static FileSystemAPI getInstance() {
         if (instance == null) { instance = new FileSystemAPI(); }
         return instance;
     }
 
     public void reset() {  // needed for unit testing
+        // The old instance's disk has to let go of the image before the new one opens it
+        if (instance != null) instance.disk.unmount();
         instance = new FileSystemAPI();
     }
 
+    /**
+     * Replaces the in-memory tree with the one stored on disk. Only the root directory is read now;
+     * everything below it is loaded as paths reach it, and subtrees nobody is in get evicted again once more than
+     * MAX_LOADED_OBJECTS files and directories are in memory. Changes are written straight through to the disk.
+     */
+    public void mount() {
+        mountRoot(disk);
+    }
+
+    /** Makes <code>volume</code> the whole tree. Volumes mounted on directories of the old one are dropped. */
+    private void mountRoot(Volume volume) {
+        this.mount = new Mount(volume, MAX_LOADED_OBJECTS);
+        this.root = new Directory("root", null, mount, volume.getRootInodePtr());
+        this.currentDirectory = this.root;
+        mounts.clear();
+    }
+
+    Mount getMount() {
+        return mount;
+    }
+
+    /**
+     * Cleanly unmounts the disk, so the next start doesn't have to check it. Call once, on the way out.
+     */
+    public void unmount() {
+        disk.unmount();
+    }
+
+    /**
+     * Mounts the disk's snapshot instead of the live tree, read-only. Every operation that would change
+     * the tree fails until mount() or reset() is called.
+     * @return true if the disk has a snapshot to mount, false otherwise.
+     */
+    public boolean mountSnapshot() {
+        Volume snapshot = disk.getSnapshot();
+        if (snapshot == null) return false;
+        mountRoot(snapshot);
+        return true;
+    }
+
+    /**
+     * Mounts this session's disk as a writable layer over <code>base</code>, see OverlayVolume. Everything on the base
+     * shows through until it's changed or removed here, and changes only ever go to this session's disk. Starting a
+     * session this way costs no more than an empty disk, even more so with <code>-Djbash.disk=memory</code>.
+     * Once used as the upper layer, this session's disk should always be mounted this way.
+     * @param base Shared disk to read from. It's never written, and any number of sessions can use it at once,
+     *             along with its block cache. It must not change while they do.
+     * @return true if the overlay was mounted, false if <code>base</code> is this session's own disk.
+     */
+    public boolean mountOverlay(TBFF base) {
+        if (base == disk) return false;
+        mountRoot(new OverlayVolume(disk, base));
+        return true;
+    }
+
+    /**
+     * Mounts another disk over the directory at <code>path</code>, the way a second drive is mounted on Linux.
+     * Paths through that directory lead into the disk's root from then on, and whatever the directory held is
+     * hidden until unmountAt() is called. Every disk has its own block cache and allocator, so e.g. scratch data can
+     * go on a fast disk in memory and bulk data on a big memory-mapped one:
+     * <pre>
+     *   FSAPI.mountAt("/tmp", new TBFF("tmp", 64*1024*1024, TBFFOptions.defaults().withDevice(DeviceType.MEMORY)));
+     * </pre>
+     * Files can't be moved from one disk to another, and the disk is still the caller's to unmount() once done.
+     * @param path Absolute or relative path to the directory to mount on. Can't be the root or a mount point.
+     * @param volume Disk to mount. Can't already be mounted.
+     * @return true if the disk was mounted, false if the directory doesn't exist, is already a mount point, or
+     *         holds the current directory, or if the disk is already mounted.
+     */
+    public boolean mountAt(String path, TBFF volume) {
+        Directory covered = getFileSystemDirectory(path).orElse(null);
+        if (covered == null || covered == root || isMountPoint(covered) || isBelow(currentDirectory, covered)) return false;
+        if (volume == disk || mounts.stream().anyMatch(m -> m.volume == volume)) return false;
+
+        Mount mounted = new Mount(volume, MAX_LOADED_OBJECTS, covered);
+        Directory parent = covered.getParent();
+        Directory volumeRoot;
+        if (covered.mount == null) {
+            volumeRoot = new Directory(covered.getName(), parent, mounted, volume.getRootInodePtr());
+        } else {
+            // Register it with the disk below, so the root takes the directory's place whenever it gets loaded again
+            covered.mount.mountPoints.put(covered.inodePtr, mounted);
+            volumeRoot = (Directory) covered.mount.load(covered.getName(), parent, covered.inodePtr);
+            covered.evictChildren(Set.of());
+            covered.mount.adjustLoaded(-1);
+        }
+        parent.replaceChild(covered, volumeRoot);
+        mounts.add(mounted);
+        return true;
+    }
+
+    /**
+     * Unmounts the disk mounted at <code>path</code> with mountAt(), bringing back the directory it was mounted over.
+     * The disk itself stays open.
+     * @param path Absolute or relative path to the mount point.
+     * @return true if the disk was unmounted, false if nothing is mounted there, or if it holds the current directory
+     *         or another mount point.
+     */
+    public boolean unmountAt(String path) {
+        Directory volumeRoot = getFileSystemDirectory(path).orElse(null);
+        if (volumeRoot == null || !isMountPoint(volumeRoot) || isBelow(currentDirectory, volumeRoot)) return false;
+        Mount mounted = volumeRoot.mount;
+        if (!mounted.mountPoints.isEmpty()) return false;
+
+        Directory parent = volumeRoot.getParent();
+        Directory covered = mounted.covered;
+        if (covered.mount != null) {
+            covered.mount.mountPoints.remove(covered.inodePtr);
+        }
+        parent.replaceChild(volumeRoot, covered);
+        covered.setParent(parent);  // the one it had may have been evicted since
+        covered.updatePath();
+        mounts.remove(mounted);
+        return true;
+    }
+
+    /**
+     * Returns the paths of every disk mounted with mountAt(), in the order they were mounted.
+     * @return Mount point paths.
+     */
+    public List<String> getMountPoints() {
+        return mounts.stream().map(m -> m.covered.getPath()).toList();
+    }
+
+    /** Whether <code>dir</code> is the root of a disk mounted on a directory. */
+    private boolean isMountPoint(Directory dir) {
+        return dir.mount != null && dir.mount.covered != null && dir.getParent().mount != dir.mount;
+    }
+
+    /** Whether <code>dir</code> is <code>ancestor</code> or somewhere inside it. */
+    private static boolean isBelow(Directory dir, Directory ancestor) {
+        for (Set<Directory> seen = new HashSet<>(); seen.add(dir); dir = dir.getParent()) {  // root is its own parent
+            if (dir == ancestor) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Drops every loaded subtree of a mounted disk except the path to the current directory, on every disk mounted
+     * with mountAt() too. Nothing happens if no disk is mounted.
+     * @return Number of files and directories dropped from memory.
+     */
+    public int evictInactive() {
+        if (mount == null && mounts.isEmpty()) return 0;
+        Set<Directory> pinned = new HashSet<>();
+        for (Directory dir = currentDirectory; pinned.add(dir); dir = dir.getParent());  // root is its own parent
+        return root.evictChildren(pinned);
+    }
+
     /**
      * Returns the directory with the filepath <code>path</code>.
      * If such an object exists but is not a directory, or no such object exists, Optional.empty() is returned.
@@ -62,6 +233,7 @@ public class FileSystemAPI {
      * @return The file system object, or Optional.empty().
      */
     public Optional<FileSystemObject> getFileSystemObject(String path) {
+        if ((mount != null && mount.overLimit()) || mounts.stream().anyMatch(Mount::overLimit)) { evictInactive(); }
         if (path.isEmpty()) { return Optional.empty(); }
         boolean directorySearch = path.endsWith("/"); // Paths ending in / can only reference directories
         List<String> pathArgs = Arrays.stream(path.split("/")).filter(s -> !s.isEmpty()).toList();
@@ -106,8 +278,9 @@ public class FileSystemAPI {
 
     /**
      * Moves a file system object from its current location to a new location. Returns true
-     * if successful and false if unsuccessful. Fails if the object that is being moved cannot be found
-     * or if the new location cannot be found or is found but is not a directory.
+     * if successful and false if unsuccessful. Fails if the object that is being moved cannot be found,
+     * if the new location cannot be found or is found but is not a directory, if the new location already
+     * has a child with the same name, or if the object would have to move to another disk (see mountAt()).
      * @param movedFSOPath Absolute or relative path to the object to be moved
      * @param newLocationPath Absolute or relative path to the directory to move to
      * @return true if operation is successful, else false
@@ -119,6 +292,9 @@ public class FileSystemAPI {
         if (optionalMovedFSO.isEmpty() || optionalNewDirectory.isEmpty()) { return false; }
         FileSystemObject movedFSO = optionalMovedFSO.get();
         Directory newParent = optionalNewDirectory.get();
+        if (isReadOnly(movedFSO) || isReadOnly(newParent)) { return false; }
+        if (movedFSO.mount != newParent.mount || movedFSO instanceof Directory dir && isMountPoint(dir)) { return false; }
+        if (newParent.findChild(movedFSO.getName()).isPresent()) { return false; }
         updateParent(movedFSO, newParent);
         return true;
     }
@@ -133,7 +309,7 @@ public class FileSystemAPI {
      * @return true if creation is successful, false otherwise
      */
     public boolean createFile(String name, Directory parent) {
-        if (parent == null || name.isEmpty()) { return false; }
+        if (parent == null || name.isEmpty() || isReadOnly(parent)) { return false; }
         if (parent.findChild(name).isPresent()) { return false; }
         File newFile = new File(name, parent);
         parent.addChild(newFile);
@@ -151,7 +327,7 @@ public class FileSystemAPI {
      */
     public boolean createFile(String name, String parentPath) {
         Optional<Directory> parentOptional = getFileSystemDirectory(parentPath);
-        if (parentOptional.isEmpty() || name.isEmpty()) { return false; }
+        if (parentOptional.isEmpty() || name.isEmpty() || isReadOnly(parentOptional.get())) { return false; }
         Directory parent = parentOptional.get();
         if (parent.findChild(name).isPresent()) { return false; }
         File newFile = new File(name, parent);
@@ -171,7 +347,7 @@ public class FileSystemAPI {
      * @return true if creation is successful, false otherwise
      */
     public boolean createFile(String name, Directory parent, String contents) {
-        if (parent == null || name.isEmpty()) { return false; }
+        if (parent == null || name.isEmpty() || isReadOnly(parent)) { return false; }
         if (parent.findChild(name).isPresent()) { return false; }
         File newFile = new File(name, parent, contents);
         parent.addChild(newFile);
@@ -190,7 +366,7 @@ public class FileSystemAPI {
      */
     public boolean createFile(String name, String parentPath, String contents) {
         Optional<Directory> parentOptional = getFileSystemDirectory(parentPath);
-        if (parentOptional.isEmpty() || name.isEmpty()) { return false; }
+        if (parentOptional.isEmpty() || name.isEmpty() || isReadOnly(parentOptional.get())) { return false; }
         Directory parent = parentOptional.get();
         if (parent.findChild(name).isPresent()) { return false; }
         File newFile = new File(name, parent, contents);
@@ -208,7 +384,7 @@ public class FileSystemAPI {
      * @return true if creation is successful, false otherwise
      */
     public boolean createDirectory(String name, Directory parent) {
-        if (parent == null || name.isEmpty()) { return false; }
+        if (parent == null || name.isEmpty() || isReadOnly(parent)) { return false; }
         if (parent.findChild(name).isPresent()) { return false; }
         Directory newDirectory = new Directory(name, parent);
         parent.addChild(newDirectory);
@@ -226,7 +402,7 @@ public class FileSystemAPI {
      */
     public boolean createDirectory(String name, String parentPath) {
         Optional<FileSystemObject> parentOptional = getFileSystemObject(parentPath);
-        if (parentOptional.isEmpty() || !(parentOptional.get() instanceof Directory parent) || name.isEmpty()) { return false; }
+        if (parentOptional.isEmpty() || !(parentOptional.get() instanceof Directory parent) || name.isEmpty() || isReadOnly(parent)) { return false; }
         if (parent.findChild(name).isPresent()) { return false; }
         Directory newDirectory = new Directory(name, parent);
         parent.addChild(newDirectory);
@@ -254,6 +430,15 @@ public class FileSystemAPI {
         return createDirectory(name, parentPath);
     }
 
+    /**
+     * Starts a batch of directories and files to create together, which is much faster than creating them one by
+     * one when there are a lot of them. See Batch.
+     * @return An empty batch. Nothing is created until its commit() is called.
+     */
+    public Batch newBatch() {
+        return new Batch(this);
+    }
+
     /**
      * Returns the root directory of the file system.
      * @return Root directory
@@ -262,6 +447,13 @@ public class FileSystemAPI {
         return this.root;
     }
 
+    /**
+     * Whether <code>FSO</code> lives on a read-only volume, like a mounted snapshot.
+     */
+    boolean isReadOnly(FileSystemObject FSO) {
+        return FSO.mount != null && FSO.mount.volume.isReadOnly();
+    }
+
     /**
      * Changes the ownership of a filesystem object from its current parent to a new parent <code>newParent</code>.
      * @param FSO File system object being reassigned
@@ -303,12 +495,28 @@ public class FileSystemAPI {
      */
     public boolean writeToFile(String path, String content) {
         var file = getFileSystemFile(path).orElse(null);
-        if (file == null) return false;
+        if (file == null || isReadOnly(file)) return false;
 
         file.setContents(content);
         return true;
     }
 
+    /**
+     * Reserves disk space for the given file to grow to <code>sizeBytes</code>, without writing anything.
+     * Writes that keep it within that size then go into the reserved blocks in place, so a file that is appended to
+     * over and over doesn't pay for allocation each time or end up fragmented. Its contents don't change.
+     * @param path Absolute or relative path to file.
+     * @param sizeBytes Size to reserve space for.
+     * @return true if the space was reserved, false if the file doesn't exist, is read-only, or isn't on a disk.
+     */
+    public boolean preallocate(String path, long sizeBytes) {
+        var file = getFileSystemFile(path).orElse(null);
+        if (file == null || isReadOnly(file) || file.mount == null) return false;
+
+        file.preallocate(sizeBytes);
+        return true;
+    }
+
     /**
      * Returns a reference to the current directory.
      * @return The current directory
@@ -5,6 +5,10 @@ public abstract class FileSystemObject {
     private Directory parent;
     private String path;
 
+    // Set once the object lives on a mounted disk, see Mount
+    Mount mount = null;
+    long inodePtr = -1;
+
     public FileSystemObject(String name, Directory parent) {
         this.name = name;
         if (parent == null) {
@@ -16,6 +20,12 @@ public abstract class FileSystemObject {
         }
     }
 
+    FileSystemObject(String name, Directory parent, Mount mount, long inodePtr) {
+        this(name, parent);
+        this.mount = mount;
+        this.inodePtr = inodePtr;
+    }
+
     public String getPath() {
         return this.path;
     }
@@ -41,4 +51,14 @@ public abstract class FileSystemObject {
     public void setParent(Directory newParent) {
        this.parent = newParent;
     }
+
+    /**
+     * Writes a new, in-memory object out to <code>mount</code>'s disk, giving it an inode.
+     * @param mount Mount the object is being added to.
+     */
+    abstract void save(Mount mount);
+
+    Inode inode() {
+        return mount.volume.readInodeFromDisk(inodePtr);
+    }
 }
@@ -0,0 +1,68 @@
+package jbash.filesystem;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * In-memory index from block content hashes to data blocks holding that content, for deduplication.
+ * It's bounded: past <code>capacity</code> entries the least recently used one is dropped, which only means
+ * a duplicate of it won't be noticed. Nothing is persisted, the index starts out empty on every mount.
+ * <p>
+ * A hit is only a candidate. Hashes can collide, so the caller compares the block's contents before sharing it.
+ */
+class FingerprintIndex {
+    private final int capacity;
+    private final LinkedHashMap<Long, Long> byHash;
+    private final HashMap<Long, Long> byBlock = new HashMap<>();  // the same entries the other way round
+
+    FingerprintIndex(int capacity) {
+        this.capacity = Math.max(1, capacity);
+        this.byHash = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, Long> eldest) {
+                if (size() <= FingerprintIndex.this.capacity) return false;
+                byBlock.remove(eldest.getValue());
+                return true;
+            }
+        };
+    }
+
+    /** @return A block that may hold content with hash <code>hash</code>, or -1. */
+    long lookup(long hash) {
+        Long block = byHash.get(hash);
+        return (block == null) ? -1 : block;
+    }
+
+    /** Records that data block <code>block</code> holds content with hash <code>hash</code>. */
+    void put(long hash, long block) {
+        forget(block);
+        Long previous = byHash.put(hash, block);
+        if (previous != null) byBlock.remove(previous);
+        byBlock.put(block, hash);
+    }
+
+    /** Drops the entries for <code>extent</code>'s blocks, which are being freed or reused. */
+    void forget(Extent extent) {
+        if (byBlock.isEmpty()) return;
+        for (long block = extent.start(); block < extent.end(); block++) forget(block);
+    }
+
+    void forget(long block) {
+        Long hash = byBlock.remove(block);
+        if (hash != null) byHash.remove(hash);
+    }
+
+    /**
+     * 64-bit FNV-1a style hash of <code>len</code> bytes, taken a long at a time. The length is mixed in, so a short
+     * last block never matches a full block that merely starts the same way.
+     */
+    static long hash(byte[] data, int off, int len) {
+        long h = 0xcbf29ce484222325L ^ len;
+        ByteBuffer buf = ByteBuffer.wrap(data, off, len);
+        while (buf.remaining() >= Long.BYTES) h = (h ^ buf.getLong()) * 0x100000001b3L;
+        while (buf.hasRemaining()) h = (h ^ buf.get()) * 0x100000001b3L;
+        return h ^ (h >>> 29);
+    }
+}
@@ -1,5 +1,6 @@
 package jbash.filesystem;
 
+import java.nio.ByteBuffer;
 
 enum FileType {
     File,
@@ -10,17 +11,56 @@ record Permission(boolean r, boolean w, boolean x) {};
 record FilePerms(Permission owner, Permission group, Permission other) {}
 
 
+/**
+ * In-memory copy of a file's metadata.
+ * <p>
+ * On disk an inode is a fixed SIZE_BYTES record, encoded and decoded as one buffer:
+ * <pre>
+ *   0  1 byte   file type (0 = free slot, 1 = file, 2 = directory)
+ *   1  3 bytes  owner, group and other permissions, rwx as bits 2..0
+ *   4  4 bytes  user id
+ *   8  4 bytes  group id
+ *  12  4 bytes  number of references
+ *  16  8 bytes  size in bytes
+ *  24  8 bytes  creation time
+ *  32  8 bytes  modification time
+ *  40  8 bytes  access time
+ *  48  4 bytes  flags, see FLAG_INLINE and FLAG_COMPRESSED
+ *  52  4 bytes  reserved
+ *  56 96 bytes  12 direct data block pointers, 0 = none
+ * 152  8 bytes  single-indirect block: a block of pointers to data blocks
+ * 160  8 bytes  double-indirect block: a block of pointers to single-indirect blocks
+ * 168           free for later use
+ * </pre>
+ * A file of at most INLINE_CAPACITY bytes is stored inline instead: its contents take the place of everything
+ * from offset 56 on, and it has no blocks at all.
+ * A compressed file's blocks hold the stored form described in CompressedData, while the size stays the real one.
+ */
 public class Inode {
+    static final int SIZE_BYTES = 256;
+    private static final int OFFSET_FLAGS = 48;
+    private static final int OFFSET_DATA_PTRS = 56;
+    static final int NUM_DIRECT = 12;
+    static final int INLINE_CAPACITY = SIZE_BYTES - OFFSET_DATA_PTRS;
+    private static final int FLAG_INLINE = 1;
+    private static final int FLAG_COMPRESSED = 2;
+
     FileType filetype;
     FilePerms perms;
     int userId;
     int groupId;
     int numRefs;
+    long size;
     long tsCreate;
     long tsModify;
     long tsAccess;
     long[] dataPtrs;
+    long indirect;
+    long doubleIndirect;
+    byte[] inlineData;  // contents of a small file kept in the inode itself, null if the file uses blocks
+    boolean compressed; // blocks hold the compressed form of the data
     long inodePtr;
+    BlockMap blockMap;  // decoded block layout, built by TBFF on first use. Not stored.
 
     Inode(FileType filetype) {
         this(filetype, parsePerms("rw-r--r--"));
@@ -32,11 +72,12 @@ public class Inode {
         this.userId = 0;
         this.groupId = 0;
         this.numRefs = 1;
-        this.tsCreate = 0;
-        this.tsModify = 0;
-        this.tsAccess = 0;
-        dataPtrs = new long[12];
-        inodePtr = TBFF.writeInodeToDisk(this);
+        this.size = 0;
+        this.tsCreate = System.currentTimeMillis();
+        this.tsModify = tsCreate;
+        this.tsAccess = tsCreate;
+        dataPtrs = new long[NUM_DIRECT];
+        inodePtr = -1;  // set once a disk writes this inode out, see TBFF.writeInodeToDisk()
     }
 
     /**
@@ -52,6 +93,73 @@ public class Inode {
         );
     }
 
+    /**
+     * Packs this inode into its SIZE_BYTES on-disk form.
+     * @return A new buffer holding the encoded inode.
+     */
+    byte[] encode() {
+        ByteBuffer buf = ByteBuffer.allocate(SIZE_BYTES);
+        buf.put((byte) getFileType());
+        buf.put(encodePermission(perms.owner()));
+        buf.put(encodePermission(perms.group()));
+        buf.put(encodePermission(perms.other()));
+        buf.putInt(userId).putInt(groupId).putInt(numRefs);
+        buf.putLong(size).putLong(tsCreate).putLong(tsModify).putLong(tsAccess);
+        buf.putInt(((inlineData != null) ? FLAG_INLINE : 0) | (compressed ? FLAG_COMPRESSED : 0));
+        buf.position(OFFSET_DATA_PTRS);
+        if (inlineData != null) {
+            buf.put(inlineData);
+            return buf.array();
+        }
+        for (long dataPtr : dataPtrs) buf.putLong(dataPtr);
+        buf.putLong(indirect).putLong(doubleIndirect);
+        return buf.array();
+    }
+
+    /**
+     * Unpacks an inode from its on-disk form.
+     * @param raw Buffer holding an encoded inode.
+     * @param off Where the inode starts in <code>raw</code>.
+     * @return The decoded inode, or null if the slot is free.
+     */
+    static Inode decode(byte[] raw, int off) {
+        ByteBuffer buf = ByteBuffer.wrap(raw, off, SIZE_BYTES);
+        byte type = buf.get();
+        if (type == 0) return null;
+        if (type != 1 && type != 2) throw new RuntimeException("Corrupt inode: bad file type " + type);
+
+        FilePerms perms = new FilePerms(decodePermission(buf.get()), decodePermission(buf.get()), decodePermission(buf.get()));
+        Inode inode = new Inode((type == 1) ? FileType.File : FileType.Directory, perms);
+        inode.userId = buf.getInt();
+        inode.groupId = buf.getInt();
+        inode.numRefs = buf.getInt();
+        inode.size = buf.getLong();
+        inode.tsCreate = buf.getLong();
+        inode.tsModify = buf.getLong();
+        inode.tsAccess = buf.getLong();
+        int flags = buf.getInt();
+        inode.compressed = (flags & FLAG_COMPRESSED) != 0;
+        buf.position(off + OFFSET_DATA_PTRS);
+        if ((flags & FLAG_INLINE) != 0) {
+            if (inode.size > INLINE_CAPACITY) throw new RuntimeException("Corrupt inode: " + inode.size + " bytes inline");
+            inode.inlineData = new byte[(int) inode.size];
+            buf.get(inode.inlineData);
+            return inode;
+        }
+        for (int i = 0; i < inode.dataPtrs.length; i++) inode.dataPtrs[i] = buf.getLong();
+        inode.indirect = buf.getLong();
+        inode.doubleIndirect = buf.getLong();
+        return inode;
+    }
+
+    private static byte encodePermission(Permission perm) {
+        return (byte) ((perm.r() ? 0b100 : 0) | (perm.w() ? 0b010 : 0) | (perm.x() ? 0b001 : 0));
+    }
+
+    private static Permission decodePermission(byte bits) {
+        return new Permission((bits & 0b100) != 0, (bits & 0b010) != 0, (bits & 0b001) != 0);
+    }
+
     int getFileType() {
         return (this.filetype == FileType.File) ? 1 : 2;
     }
@@ -72,6 +180,10 @@ public class Inode {
         return numRefs;
     }
 
+    long getSize() {
+        return size;
+    }
+
     long getCreateTime() {
         return tsCreate;
     }
@@ -84,6 +196,10 @@ public class Inode {
         return tsAccess;
     }
 
+    boolean isInline() {
+        return inlineData != null;
+    }
+
     long[] getDataPtrs() {
         return dataPtrs;
     }
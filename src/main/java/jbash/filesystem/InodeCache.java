@@ -0,0 +1,124 @@
+package jbash.filesystem;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Bounded cache of decoded inodes, keyed by inode number, least recently used first out.
+ * Looking an inode up again hands back the same object, so stat-style access costs a map lookup
+ * instead of a block cache read and a decode. Changed inodes are marked dirty and only encoded and
+ * written when they're evicted or the cache is flushed.
+ * Inodes whose only change is a new access time are marked lazy instead: they're written the same way, except
+ * the regular flushDirty() passes them over, see AtimeMode.RELATIME.
+ * <p>
+ * Not thread safe, the owning TBFF only touches it while holding its own lock.
+ */
+class InodeCache {
+    /** Writes an encoded inode back to its slot. */
+    interface Writer {
+        void write(int inodeNum, Inode inode);
+    }
+
+    private final Writer writer;
+    private final int capacity;
+    private final LinkedHashMap<Integer, Inode> inodes = new LinkedHashMap<>(16, 0.75f, true);
+    private final HashSet<Integer> dirty = new HashSet<>();
+    private final HashSet<Integer> lazy = new HashSet<>();  // never also in dirty
+
+    /**
+     * @param writer Where dirty inodes go when they're written back.
+     * @param capacity Maximum number of inodes kept in memory.
+     */
+    InodeCache(Writer writer, int capacity) {
+        this.writer = writer;
+        this.capacity = Math.max(1, capacity);
+    }
+
+    /**
+     * @return The cached inode, or null if it has to be read from disk.
+     */
+    Inode get(int inodeNum) {
+        return inodes.get(inodeNum);
+    }
+
+    /**
+     * Adds an inode that matches what's on disk, evicting the least recently used one if the cache is full.
+     */
+    void put(int inodeNum, Inode inode) {
+        inodes.put(inodeNum, inode);
+        evictIfFull();
+    }
+
+    /**
+     * Adds or replaces an inode whose in-memory copy is newer than the disk's.
+     */
+    void putDirty(int inodeNum, Inode inode) {
+        inodes.put(inodeNum, inode);
+        dirty.add(inodeNum);
+        lazy.remove(inodeNum);  // written as a whole anyway, access time included
+        evictIfFull();
+    }
+
+    /**
+     * Adds or replaces an inode whose only change is its access time. If it's dirty already it stays dirty.
+     */
+    void putLazy(int inodeNum, Inode inode) {
+        inodes.put(inodeNum, inode);
+        if (!dirty.contains(inodeNum)) lazy.add(inodeNum);
+        evictIfFull();
+    }
+
+    /**
+     * Drops an inode without writing it back, e.g. because it was freed.
+     */
+    void remove(int inodeNum) {
+        inodes.remove(inodeNum);
+        dirty.remove(inodeNum);
+        lazy.remove(inodeNum);
+    }
+
+    /**
+     * Writes every dirty and lazy inode back, in inode number order so neighbouring slots land in the same
+     * blocks together.
+     */
+    void flush() {
+        if (dirty.isEmpty() && lazy.isEmpty()) return;
+        List<Integer> toWrite = new ArrayList<>(dirty);
+        toWrite.addAll(lazy);
+        write(toWrite);
+        dirty.clear();
+        lazy.clear();
+    }
+
+    /**
+     * Same as flush(), but lazy inodes stay in memory.
+     */
+    void flushDirty() {
+        if (dirty.isEmpty()) return;
+        write(new ArrayList<>(dirty));
+        dirty.clear();
+    }
+
+    /** Number of inodes a flush() would write. */
+    int pending() {
+        return dirty.size() + lazy.size();
+    }
+
+    private void write(List<Integer> toWrite) {
+        toWrite.sort(null);
+        for (int inodeNum : toWrite) writer.write(inodeNum, inodes.get(inodeNum));
+    }
+
+    private void evictIfFull() {
+        Iterator<Map.Entry<Integer, Inode>> it = inodes.entrySet().iterator();
+        while (inodes.size() > capacity) {
+            Map.Entry<Integer, Inode> eldest = it.next();
+            if (dirty.remove(eldest.getKey()) || lazy.remove(eldest.getKey())) writer.write(eldest.getKey(), eldest.getValue());
+            it.remove();
+        }
+    }
+}
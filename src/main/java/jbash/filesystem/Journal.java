@@ -0,0 +1,236 @@
+package jbash.filesystem;
+
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+/**
+ * Write-ahead log for TBFF metadata.
+ * Metadata changes are logged as redo records (disk offset + new bytes) into a running transaction.
+ * commit() appends the whole transaction to the log region with one write and one force(), so many
+ * metadata updates share a single sync. The changed blocks stay dirty in the block cache and reach their
+ * home locations lazily; once they have, checkpointed() lets the log space be reused.
+ * After a crash, recover() replays every committed transaction that hadn't been checkpointed yet.
+ * <p>
+ * Region layout: the first block is the journal header (magic, sequence number and position of the oldest
+ * live transaction). The rest is a circular log of transactions, each stored as
+ * <code>magic, seq, payload length, CRC32 of payload</code> followed by records of <code>offset, length, bytes</code>.
+ */
+class Journal {
+    /** Raw, uncached access to the image. */
+    interface Device {
+        void read(long pos, byte[] dst, int off, int len);
+        void write(long pos, byte[] src, int off, int len);
+        void force();
+    }
+
+    private static final int HEADER_MAGIC = 0x4A524E4C;  // "JRNL"
+    private static final int TXN_MAGIC = 0x4A54584E;     // "JTXN"
+    private static final int TXN_HEADER_SIZE = 4 + 8 + 4 + 4;
+    private static final int RECORD_HEADER_SIZE = 8 + 4;
+
+    private final Device device;
+    private final long headerPos;
+    private final long logStart;
+    private final long logSize;
+
+    private long tailPos = 0;     // offset in the log of the oldest transaction not yet checkpointed
+    private long headPos = 0;     // offset in the log where the next transaction goes
+    private long usedBytes = 0;   // bytes between tail and head, including any skipped at a wrap
+    private long nextSeq = 1;     // sequence number of the running transaction
+    private long tailSeq = 1;     // sequence number of the transaction at tailPos
+    private volatile long durableSeq = 0;
+
+    // Running transaction, by home offset. Records that overlap always hold the same (latest) bytes where they
+    // overlap, so the order they're replayed in doesn't matter.
+    private final TreeMap<Long, byte[]> running = new TreeMap<>();
+    private int runningBytes = 0;
+    private int longestRecord = 0;
+
+    /**
+     * @param device Raw access to the image.
+     * @param start Offset of the journal region. Must be block aligned.
+     * @param sizeBytes Size of the journal region, header block included.
+     * @param blockSize Block size of the image.
+     */
+    Journal(Device device, long start, long sizeBytes, int blockSize) {
+        this.device = device;
+        this.headerPos = start;
+        this.logStart = start + blockSize;
+        this.logSize = sizeBytes - blockSize;
+    }
+
+    /**
+     * Replays every committed transaction still in the log onto its home location, then empties the log.
+     * Must run before anything else reads the metadata.
+     * @return Number of transactions replayed.
+     */
+    synchronized int recover() {
+        byte[] header = new byte[4 + 8 + 8];
+        device.read(headerPos, header, 0, header.length);
+        ByteBuffer buf = ByteBuffer.wrap(header);
+        if (buf.getInt() != HEADER_MAGIC) {  // never used (fresh format), nothing to replay
+            writeHeader();
+            return 0;
+        }
+        tailSeq = buf.getLong();
+        tailPos = buf.getLong();
+
+        int replayed = 0;
+        long pos = tailPos, seq = tailSeq;
+        while (true) {
+            byte[] payload = readTransaction(pos, seq);
+            if (payload == null && pos != 0) {  // the writer wraps to the start when a transaction doesn't fit
+                pos = 0;
+                payload = readTransaction(pos, seq);
+            }
+            if (payload == null) break;
+
+            ByteBuffer records = ByteBuffer.wrap(payload);
+            while (records.hasRemaining()) {
+                long home = records.getLong();
+                int len = records.getInt();
+                device.write(home, payload, records.position(), len);
+                records.position(records.position() + len);
+            }
+            pos += TXN_HEADER_SIZE + payload.length;
+            seq++;
+            replayed++;
+        }
+        if (replayed > 0) device.force();
+
+        // Everything is home now, start over with an empty log
+        nextSeq = seq;
+        tailSeq = seq;
+        tailPos = headPos = pos;
+        usedBytes = 0;
+        durableSeq = seq - 1;
+        writeHeader();
+        return replayed;
+    }
+
+    /**
+     * Reads the transaction at log offset <code>pos</code> if it is intact and has sequence number <code>seq</code>.
+     * @return Its payload, or null if there's no such transaction (end of the log, torn write or stale data).
+     */
+    private byte[] readTransaction(long pos, long seq) {
+        if (pos + TXN_HEADER_SIZE > logSize) return null;
+        byte[] header = new byte[TXN_HEADER_SIZE];
+        device.read(logStart + pos, header, 0, header.length);
+        ByteBuffer buf = ByteBuffer.wrap(header);
+        if (buf.getInt() != TXN_MAGIC || buf.getLong() != seq) return null;
+        int len = buf.getInt();
+        int crc = buf.getInt();
+        if (len < 0 || pos + TXN_HEADER_SIZE + len > logSize) return null;
+        byte[] payload = new byte[len];
+        device.read(logStart + pos + TXN_HEADER_SIZE, payload, 0, len);
+        CRC32 check = new CRC32();
+        check.update(payload);
+        return ((int) check.getValue() == crc) ? payload : null;
+    }
+
+    /**
+     * Adds a redo record to the running transaction.
+     * @param pos Home offset of the change.
+     * @param src New bytes.
+     * @return Sequence number of the transaction the record belongs to.
+     */
+    synchronized long log(long pos, byte[] src, int off, int len) {
+        // Earlier records overlapping this one get the new bytes too, so none of them can bring back old ones
+        for (Map.Entry<Long, byte[]> record : running.subMap(pos - longestRecord, false, pos + len, false).entrySet()) {
+            long start = Math.max(pos, record.getKey());
+            long end = Math.min(pos + len, record.getKey() + record.getValue().length);
+            if (start < end) System.arraycopy(src, (int) (off + start - pos), record.getValue(), (int) (start - record.getKey()), (int) (end - start));
+        }
+        byte[] previous = running.get(pos);
+        if (previous != null && previous.length >= len) return nextSeq;  // already covered, and updated above
+
+        byte[] bytes = new byte[len];
+        System.arraycopy(src, off, bytes, 0, len);
+        if (previous != null) runningBytes -= RECORD_HEADER_SIZE + previous.length;
+        running.put(pos, bytes);
+        runningBytes += RECORD_HEADER_SIZE + len;
+        longestRecord = Math.max(longestRecord, len);
+        return nextSeq;
+    }
+
+    /**
+     * Writes the running transaction to the log and forces it to disk.
+     * Does nothing if no records were logged since the last commit.
+     * @return Sequence number of the last durable transaction.
+     */
+    synchronized long commit() {
+        if (running.isEmpty()) return durableSeq;
+
+        // Nothing happens to the running transaction until it's safely in the log: if the commit fails, its records
+        // are still there for the next one
+        int txnSize = TXN_HEADER_SIZE + runningBytes;
+        long start = (headPos + txnSize > logSize) ? 0 : headPos;  // doesn't fit before the end, wrap to the start
+        long skipped = (start == headPos) ? 0 : logSize - headPos;
+        if (txnSize + skipped + usedBytes > logSize || (usedBytes > 0 && start <= tailPos && start + txnSize > tailPos)) {
+            throw new IllegalStateException("Journal full, it needs a checkpoint before committing");
+        }
+
+        ByteBuffer payload = ByteBuffer.allocate(runningBytes);
+        for (Map.Entry<Long, byte[]> record : running.entrySet()) {
+            payload.putLong(record.getKey()).putInt(record.getValue().length).put(record.getValue());
+        }
+        CRC32 crc = new CRC32();
+        crc.update(payload.array());
+
+        ByteBuffer txn = ByteBuffer.allocate(txnSize);
+        txn.putInt(TXN_MAGIC).putLong(nextSeq).putInt(runningBytes).putInt((int) crc.getValue()).put(payload.array());
+        device.write(logStart + start, txn.array(), 0, txnSize);
+        device.force();
+
+        headPos = start + txnSize;
+        usedBytes += skipped + txnSize;
+        running.clear();
+        runningBytes = 0;
+        longestRecord = 0;
+        durableSeq = nextSeq++;
+        return durableSeq;
+    }
+
+    /**
+     * Called once every block changed by committed transactions has been written home.
+     * Frees the log space they used.
+     */
+    synchronized void checkpointed() {
+        if (!running.isEmpty()) throw new IllegalStateException("Checkpoint with uncommitted records");
+        tailPos = headPos;
+        tailSeq = nextSeq;
+        usedBytes = 0;
+        writeHeader();
+        device.force();
+    }
+
+    /** Highest transaction sequence number that is safely in the log. */
+    long durableSeq() {
+        return durableSeq;
+    }
+
+    /** Bytes the running transaction takes in the log so far, records' headers included. */
+    synchronized int runningBytes() {
+        return runningBytes;
+    }
+
+    synchronized boolean hasUncommitted() {
+        return !running.isEmpty();
+    }
+
+    /**
+     * Whether committing the running transaction plus <code>extraBytes</code> more would leave the log
+     * more than half full, which is when it should be checkpointed.
+     */
+    synchronized boolean needsCheckpoint(int extraBytes) {
+        return usedBytes + TXN_HEADER_SIZE + runningBytes + RECORD_HEADER_SIZE + extraBytes > logSize / 2;
+    }
+
+    private void writeHeader() {
+        ByteBuffer header = ByteBuffer.allocate(4 + 8 + 8);
+        header.putInt(HEADER_MAGIC).putLong(tailSeq).putLong(tailPos);
+        device.write(headerPos, header.array(), 0, header.capacity());
+    }
+}
@@ -0,0 +1,141 @@
+package jbash.filesystem;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * BlockDevice on a memory-mapped image file.
+ * The image is mapped lazily in fixed-size windows so huge images don't need one giant mapping. The superblock and
+ * inode table sit in the first window or two, which are in use all the time and so stay mapped.
+ * Every access is then a plain buffer get/put instead of a seek() plus a read/write syscall. There's nothing to
+ * wait for either, so the asynchronous calls just do the copy.
+ */
+class MappedDisk implements BlockDevice {
+    private static final long WINDOW_SIZE = 16L * 1024 * 1024;  // must be a multiple of the block size
+    private static final int MAX_WINDOWS = 32;
+
+    private final RandomAccessFile fs;
+    private final FileChannel channel;
+    private long sizeBytes;
+
+    // Window index -> mapping, least recently used first. Dropped windows get unmapped by the GC.
+    // Even a lookup reorders it, and the cache's flushes and prefetches come from other threads, so it's only
+    // touched while holding this object's lock. The copies in and out of the buffers don't need it.
+    private final LinkedHashMap<Long, MappedByteBuffer> windows = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, MappedByteBuffer> eldest) {
+            return size() > MAX_WINDOWS;
+        }
+    };
+
+    /**
+     * @param name Image file. Created empty if it doesn't exist.
+     */
+    MappedDisk(String name) throws IOException {
+        this.fs = new RandomAccessFile(name, "rw");
+        this.channel = fs.getChannel();
+        this.sizeBytes = channel.size();
+    }
+
+    /**
+     * Returns the window holding <code>pos</code>, mapping it if it isn't yet.
+     */
+    private synchronized MappedByteBuffer bufferFor(long pos) {
+        if (pos >= sizeBytes) throw new IndexOutOfBoundsException("Offset past end of disk: " + pos);
+        long index = pos / WINDOW_SIZE;
+        MappedByteBuffer window = windows.get(index);
+        if (window == null) {
+            long start = index * WINDOW_SIZE;
+            try {
+                window = channel.map(FileChannel.MapMode.READ_WRITE, start, Math.min(WINDOW_SIZE, sizeBytes - start));
+            } catch (IOException e) {
+                throw new RuntimeException("Cannot map disk window at offset " + start, e);
+            }
+            windows.put(index, window);
+        }
+        return window;
+    }
+
+    /** Offset of <code>pos</code> inside the buffer returned by bufferFor(). */
+    private int indexOf(long pos) {
+        return (int) (pos % WINDOW_SIZE);
+    }
+
+    /** Number of bytes from <code>pos</code> to the end of the buffer holding it. */
+    private int remainingAt(long pos) {
+        return bufferFor(pos).limit() - indexOf(pos);
+    }
+
+    public synchronized long size() {
+        return sizeBytes;
+    }
+
+    /** Copies <code>len</code> bytes starting at <code>pos</code> into <code>dst</code>, crossing windows if needed. */
+    public void read(long pos, byte[] dst, int off, int len) {
+        while (len > 0) {
+            int chunk = Math.min(len, remainingAt(pos));
+            bufferFor(pos).get(indexOf(pos), dst, off, chunk);
+            pos += chunk;
+            off += chunk;
+            len -= chunk;
+        }
+    }
+
+    /** Copies <code>len</code> bytes of <code>src</code> to the disk at <code>pos</code>, crossing windows if needed. */
+    public void write(long pos, byte[] src, int off, int len) {
+        while (len > 0) {
+            int chunk = Math.min(len, remainingAt(pos));
+            bufferFor(pos).put(indexOf(pos), src, off, chunk);
+            pos += chunk;
+            off += chunk;
+            len -= chunk;
+        }
+    }
+
+    /**
+     * Extends or truncates the image file. When it grows, the window at the old end may have been mapped short, so
+     * it's dropped and gets mapped again in full next time. When it shrinks, every window is dropped.
+     */
+    public synchronized void resize(long sizeBytes) {
+        if (sizeBytes < this.sizeBytes) windows.clear();
+        else if (this.sizeBytes > 0) windows.remove((this.sizeBytes - 1) / WINDOW_SIZE);
+        try {
+            fs.setLength(sizeBytes);
+        } catch (IOException e) {
+            throw new RuntimeException("Cannot resize disk to " + sizeBytes + " bytes", e);
+        }
+        this.sizeBytes = sizeBytes;
+    }
+
+    /** Flushes every mapped window back to the image file. */
+    public void force() {
+        List<MappedByteBuffer> mapped;
+        synchronized (this) {
+            mapped = new ArrayList<>(windows.values());
+        }
+        for (MappedByteBuffer window : mapped) window.force();
+        try {
+            channel.force(false);
+        } catch (IOException e) {
+            throw new RuntimeException("Cannot sync disk", e);
+        }
+    }
+
+    public void close() {
+        force();
+        synchronized (this) {
+            windows.clear();
+        }
+        try {
+            fs.close();
+        } catch (IOException e) {
+            throw new RuntimeException("Cannot close disk", e);
+        }
+    }
+}
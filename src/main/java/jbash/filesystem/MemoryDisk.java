@@ -0,0 +1,79 @@
+package jbash.filesystem;
+
+import java.util.Arrays;
+
+/**
+ * BlockDevice in heap memory, for disks that don't need to outlive the process.
+ * The bytes are kept in CHUNK_SIZE arrays that are only allocated once something is written to them, so like a
+ * sparse image file, a fast-formatted disk only takes as much memory as it has data in use.
+ */
+class MemoryDisk implements BlockDevice {
+    private static final int CHUNK_SIZE = 1024 * 1024;
+
+    private byte[][] chunks = new byte[0][];  // null for chunks nothing was written to yet
+    private long sizeBytes = 0;
+
+    public synchronized long size() {
+        return sizeBytes;
+    }
+
+    public synchronized void resize(long sizeBytes) {
+        int numChunks = (int) ((sizeBytes + CHUNK_SIZE - 1) / CHUNK_SIZE);
+        chunks = Arrays.copyOf(chunks, numChunks);
+        // The last chunk may hold bytes from before a shrink, which have to read as zeros if it grows again
+        int tail = (int) (sizeBytes % CHUNK_SIZE);
+        if (sizeBytes < this.sizeBytes && tail != 0 && chunks[numChunks - 1] != null) {
+            Arrays.fill(chunks[numChunks - 1], tail, CHUNK_SIZE, (byte) 0);
+        }
+        this.sizeBytes = sizeBytes;
+    }
+
+    public void read(long pos, byte[] dst, int off, int len) {
+        checkRange(pos, len);
+        while (len > 0) {
+            int chunkOff = (int) (pos % CHUNK_SIZE);
+            int n = Math.min(len, CHUNK_SIZE - chunkOff);
+            byte[] chunk = chunk(pos, false);
+            if (chunk == null) Arrays.fill(dst, off, off + n, (byte) 0);
+            else System.arraycopy(chunk, chunkOff, dst, off, n);
+            pos += n;
+            off += n;
+            len -= n;
+        }
+    }
+
+    public void write(long pos, byte[] src, int off, int len) {
+        checkRange(pos, len);
+        while (len > 0) {
+            int chunkOff = (int) (pos % CHUNK_SIZE);
+            int n = Math.min(len, CHUNK_SIZE - chunkOff);
+            System.arraycopy(src, off, chunk(pos, true), chunkOff, n);
+            pos += n;
+            off += n;
+            len -= n;
+        }
+    }
+
+    /** Nothing to do, memory is as durable as it gets. */
+    public void force() {
+    }
+
+    public synchronized void close() {
+        chunks = new byte[0][];
+        sizeBytes = 0;
+    }
+
+    /**
+     * Returns the chunk holding <code>pos</code>.
+     * @param create Whether to allocate it if nothing was written to it yet. Otherwise that gives null.
+     */
+    private synchronized byte[] chunk(long pos, boolean create) {
+        int index = (int) (pos / CHUNK_SIZE);
+        if (chunks[index] == null && create) chunks[index] = new byte[CHUNK_SIZE];
+        return chunks[index];
+    }
+
+    private synchronized void checkRange(long pos, int len) {
+        if (pos < 0 || pos + len > sizeBytes) throw new IndexOutOfBoundsException("Offset past end of disk: " + (pos + len));
+    }
+}
@@ -0,0 +1,64 @@
+package jbash.filesystem;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A volume (TBFF disk, snapshot or overlay) whose directory tree is mounted into the FileSystemAPI.
+ * Every Directory and File loaded from (or saved to) the volume points back at its Mount.
+ * Objects are only created when path resolution reaches them, and the Mount counts how many exist
+ * so the FileSystemAPI knows when to drop subtrees nobody is using.
+ */
+class Mount {
+    final Volume volume;
+    final Directory covered;  // directory this volume is mounted over, or null for the one holding the root
+    final Map<Long, Mount> mountPoints = new HashMap<>();  // directory inode -> volume mounted over it
+    private final int maxLoaded;
+    private int loaded = 0;  // files and directories currently materialised in memory
+
+    /**
+     * @param volume Volume holding the tree.
+     * @param maxLoaded How many objects may be in memory before inactive subtrees get evicted.
+     */
+    Mount(Volume volume, int maxLoaded) {
+        this(volume, maxLoaded, null);
+    }
+
+    /**
+     * @param volume Volume holding the tree.
+     * @param maxLoaded How many objects may be in memory before inactive subtrees get evicted.
+     * @param covered Directory the volume's root takes the place of, see FileSystemAPI.mountAt().
+     */
+    Mount(Volume volume, int maxLoaded, Directory covered) {
+        this.volume = volume;
+        this.maxLoaded = maxLoaded;
+        this.covered = covered;
+    }
+
+    /**
+     * Turns directory entry <code>name</code> -> <code>inodePtr</code> into a File or Directory object.
+     * A directory another volume is mounted over comes back as that volume's root instead.
+     */
+    FileSystemObject load(String name, Directory parent, long inodePtr) {
+        adjustLoaded(1);
+        Mount mounted = mountPoints.get(inodePtr);
+        if (mounted != null) return new Directory(name, parent, mounted, mounted.volume.getRootInodePtr());
+        Inode inode = volume.readInodeFromDisk(inodePtr);
+        return (inode.filetype == FileType.Directory)
+                ? new Directory(name, parent, this, inodePtr)
+                : new File(name, parent, this, inodePtr);
+    }
+
+    /** Records that <code>delta</code> objects were added to (or, if negative, dropped from) memory. */
+    void adjustLoaded(int delta) {
+        loaded += delta;
+    }
+
+    int getLoaded() {
+        return loaded;
+    }
+
+    boolean overLimit() {
+        return loaded > maxLoaded;
+    }
+}
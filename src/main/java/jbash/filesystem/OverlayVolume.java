@@ -0,0 +1,316 @@
+package jbash.filesystem;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Union of a small writable upper disk over a read-only lower disk, mountable through the FileSystemAPI like a
+ * single disk. The lower disk is only ever read, so any number of overlays can share one, along with its block
+ * cache, while each session's changes go to its own upper disk.
+ * <p>
+ * Looking up a name checks the upper directory first and falls through to the lower one. Changing anything that
+ * only exists below copies it up first: a directory becomes an empty upper directory merged with the lower one,
+ * a file becomes an upper file (with its contents, unless they're about to be replaced anyway). Removing a name the
+ * lower directory has leaves a whiteout in the upper one, which hides it.
+ * <p>
+ * All of that is kept in ordinary directory entries of the upper disk, using names no path can produce:
+ * <pre>
+ *   name     -> WHITEOUT     name was removed, whatever the lower directory has under it is hidden
+ *   /lower   -> lower inode  the upper directory is merged with this lower directory
+ * </pre>
+ * An upper directory without a <code>/lower</code> entry hides the lower side entirely, so a directory that's
+ * removed and created again starts out empty. The root is always merged with the lower root. Because of these
+ * entries, an upper disk should only ever be mounted as part of an overlay.
+ * <p>
+ * Inodes of the lower disk are handed out with LOWER set in their pointers, so the two disks' pointers can't mix.
+ * Once something is copied up, its old pointer keeps working and leads to the upper copy.
+ */
+class OverlayVolume implements Volume {
+    static final long LOWER = 1L << 62;
+    static final long WHITEOUT = 0;  // no inode lives in the superblock
+    static final String LOWER_ENTRY = "/lower";
+    private static final int COPY_CHUNK = 256 * 1024;  // how much of a file copyUp() holds in memory at once
+
+    /** Where a lower object was found: its directory (as handed out by this overlay) and its name there. */
+    private record Origin(long parentPtr, String name) {}
+
+    private final TBFF upper;
+    private final TBFF lower;
+    private final long rootPtr;
+    private final InodeCache lowerInodes = new InodeCache((inodeNum, inode) -> {
+        throw new IllegalStateException("Lower inodes are never dirty");
+    }, 512);
+    private final Map<Long, Origin> origins = new HashMap<>();   // every lower pointer handed out so far
+    private final Map<Long, Long> copiedUp = new HashMap<>();    // lower pointer -> upper copy
+    private final Map<Long, Long> copiedFrom = new HashMap<>();  // upper copy -> lower pointer, the other way round
+    private final Map<Long, Long> lowerDirs = new HashMap<>();   // upper directory -> lower directory merged in, or -1
+
+    /**
+     * @param upper Disk that takes every change.
+     * @param lower Disk underneath. It's only read, and must not change while the overlay is mounted.
+     */
+    OverlayVolume(TBFF upper, TBFF lower) {
+        this.upper = upper;
+        this.lower = lower;
+        this.rootPtr = upper.getRootInodePtr();
+        lowerDirs.put(rootPtr, lower.getRootInodePtr());
+    }
+
+    private static boolean isLower(long inodePtr) {
+        return (inodePtr & LOWER) != 0;
+    }
+
+    /** The upper copy of <code>inodePtr</code> if there is one, otherwise <code>inodePtr</code> itself. */
+    private long resolve(long inodePtr) {
+        return copiedUp.getOrDefault(inodePtr, inodePtr);
+    }
+
+    @Override
+    public long getRootInodePtr() {
+        return rootPtr;
+    }
+
+    @Override
+    public synchronized Inode readInodeFromDisk(long inodePtr) {
+        inodePtr = resolve(inodePtr);
+        return isLower(inodePtr) ? lowerInode(inodePtr) : upper.readInodeFromDisk(inodePtr);
+    }
+
+    /** Inode of lower pointer <code>inodePtr</code> as it is below, even if it was copied up since. */
+    private Inode lowerInode(long inodePtr) {
+        // The lower disk's own inode objects are shared with other overlays, so hand out copies
+        int inodeNum = lower.inodeNumber(inodePtr & ~LOWER);
+        Inode inode = lowerInodes.get(inodeNum);
+        if (inode == null) {
+            inode = Inode.decode(lower.readInodeFromDisk(inodePtr & ~LOWER).encode(), 0);
+            inode.inodePtr = inodePtr;
+            lowerInodes.put(inodeNum, inode);
+        }
+        return inode;
+    }
+
+    @Override
+    public void readData(Inode inode, byte[] dst) {
+        if (isLower(inode.inodePtr)) lower.readData(inode, dst, false);
+        else upper.readData(inode, dst);
+    }
+
+    @Override
+    public int read(Inode inode, long offset, byte[] dst, int off, int len, ReadAhead readAhead) {
+        if (isLower(inode.inodePtr)) return lower.read(inode, offset, dst, off, len, readAhead, false);
+        return upper.read(inode, offset, dst, off, len, readAhead);
+    }
+
+    @Override
+    public synchronized long lookupEntry(Inode dir, String name) {
+        if (name.startsWith("/")) return -1;
+        if (isLower(dir.inodePtr)) return fromLower(dir.inodePtr, name, lower.lookupEntry(dir, name));
+
+        long inodePtr = upper.lookupEntry(dir, name);
+        if (inodePtr == WHITEOUT) return -1;
+        if (inodePtr != -1) return inodePtr;
+        long lowerDir = lowerDirOf(dir);
+        if (lowerDir == -1) return -1;
+        return fromLower(dir.inodePtr, name, lower.lookupEntry(lowerInode(lowerDir), name));
+    }
+
+    /** Tags lower pointer <code>inodePtr</code>, found as <code>name</code> in directory <code>parentPtr</code>. */
+    private long fromLower(long parentPtr, String name, long inodePtr) {
+        if (inodePtr == -1) return -1;
+        origins.put(inodePtr | LOWER, new Origin(parentPtr, name));
+        return inodePtr | LOWER;
+    }
+
+    @Override
+    public synchronized Map<String, Long> listEntries(Inode dir) {
+        Map<String, Long> entries = new LinkedHashMap<>();
+        if (isLower(dir.inodePtr)) {
+            lower.listEntries(dir, false).forEach((name, inodePtr) -> entries.put(name, fromLower(dir.inodePtr, name, inodePtr)));
+            return entries;
+        }
+
+        Set<String> whiteouts = new HashSet<>();
+        upper.listEntries(dir).forEach((name, inodePtr) -> {
+            if (name.startsWith("/")) return;
+            if (inodePtr == WHITEOUT) whiteouts.add(name);
+            else entries.put(name, inodePtr);
+        });
+        long lowerDir = lowerDirOf(dir);
+        if (lowerDir != -1) {
+            lower.listEntries(lowerInode(lowerDir), false).forEach((name, inodePtr) -> {
+                if (!entries.containsKey(name) && !whiteouts.contains(name)) entries.put(name, fromLower(dir.inodePtr, name, inodePtr));
+            });
+        }
+        return entries;
+    }
+
+    /** The lower directory upper directory <code>dir</code> is merged with, as a tagged pointer, or -1. */
+    private long lowerDirOf(Inode dir) {
+        Long lowerDir = lowerDirs.get(dir.inodePtr);
+        if (lowerDir == null) {
+            lowerDir = upper.lookupEntry(dir, LOWER_ENTRY);
+            lowerDirs.put(dir.inodePtr, lowerDir);
+        }
+        return (lowerDir == -1) ? -1 : lowerDir | LOWER;
+    }
+
+    @Override
+    public boolean isReadOnly() {
+        return false;
+    }
+
+    @Override
+    public synchronized long writeInodeToDisk(Inode inode, long parentPtr) {
+        parentPtr = resolve(parentPtr);
+        return upper.writeInodeToDisk(inode, isLower(parentPtr) ? -1 : parentPtr);
+    }
+
+    @Override
+    public synchronized void writeData(Inode inode, byte[] data) {
+        upper.writeData(isLower(inode.inodePtr) ? copyUp(inode.inodePtr, false) : inode, data);
+    }
+
+    @Override
+    public synchronized void preallocate(Inode inode, long sizeBytes) {
+        upper.preallocate(isLower(inode.inodePtr) ? copyUp(inode.inodePtr, true) : inode, sizeBytes);
+    }
+
+    @Override
+    public void initDirectory(Inode dir) {
+        upper.initDirectory(dir);  // no LOWER_ENTRY, so nothing below shows through
+    }
+
+    @Override
+    public synchronized void addEntry(Inode dir, String name, long inodePtr) {
+        if (name.startsWith("/")) throw new RuntimeException("Invalid name: " + name);
+        Inode upperDir = upperDir(dir.inodePtr);
+        clearWhiteout(upperDir, name);
+        inodePtr = resolve(inodePtr);
+        if (isLower(inodePtr)) {
+            // Something that only exists below is being moved here, so it gets copied up in its new place
+            copyUp(inodePtr, upperDir, name, true);
+        } else {
+            upper.addEntry(upperDir, name, inodePtr);
+            relinked(inodePtr);
+        }
+    }
+
+    /**
+     * Upper object <code>inodePtr</code> got an entry again, after removeEntry() dropped what the overlay knew about
+     * it. That's a move. A copied up directory's children may still be reached through its lower pointer, so it
+     * leads to the copy again. Where the directory came from is in its <code>/lower</code> entry.
+     */
+    private void relinked(long inodePtr) {
+        Inode inode = upper.readInodeFromDisk(inodePtr);
+        if (inode.filetype != FileType.Directory || inodePtr == rootPtr) return;
+        long lowerDir = upper.lookupEntry(inode, LOWER_ENTRY);
+        if (lowerDir == -1) return;
+        copiedUp.put(lowerDir | LOWER, inodePtr);
+        copiedFrom.put(inodePtr, lowerDir | LOWER);
+    }
+
+    @Override
+    public synchronized long[] createEntries(Inode dir, List<String> names, List<Inode> inodes, List<byte[]> contents) {
+        for (String name : names) {
+            if (name.startsWith("/")) throw new RuntimeException("Invalid name: " + name);
+        }
+        Inode upperDir = upperDir(dir.inodePtr);
+        for (String name : names) clearWhiteout(upperDir, name);
+        return upper.createEntries(upperDir, names, inodes, contents);
+    }
+
+    @Override
+    public synchronized boolean removeEntry(Inode dir, String name) {
+        Inode upperDir = upperDir(dir.inodePtr);
+        long inodePtr = upper.lookupEntry(upperDir, name);
+        if (inodePtr == WHITEOUT) return false;
+        if (inodePtr != -1) {
+            upper.removeEntry(upperDir, name);
+            // The upper object is unlinked, nothing may lead to it any more
+            Long from = copiedFrom.remove(inodePtr);
+            if (from != null) {
+                copiedUp.remove(from);
+                origins.remove(from);
+            }
+            lowerDirs.remove(inodePtr);
+        }
+        long lowerDir = lowerDirOf(upperDir);
+        long belowPtr = (lowerDir == -1) ? -1 : lower.lookupEntry(lowerInode(lowerDir), name);
+        if (belowPtr != -1) {
+            upper.addEntry(upperDir, name, WHITEOUT);
+            origins.remove(belowPtr | LOWER);  // hidden now, so it can't be copied up to where it was found
+        }
+        return inodePtr != -1 || belowPtr != -1;
+    }
+
+    private void clearWhiteout(Inode upperDir, String name) {
+        if (upper.lookupEntry(upperDir, name) == WHITEOUT) upper.removeEntry(upperDir, name);
+    }
+
+    /** The upper directory for directory <code>dirPtr</code>, copying it up if it only exists below. */
+    private Inode upperDir(long dirPtr) {
+        dirPtr = resolve(dirPtr);
+        if (isLower(dirPtr)) return copyUp(dirPtr, true);
+        return upper.readInodeFromDisk(dirPtr);
+    }
+
+    /**
+     * Copies lower object <code>inodePtr</code> up to where it was found, copying up its directory first if needed.
+     * @param withData Whether a file's contents are copied too. Not needed if they're about to be replaced.
+     * @return The upper copy.
+     */
+    private Inode copyUp(long inodePtr, boolean withData) {
+        Origin origin = origins.get(inodePtr);
+        return copyUp(inodePtr, upperDir(origin.parentPtr()), origin.name(), withData);
+    }
+
+    /**
+     * Copies lower object <code>inodePtr</code> up as entry <code>name</code> of <code>upperDir</code>.
+     * A directory's copy starts out empty and merged with the original, so nothing below it is copied.
+     */
+    private Inode copyUp(long inodePtr, Inode upperDir, String name, boolean withData) {
+        Inode original = lowerInode(inodePtr);
+        Inode copy = new Inode(original.filetype, original.perms);
+        copy.userId = original.userId;
+        copy.groupId = original.groupId;
+        copy.tsCreate = original.tsCreate;
+        copy.tsModify = original.tsModify;
+        copy.tsAccess = original.tsAccess;
+        long copyPtr = upper.writeInodeToDisk(copy, upperDir.inodePtr);
+        if (copy.filetype == FileType.Directory) {
+            upper.initDirectory(copy);
+            upper.addEntry(copy, LOWER_ENTRY, inodePtr & ~LOWER);
+            lowerDirs.put(copyPtr, inodePtr & ~LOWER);
+        } else if (withData && original.size > 0) {
+            copyData(original, copy);
+        }
+        upper.addEntry(upperDir, name, copyPtr);
+        copiedUp.put(inodePtr, copyPtr);
+        copiedFrom.put(copyPtr, inodePtr);
+        return copy;
+    }
+
+    /**
+     * Copies the contents of lower file <code>original</code> into empty upper file <code>copy</code>, COPY_CHUNK
+     * bytes at a time, so copying up a big file doesn't need all of it in memory. Small files go through
+     * writeData() so they can still end up inline.
+     */
+    private void copyData(Inode original, Inode copy) {
+        if (original.size <= COPY_CHUNK) {
+            byte[] data = new byte[(int) original.size];
+            lower.readData(original, data, false);
+            upper.writeData(copy, data);
+            return;
+        }
+        byte[] chunk = new byte[COPY_CHUNK];
+        for (long offset = 0; offset < original.size; ) {
+            int len = lower.read(original, offset, chunk, 0, COPY_CHUNK, null, false);
+            upper.append(copy, chunk, len);
+            offset += len;
+        }
+    }
+}
@@ -0,0 +1,73 @@
+package jbash.filesystem;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Read-ahead state of one open file, see FileStream.
+ * As long as each read starts where the last one ended, the reader is taken to be streaming the file and the data
+ * after it is prefetched into the block cache, in a window that doubles every time the reader catches up with it.
+ * A read anywhere else drops back to reading on demand until the reads look sequential again.
+ */
+class ReadAhead {
+    /** Size of the first window. */
+    static final int MIN_WINDOW_BYTES = 16 * 1024;
+
+    private final long maxWindow;
+    private long expected = 0;     // file offset the next read starts at if it's sequential
+    private long window = 0;       // bytes in the last window, 0 while reading on demand
+    private long prefetchedTo = 0; // end of everything prefetched so far
+    private long windowStart = 0;  // start of the last window
+    private long previousStart = 0;
+    // Prefetches of the last two windows. The reader is usually in the older one when the newer one starts.
+    private CompletableFuture<Void> current = CompletableFuture.completedFuture(null);
+    private CompletableFuture<Void> previous = current;
+
+    /**
+     * @param maxWindowBytes Largest window. Past a few hundred KB the cache just churns.
+     */
+    ReadAhead(long maxWindowBytes) {
+        this.maxWindow = Math.max(MIN_WINDOW_BYTES, maxWindowBytes);
+    }
+
+    /**
+     * Records a read of <code>len</code> bytes at <code>offset</code>, and works out what to prefetch next.
+     * A new window starts once the reader is into the second half of the last one, so the disk stays busy while the
+     * reader works through the first half.
+     * @param fileSize Size of the file. Nothing past it gets prefetched.
+     * @return {start, end} file offsets to prefetch, or null for nothing.
+     */
+    long[] advance(long offset, int len, long fileSize) {
+        boolean sequential = offset == expected;
+        expected = offset + len;
+        if (!sequential) {
+            window = 0;
+            prefetchedTo = 0;
+            return null;
+        }
+        if (window > 0 && expected < windowStart + window / 2) return null;
+
+        long start = Math.max(prefetchedTo, expected);
+        window = (window == 0) ? MIN_WINDOW_BYTES : Math.min(maxWindow, window * 2);
+        long end = Math.min(fileSize, start + window);
+        if (start >= end) return null;
+        previousStart = windowStart;
+        windowStart = start;
+        prefetchedTo = end;
+        return new long[] { start, end };
+    }
+
+    /** Remembers the prefetch of the window advance() last returned. */
+    void started(CompletableFuture<Void> prefetch) {
+        previous = current;
+        current = prefetch;
+    }
+
+    /**
+     * Waits for the windows a read of up to <code>end</code> reaches into, so the read gets them from the cache
+     * instead of fetching the same blocks a second time.
+     */
+    void awaitWindows(long end) {
+        if (end > previousStart) previous.join();
+        if (end > windowStart) current.join();
+    }
+}
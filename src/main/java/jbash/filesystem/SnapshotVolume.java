@@ -0,0 +1,109 @@
+package jbash.filesystem;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Read-only view of a TBFF snapshot, mountable through the FileSystemAPI like the live disk.
+ * Inodes come from the snapshot's copy of the inode table. Data, directory and pointer blocks are read from
+ * the disk as usual, since the live filesystem never changes a block the snapshot shares.
+ */
+class SnapshotVolume implements Volume {
+    private final TBFF disk;
+    private final Inode file;  // the disk's snapshot file, to notice if the snapshot gets deleted
+    private final InodeCache inodes = new InodeCache((inodeNum, inode) -> {
+        throw new IllegalStateException("Snapshot inodes are never dirty");
+    }, 256);
+
+    SnapshotVolume(TBFF disk, Inode file) {
+        this.disk = disk;
+        this.file = file;
+    }
+
+    @Override
+    public long getRootInodePtr() {
+        return disk.getSnapshotRootPtr(file);
+    }
+
+    @Override
+    public synchronized Inode readInodeFromDisk(long inodePtr) {
+        Inode inode = inodes.get(disk.inodeNumber(inodePtr));
+        if (inode == null) {
+            inode = disk.readSnapshotInode(file, inodePtr);
+            inodes.put(disk.inodeNumber(inodePtr), inode);
+        }
+        return inode;
+    }
+
+    @Override
+    public void readData(Inode inode, byte[] dst) {
+        synchronized (disk) {
+            disk.checkSnapshot(file);
+            disk.readData(inode, dst, false);
+        }
+    }
+
+    @Override
+    public int read(Inode inode, long offset, byte[] dst, int off, int len, ReadAhead readAhead) {
+        synchronized (disk) {
+            disk.checkSnapshot(file);
+            return disk.read(inode, offset, dst, off, len, readAhead, false);
+        }
+    }
+
+    @Override
+    public long lookupEntry(Inode dir, String name) {
+        synchronized (disk) {
+            disk.checkSnapshot(file);
+            return disk.lookupEntry(dir, name);
+        }
+    }
+
+    @Override
+    public Map<String, Long> listEntries(Inode dir) {
+        synchronized (disk) {
+            disk.checkSnapshot(file);
+            return disk.listEntries(dir, false);
+        }
+    }
+
+    @Override
+    public boolean isReadOnly() {
+        return true;
+    }
+
+    @Override
+    public long writeInodeToDisk(Inode inode, long parentPtr) {
+        throw new RuntimeException("Snapshot is read-only");
+    }
+
+    @Override
+    public void writeData(Inode inode, byte[] data) {
+        throw new RuntimeException("Snapshot is read-only");
+    }
+
+    @Override
+    public void preallocate(Inode inode, long sizeBytes) {
+        throw new RuntimeException("Snapshot is read-only");
+    }
+
+    @Override
+    public void initDirectory(Inode dir) {
+        throw new RuntimeException("Snapshot is read-only");
+    }
+
+    @Override
+    public void addEntry(Inode dir, String name, long inodePtr) {
+        throw new RuntimeException("Snapshot is read-only");
+    }
+
+    @Override
+    public long[] createEntries(Inode dir, List<String> names, List<Inode> inodes, List<byte[]> contents) {
+        throw new RuntimeException("Snapshot is read-only");
+    }
+
+    @Override
+    public boolean removeEntry(Inode dir, String name) {
+        throw new RuntimeException("Snapshot is read-only");
+    }
+}
@@ -1,23 +1,123 @@
 package jbash.filesystem;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * Abstraction over The Big File (aka a disk stored on our Host OS.)
  */
-public class TBFF {
-    private final RandomAccessFile fs;
-    private final long SIZE_BYTES;
+public class TBFF implements Volume {
+    private final BlockDevice device; // where the image is stored, see DeviceType
+    private final BlockCache cache;   // every read and write after opening goes through here
+    private final boolean compress;   // whether new file data is stored compressed, see CompressedData
+    private final FingerprintIndex fingerprints;  // content hashes of file blocks, null unless dedup is on
+    private final AtimeMode atime;    // how reads update access times
+    private final Journal journal;    // every metadata write is logged here first
+    private final InodeCache inodeCache;  // decoded inodes by number, see readInodeFromDisk()
+    private final Thread committer;   // group-commits the journal in the background, null if disabled
+    private volatile boolean closed = false;
+    private long SIZE_BYTES;
     private static final int BLOCK_SIZE = 1024 * 4;  // block size of 4K is probably good?
     private final int INODE_SIZE_BYTES;
     private final int NUM_INODES;
+    private final long DATA_START;
+    private final long INODE_BITMAP_START;
+    private final long INODE_TABLE_START;
+    private final long BLOCK_BITMAP_START;
+    private long NUM_BLOCKS;        // grows with grow(), up to MAX_BLOCKS
+    private final long MAX_BLOCKS;  // number of blocks the block bitmap and group table have room for
+    private final long GROUP_TABLE_START;
+    private final long JOURNAL_START;
+    private final long JOURNAL_SIZE;
+    private final int INODES_PER_GROUP;
+    private static final int PTRS_PER_BLOCK = BLOCK_SIZE / Long.BYTES;
+    // 12 direct blocks, one single-indirect block and one double-indirect block: a bit over 1GB with 4K blocks
+    static final long MAX_FILE_BLOCKS = Inode.NUM_DIRECT + PTRS_PER_BLOCK + (long) PTRS_PER_BLOCK * PTRS_PER_BLOCK;
+    private static final int FORMAT_VERSION = 12;  // bump whenever the on-disk layout changes
+
+    // Inode and block allocation state, split into allocation groups. See AllocationGroup.
+    private AllocationGroup[] allocGroups;  // replaced by a longer array when the disk grows
+    private final AllocationGroup.Loader groupLoader;
+    private final int ALLOC_GROUP_INODES;
+    private final int ALLOC_GROUP_BLOCKS;
+    private final Bitmap initialisedGroups;  // inode table groups that have been zeroed
+
+    private Inode refcountFile;  // extra reference counts of shared data blocks, null if nothing was ever shared
+
+    // Snapshot state, all null while the disk has no snapshot. See createSnapshot().
+    private Inode snapshotFile;     // holds the snapshot's copy of the inode table and its two block bitmaps
+    private Bitmap snapshotBlocks;  // data blocks in use when the snapshot was taken. Never changes.
+    private Bitmap deadBlocks;      // snapshot blocks the live filesystem has let go of since
+    private long snapshotRootPtr;
+    private int snapshotInodes;     // number of inode slots copied into the snapshot
 
     // Offsets for retrieving from the file
-    private static final int OFFSET_MAGIC_NUMBER     =                        0;
-    private static final int OFFSET_NUM_INODES       = OFFSET_MAGIC_NUMBER   +4;
-    private static final int OFFSET_INODE_SIZE       = OFFSET_NUM_INODES     +4;
-    private static final int OFFSET_DATA_START_PTR   = OFFSET_INODE_SIZE     +4;
-    private static final int OFFSET_INODES_START     = OFFSET_DATA_START_PTR +8;
+    private static final int OFFSET_MAGIC_NUMBER     =                          0;
+    private static final int OFFSET_NUM_INODES       = OFFSET_MAGIC_NUMBER     +4;
+    private static final int OFFSET_INODE_SIZE       = OFFSET_NUM_INODES       +4;
+    private static final int OFFSET_DATA_START_PTR   = OFFSET_INODE_SIZE       +4;
+    private static final int OFFSET_VERSION          = OFFSET_DATA_START_PTR   +8;
+    private static final int OFFSET_FREE_INODES      = OFFSET_VERSION          +4;
+    private static final int OFFSET_INODE_BITMAP_PTR = OFFSET_FREE_INODES      +4;
+    private static final int OFFSET_INODE_TABLE_PTR  = OFFSET_INODE_BITMAP_PTR +8;
+    private static final int OFFSET_BLOCK_BITMAP_PTR = OFFSET_INODE_TABLE_PTR  +8;
+    private static final int OFFSET_NUM_BLOCKS       = OFFSET_BLOCK_BITMAP_PTR +8;
+    private static final int OFFSET_FREE_BLOCKS      = OFFSET_NUM_BLOCKS       +8;
+    private static final int OFFSET_JOURNAL_PTR      = OFFSET_FREE_BLOCKS      +8;
+    private static final int OFFSET_JOURNAL_SIZE     = OFFSET_JOURNAL_PTR      +8;
+    private static final int OFFSET_INODES_PER_GROUP = OFFSET_JOURNAL_SIZE     +8;
+    private static final int OFFSET_ROOT_INODE_PTR   = OFFSET_INODES_PER_GROUP +4;
+    private static final int OFFSET_STATE            = OFFSET_ROOT_INODE_PTR   +8;
+    private static final int OFFSET_ALLOC_GROUPS     = OFFSET_STATE            +4;
+    private static final int OFFSET_ALLOC_GROUP_INODES = OFFSET_ALLOC_GROUPS   +4;
+    private static final int OFFSET_ALLOC_GROUP_BLOCKS = OFFSET_ALLOC_GROUP_INODES +4;
+    private static final int OFFSET_MAX_BLOCKS       = OFFSET_ALLOC_GROUP_BLOCKS +4;
+    private static final int OFFSET_GROUP_TABLE_PTR  = OFFSET_MAX_BLOCKS       +8;
+
+    // Values of the state field. Anything but CLEAN (including the zeros of an older image) means a full check on mount.
+    private static final int STATE_DIRTY = 0;
+    private static final int STATE_CLEAN = 1;
+
+    // The inode table is split into at most MAX_INODE_GROUPS groups. A fast format leaves them all uninitialised
+    // and each one gets zeroed the first time an inode in it is allocated. This bitmap records which ones are done.
+    private static final int OFFSET_GROUP_INIT_BITMAP = 512;
+    private static final int MAX_INODE_GROUPS = 8192;
+
+    // Encoded inode of the snapshot file, all zeros if there's no snapshot
+    private static final int OFFSET_SNAPSHOT_INODE = 2048;
+
+    // Encoded inode of the reference count file, all zeros until a block is first shared. The file holds a 2 byte
+    // count per data block of the references beyond the first, so a block is only freed once its count is 0.
+    private static final int OFFSET_REFCOUNT_INODE = 3840;
+    private static final int MAX_EXTRA_REFS = 0xFFFF;
+
+    // A new disk is split into at most MAX_ALLOC_GROUPS allocation groups, of at least MIN_ALLOC_GROUP_BLOCKS blocks
+    // (4MB) so small disks don't get split into slivers. Their descriptors are in the group table, one after the other.
+    // The block bitmap and the group table have room for GROW_LIMIT times the formatted data region, see grow().
+    private static final int MAX_ALLOC_GROUPS = 64;
+    private static final int GROW_LIMIT = 8;
+    // Room in the group table. Growing GROW_LIMIT times multiplies the group count by a bit more than that, since
+    // the formatted data region is smaller than the disk, so this leaves plenty to spare.
+    private static final int MAX_GROWN_ALLOC_GROUPS = 2 * MAX_ALLOC_GROUPS * GROW_LIMIT;
+    private static final int MIN_ALLOC_GROUP_BLOCKS = 1024;
+    private static final int SNAPSHOT_MAGIC = 0x534E4150;  // "SNAP"
+    private static final int WRITE_CHUNK_BLOCKS = 256;  // most blocks one write of createEntries() covers, 1MB
+    private static final int INIT_AHEAD_BYTES = 1024 * 1024;  // inode table zeroed at a time, see initialiseGroups()
+    static final long ATIME_FLUSH_MS = 60 * 60 * 1000;  // longest an access time waits in memory, see AtimeMode.RELATIME
+    private static final long RELATIME_MAX_AGE_MS = 24 * 60 * 60 * 1000;
 
     /**
      * Constructor for a new disk.
@@ -27,169 +127,2077 @@ public class TBFF {
      * @param sizeBytes size, in bytes, of the disk
      */
     public TBFF(String name, long sizeBytes) {
+        this(name, sizeBytes, TBFFOptions.defaults());
+    }
+
+    /**
+     * Constructor for a new disk, opened with the given options.
+     * See {@link #TBFF(String, long)}.
+     * @param name filename of the existing disk, or new one
+     * @param sizeBytes size, in bytes, of the disk
+     * @param options how the image should be accessed
+     */
+    public TBFF(String name, long sizeBytes, TBFFOptions options) {
+        this(openDevice(name, options), name, sizeBytes, options);
+    }
+
+    /**
+     * Constructor for a disk stored on <code>device</code>. An empty device gets formatted.
+     * See {@link #TBFF(String, long)}.
+     * @param device where the image is stored. Unmounting the disk closes it.
+     * @param name name of the disk, for messages
+     * @param sizeBytes size, in bytes, of the disk
+     * @param options how the image should be accessed. The device type is ignored.
+     */
+    public TBFF(BlockDevice device, String name, long sizeBytes, TBFFOptions options) {
         // Minimum size for the file system is 1MB
         if (sizeBytes < 1024*1024) {
             System.out.println("WARNING: Cannot create filesystem of size "+sizeBytes);
             System.out.println("         The system will not be recreated.");
         }
         try {
-            fs = new RandomAccessFile(name, "rw");
+            this.device = device;
 
             // Filesystem by this name already exists, but isn't the size we specified!
-            if (fs.length() != 0 && fs.length() != sizeBytes) {
-                System.out.println("WARNING: Filesystem " + name + " already exists, but is of size " + fs.length());
-                System.out.println("         The system will not be recreated.");
+            if (device.size() != 0 && device.size() != sizeBytes) {
+                System.out.println("WARNING: Filesystem " + name + " already exists, but is of size " + device.size());
+                System.out.println("         The system will not be recreated." + ((device.size() < sizeBytes) ? " Use grow() to enlarge it." : ""));
             }
 
             // Filesystem doesn't yet exist, let's format one.
-            else if (fs.length() == 0){
+            else if (device.size() == 0){
                 System.out.print("Formatting filesystem "+name+"...");
-                format(sizeBytes);
+                format(sizeBytes, options.fastFormat());
                 System.out.println("done.");
             }
 
+            // Not a TBFF image, or one made by a version with a different layout. Either way it can't be read, and
+            // whatever is in it isn't ours to format over.
+            checkLayout(name);
+
             System.out.println("Loading filesystem "+name+";");
 
             // Set important static variables.
-            SIZE_BYTES = fs.length();
+            SIZE_BYTES = device.size();
+            ByteBuffer superblock = ByteBuffer.allocate(BLOCK_SIZE);
+            device.read(0, superblock.array(), 0, BLOCK_SIZE);
+
+            INODE_SIZE_BYTES = superblock.getInt(OFFSET_INODE_SIZE);
+
+            NUM_INODES = superblock.getInt(OFFSET_NUM_INODES);
+
+            DATA_START = superblock.getLong(OFFSET_DATA_START_PTR);
+
+            INODE_BITMAP_START = superblock.getLong(OFFSET_INODE_BITMAP_PTR);
+
+            INODE_TABLE_START = superblock.getLong(OFFSET_INODE_TABLE_PTR);
+
+            BLOCK_BITMAP_START = superblock.getLong(OFFSET_BLOCK_BITMAP_PTR);
+
+            NUM_BLOCKS = superblock.getLong(OFFSET_NUM_BLOCKS);
+
+            JOURNAL_START = superblock.getLong(OFFSET_JOURNAL_PTR);
+
+            JOURNAL_SIZE = superblock.getLong(OFFSET_JOURNAL_SIZE);
+
+            INODES_PER_GROUP = superblock.getInt(OFFSET_INODES_PER_GROUP);
+
+            MAX_BLOCKS = superblock.getLong(OFFSET_MAX_BLOCKS);
+            GROUP_TABLE_START = superblock.getLong(OFFSET_GROUP_TABLE_PTR);
+
+            compress = options.compression();
+            fingerprints = (options.dedupIndexSize() > 0) ? new FingerprintIndex(options.dedupIndexSize()) : null;
+            atime = options.atime();
+            cache = new BlockCache(new BlockCache.Backing() {
+                public void read(long firstBlock, byte[] dst, int off, int numBlocks) {
+                    device.read(firstBlock * BLOCK_SIZE, dst, off, numBlocks * BLOCK_SIZE);
+                }
+                public void write(long firstBlock, byte[] src, int off, int numBlocks) {
+                    device.write(firstBlock * BLOCK_SIZE, src, off, numBlocks * BLOCK_SIZE);
+                }
+                public CompletableFuture<Void> readAsync(long firstBlock, byte[] dst, int off, int numBlocks) {
+                    return device.readAsync(firstBlock * BLOCK_SIZE, dst, off, numBlocks * BLOCK_SIZE);
+                }
+                public CompletableFuture<Void> writeAsync(long firstBlock, byte[] src, int off, int numBlocks) {
+                    return device.writeAsync(firstBlock * BLOCK_SIZE, src, off, numBlocks * BLOCK_SIZE);
+                }
+            }, BLOCK_SIZE, options.cacheBlocks(), options.flushIntervalMs());
 
-            fs.seek(OFFSET_INODE_SIZE);
-            INODE_SIZE_BYTES = fs.readInt();
+            // Bring the metadata up to date with anything committed before a crash, before reading any of it
+            journal = new Journal(new Journal.Device() {
+                public void read(long pos, byte[] dst, int off, int len) { device.read(pos, dst, off, len); }
+                public void write(long pos, byte[] src, int off, int len) { device.write(pos, src, off, len); }
+                public void force() { forceDevice(); }
+            }, JOURNAL_START, JOURNAL_SIZE, BLOCK_SIZE);
+            int replayed = journal.recover();
+            if (replayed > 0) System.out.println("Replayed " + replayed + " journal transactions on " + name + ";");
+            cache.setWriteAheadLog(journal::durableSeq);
 
-            fs.seek(OFFSET_NUM_INODES);
-            NUM_INODES = fs.readInt();
+            inodeCache = new InodeCache((inodeNum, inode) -> writeBytes(inodeOffset(inodeNum), inode.encode(), INODE_SIZE_BYTES),
+                    options.inodeCacheSize());
+
+            // Only the group descriptors are read now, each group loads its bitmaps when it's first used
+            ALLOC_GROUP_INODES = readInt(OFFSET_ALLOC_GROUP_INODES);
+            ALLOC_GROUP_BLOCKS = readInt(OFFSET_ALLOC_GROUP_BLOCKS);
+            allocGroups = new AllocationGroup[readInt(OFFSET_ALLOC_GROUPS)];
+            groupLoader = new AllocationGroup.Loader() {
+                public Bitmap inodes(AllocationGroup group) {
+                    byte[] raw = new byte[Bitmap.bytesFor(group.numInodes)];
+                    readBytes(INODE_BITMAP_START + group.firstInode / 8, raw, raw.length);
+                    return new Bitmap(group.numInodes, raw);
+                }
+                public Bitmap blocks(AllocationGroup group) {
+                    byte[] raw = new byte[Bitmap.bytesFor(group.numBlocks)];
+                    readBytes(BLOCK_BITMAP_START + group.firstBlock / 8, raw, raw.length);
+                    return new Bitmap(group.numBlocks, raw);
+                }
+            };
+            for (int g = 0; g < allocGroups.length; g++) {
+                byte[] descriptor = new byte[AllocationGroup.DESCRIPTOR_BYTES];
+                readBytes(GROUP_TABLE_START + (long) g * descriptor.length, descriptor, descriptor.length);
+                allocGroups[g] = loadGroup(g, descriptor);
+            }
+
+            int numGroups = (NUM_INODES + INODES_PER_GROUP - 1) / INODES_PER_GROUP;
+            byte[] rawBitmap = new byte[Bitmap.bytesFor(numGroups)];
+            readBytes(OFFSET_GROUP_INIT_BITMAP, rawBitmap, rawBitmap.length);
+            initialisedGroups = new Bitmap(numGroups, rawBitmap);
+
+            rawBitmap = new byte[INODE_SIZE_BYTES];
+            readBytes(OFFSET_SNAPSHOT_INODE, rawBitmap, rawBitmap.length);
+            snapshotFile = Inode.decode(rawBitmap, 0);
+            if (snapshotFile != null) loadSnapshot();
+
+            rawBitmap = new byte[INODE_SIZE_BYTES];
+            readBytes(OFFSET_REFCOUNT_INODE, rawBitmap, rawBitmap.length);
+            refcountFile = Inode.decode(rawBitmap, 0);
+
+            // A clean image's counters and bitmaps can be trusted as they are, and nothing needs to be scanned.
+            // Otherwise (crash, or an image from before the state field) check everything against the inodes.
+            boolean clean = readInt(OFFSET_STATE) == STATE_CLEAN;
+            if (!clean) {
+                System.out.println("Checking filesystem " + name + ", it wasn't unmounted cleanly;");
+                checkConsistency();
+            }
+            setState(STATE_DIRTY);
+
+            if (options.commitIntervalMs() > 0) {
+                committer = new Thread(() -> commitLoop(options.commitIntervalMs()), "tbff-journal");
+                committer.setDaemon(true);
+                committer.start();
+            } else {
+                committer = null;
+            }
 
         } catch (Exception e) {
             // Vague error but I doubt this would happen often
-            throw new RuntimeException("Cannot create disk: "+name);
+            throw new RuntimeException("Cannot create disk: "+name, e);
+        }
+    }
+
+    /** Opens the built-in device <code>options.device()</code> picks for disk <code>name</code>. */
+    private static BlockDevice openDevice(String name, TBFFOptions options) {
+        try {
+            return switch (options.device()) {
+                case FILE -> new FileDisk(name, options.ioQueueDepth());
+                case MAPPED -> new MappedDisk(name);
+                case MEMORY -> new MemoryDisk();
+            };
+        } catch (IOException e) {
+            throw new RuntimeException("Cannot create disk: "+name, e);
+        }
+    }
+
+    /**
+     * Throws unless the image on the device has the TBFF magic number and this version's layout.
+     * @param name name of the disk, for the message
+     */
+    private void checkLayout(String name) {
+        byte[] magic = new byte[4];
+        byte[] version = new byte[Integer.BYTES];
+        if (device.size() >= BLOCK_SIZE) {
+            device.read(OFFSET_MAGIC_NUMBER, magic, 0, magic.length);
+            device.read(OFFSET_VERSION, version, 0, version.length);
+        }
+        if (!new String(magic).equals("TBFF")) {
+            throw new RuntimeException(name + " is not a TBFF image, refusing to mount it");
+        }
+        int found = ByteBuffer.wrap(version).getInt();
+        if (found != FORMAT_VERSION) {
+            throw new RuntimeException(name + " has layout version " + found + ", but only version "
+                    + FORMAT_VERSION + " can be mounted. Delete the image to start over with a new one.");
         }
     }
 
+    /** Rounds <code>pos</code> up to the next block boundary. */
+    private static long alignToBlock(long pos) {
+        return (pos + BLOCK_SIZE - 1) / BLOCK_SIZE * BLOCK_SIZE;
+    }
+
     /**
      * Formats and resets the file system, clearing it entirely.
      * Use with caution!
+     * @param sizeBytes Size of the new disk.
+     * @param fast If true, only the superblock and group table are written: the device reads as zeros wherever it
+     *             wasn't written, and inode table groups are zeroed on first use. Otherwise every byte is written.
      */
-    void format(long sizeBytes) throws IOException {
-        fs.setLength(sizeBytes);
+    void format(long sizeBytes, boolean fast) {
+        // Truncating first throws away old contents, so the whole device reads as zeros without being written
+        device.resize(0);
+        device.resize(sizeBytes);
 
-        // Creates file of sizeBytes filled with zeroes
-        byte[] zeros = new byte[1024];
-        long remainingBytes = sizeBytes;
-        while (remainingBytes > 0) {
-            int toWrite = (int) Math.min(zeros.length, remainingBytes);
-            fs.write(zeros, 0, toWrite);
-            remainingBytes -= toWrite;
+        if (!fast) {
+            // Creates file of sizeBytes filled with zeroes
+            byte[] zeros = new byte[1024 * 1024];
+            long remainingBytes = sizeBytes;
+            while (remainingBytes > 0) {
+                int toWrite = (int) Math.min(zeros.length, remainingBytes);
+                device.write(sizeBytes - remainingBytes, zeros, 0, toWrite);
+                remainingBytes -= toWrite;
+            }
         }
 
+        // The superblock is put together in memory and written in one go at the end
+        ByteBuffer superblock = ByteBuffer.allocate(BLOCK_SIZE);
+
         // 4 BYTES: Magic number at the start to tell this is a jfs file
-        fs.seek(OFFSET_MAGIC_NUMBER);
-        fs.writeBytes("TBFF");  // MUST BE AT MOST 4 BYTES
+        superblock.put(OFFSET_MAGIC_NUMBER, "TBFF".getBytes());  // MUST BE AT MOST 4 BYTES
 
         // 4 BYTES:
-        int numINodes = (int) (SIZE_BYTES / (8 * 1024));
-        fs.seek(OFFSET_NUM_INODES);
-        fs.writeInt(numINodes);
+        int numINodes = (int) (sizeBytes / (8 * 1024));  // SIZE_BYTES isn't set yet while formatting
+        superblock.putInt(OFFSET_NUM_INODES, numINodes);
 
         // 4 BYTES:
-        int inodeSizeBytes = 256;
-        fs.seek(OFFSET_INODE_SIZE);
-        fs.writeInt(inodeSizeBytes);
+        int inodeSizeBytes = Inode.SIZE_BYTES;
+        superblock.putInt(OFFSET_INODE_SIZE, inodeSizeBytes);
+
+        // Layout after the superblock (block 0): inode bitmap, block bitmap, group table, journal, inode table, data.
+        // Each starts on a block boundary. The block bitmap and group table are sized for a disk GROW_LIMIT times
+        // as big, which costs a few blocks and is what lets grow() add space later.
+        // The journal gets about 1/32 of the disk, between 16 blocks and 32MB.
+        long maxBlocks = Math.min(Integer.MAX_VALUE / 2, sizeBytes / BLOCK_SIZE * GROW_LIMIT) / 64 * 64;
+        long inodeBitmapPtr = BLOCK_SIZE;
+        long blockBitmapPtr = alignToBlock(inodeBitmapPtr + Bitmap.bytesFor(numINodes));
+        long groupTablePtr = alignToBlock(blockBitmapPtr + Bitmap.bytesFor((int) maxBlocks));
+        long journalPtr = alignToBlock(groupTablePtr + (long) MAX_GROWN_ALLOC_GROUPS * AllocationGroup.DESCRIPTOR_BYTES);
+        long journalSize = Math.min(8192, Math.max(16, sizeBytes / BLOCK_SIZE / 32)) * BLOCK_SIZE;
+        long inodeTablePtr = journalPtr + journalSize;
+        long dataBlockPtr = alignToBlock(inodeTablePtr + (long) numINodes * inodeSizeBytes);
+        long numBlocks = (sizeBytes - dataBlockPtr) / BLOCK_SIZE;
+
+        // 8 BYTES: Pointer to the data block, right after the inode table.
+        superblock.putLong(OFFSET_DATA_START_PTR, dataBlockPtr);
+
+        // 4 BYTES: Layout version
+        superblock.putInt(OFFSET_VERSION, FORMAT_VERSION);
+
+        // 4 BYTES: Free inode count. Only brought up to date on unmount, the allocation group descriptors have the live counts.
+        superblock.putInt(OFFSET_FREE_INODES, numINodes);
+
+        // 8 BYTES: Pointer to the inode bitmap. It's all zeros (every inode free) after formatting.
+        superblock.putLong(OFFSET_INODE_BITMAP_PTR, inodeBitmapPtr);
+
+        // 8 BYTES: Pointer to the inode table
+        superblock.putLong(OFFSET_INODE_TABLE_PTR, inodeTablePtr);
+
+        // 8 BYTES: Pointer to the block bitmap
+        superblock.putLong(OFFSET_BLOCK_BITMAP_PTR, blockBitmapPtr);
+
+        // 8 BYTES: Number of blocks in the data region
+        superblock.putLong(OFFSET_NUM_BLOCKS, numBlocks);
 
-        // 8 BYTES: Pointer to the data block.
-        long dataBlockPtr = (long) numINodes * inodeSizeBytes;
-        fs.seek(OFFSET_DATA_START_PTR);
-        fs.writeLong(dataBlockPtr);
+        // 8 BYTES: Free block count, updated like the inode count. Block 0 is reserved since a 0 data pointer means "no block".
+        superblock.putLong(OFFSET_FREE_BLOCKS, numBlocks - 1);
+        device.write(blockBitmapPtr, ByteBuffer.allocate(Long.BYTES).putLong(1L).array(), 0, Long.BYTES);
+
+        // 8 BYTES: Pointer to the journal. Its header block is all zeros, which reads as an empty journal.
+        superblock.putLong(OFFSET_JOURNAL_PTR, journalPtr);
+
+        // 8 BYTES: Size of the journal in bytes
+        superblock.putLong(OFFSET_JOURNAL_SIZE, journalSize);
+
+        // 4 BYTES: Inodes per inode table group. At least a block's worth, and no more than MAX_INODE_GROUPS groups.
+        int inodesPerBlock = BLOCK_SIZE / inodeSizeBytes;
+        int inodesPerGroup = Math.max(inodesPerBlock, (numINodes + MAX_INODE_GROUPS - 1) / MAX_INODE_GROUPS);
+        inodesPerGroup = (inodesPerGroup + inodesPerBlock - 1) / inodesPerBlock * inodesPerBlock;
+        superblock.putInt(OFFSET_INODES_PER_GROUP, inodesPerGroup);
+
+        // 4 BYTES: Mount state. A fresh image is consistent, so it starts out clean.
+        superblock.putInt(OFFSET_STATE, STATE_CLEAN);
+
+        // 12 BYTES: Allocation groups: how many, and inodes and blocks per group. Both are multiples of 64 so each
+        // group owns whole bitmap words. The last group gets whatever is left over.
+        int numAllocGroups = (int) Math.max(1, Math.min(MAX_ALLOC_GROUPS, numBlocks / MIN_ALLOC_GROUP_BLOCKS));
+        int groupBlocks = (int) ((numBlocks + numAllocGroups - 1) / numAllocGroups + 63) / 64 * 64;
+        int groupInodes = ((numINodes + numAllocGroups - 1) / numAllocGroups + 63) / 64 * 64;
+        numAllocGroups = (int) ((numBlocks + groupBlocks - 1) / groupBlocks);
+        superblock.putInt(OFFSET_ALLOC_GROUPS, numAllocGroups);
+        superblock.putInt(OFFSET_ALLOC_GROUP_INODES, groupInodes);
+        superblock.putInt(OFFSET_ALLOC_GROUP_BLOCKS, groupBlocks);
+
+        // 16 BYTES: How many blocks the disk can grow to, and the pointer to the group table
+        superblock.putLong(OFFSET_MAX_BLOCKS, maxBlocks);
+        superblock.putLong(OFFSET_GROUP_TABLE_PTR, groupTablePtr);
+        for (int g = 0; g < numAllocGroups; g++) {
+            int inodes = Math.max(0, Math.min(groupInodes, numINodes - g * groupInodes));
+            int blocks = (int) Math.min(groupBlocks, numBlocks - (long) g * groupBlocks);
+            byte[] descriptor = AllocationGroup.newDescriptor(inodes, (g == 0) ? blocks - 1 : blocks);  // block 0 is reserved
+            device.write(groupTablePtr + (long) g * AllocationGroup.DESCRIPTOR_BYTES, descriptor, 0, descriptor.length);
+        }
+
+        // A full format already zeroed the inode table, so every group counts as initialised
+        if (!fast) {
+            int numGroups = (numINodes + inodesPerGroup - 1) / inodesPerGroup;
+            Bitmap groups = new Bitmap(numGroups);
+            groups.setRange(0, numGroups);
+            superblock.put(OFFSET_GROUP_INIT_BITMAP, groups.wordsCovering(0, numGroups));
+        }
+        device.write(0, superblock.array(), 0, BLOCK_SIZE);
+    }
+
+    /** Sets up allocation group <code>g</code> from its descriptor. Its size follows from the disk's current size. */
+    private AllocationGroup loadGroup(int g, byte[] descriptor) {
+        int firstInode = g * ALLOC_GROUP_INODES;
+        long firstBlock = (long) g * ALLOC_GROUP_BLOCKS;
+        return new AllocationGroup(g, firstInode, Math.max(0, Math.min(ALLOC_GROUP_INODES, NUM_INODES - firstInode)),
+                firstBlock, (int) Math.min(ALLOC_GROUP_BLOCKS, NUM_BLOCKS - firstBlock), descriptor, groupLoader);
+    }
+
+    private AllocationGroup groupOfInode(int inodeNum) {
+        return allocGroups[inodeNum / ALLOC_GROUP_INODES];
+    }
+
+    private AllocationGroup groupOfBlock(long blockNo) {
+        return allocGroups[(int) (blockNo / ALLOC_GROUP_BLOCKS)];
+    }
+
+    /** Index of the allocation group inode <code>inodePtr</code> is in. */
+    synchronized int allocationGroupOfInode(long inodePtr) {
+        return groupOfInode(inodeNumber(inodePtr)).index;
+    }
+
+    /** Index of the allocation group data block <code>blockNo</code> is in, numbered like mapBlock() does. */
+    synchronized int allocationGroupOfBlock(long blockNo) {
+        return groupOfBlock(blockNo).index;
+    }
+
+    synchronized int getAllocationGroupCount() {
+        return allocGroups.length;
     }
 
     /**
-     * Iterates through the inode block of TBFF and finds a spot
-     * @return Offset (pointer) to the spot in TBFF where a new inode may be placed.
+     * Finds a free spot in the inode table using the in-memory inode bitmaps. Doesn't claim it.
+     * @return Offset (pointer) to the spot in TBFF where a new inode may be placed, or -1 if there is none.
      */
-    long getFreeInodeSpot() throws IOException {
-        // Linear search the first byte of each possible inode, looking for a 0 where file type is stored
-        for (long inodeStartPos = OFFSET_INODES_START; inodeStartPos < (long) OFFSET_INODES_START + (long) NUM_INODES * INODE_SIZE_BYTES; inodeStartPos += INODE_SIZE_BYTES) {
-            fs.seek(inodeStartPos);
-            if ((fs.readByte() & 0xFF) == 0) {  // Found an empty byte 0 in an inode
-                return inodeStartPos;
-            }
+    public synchronized long getFreeInodeSpot() {
+        for (AllocationGroup group : allocGroups) {
+            int inodeNum = (group.getFreeInodes() > 0) ? group.findFreeInode() : -1;
+            if (inodeNum != -1) return inodeOffset(inodeNum);
+        }
+        return -1;
+    }
+
+    /**
+     * Picks the allocation group a new inode should go in.
+     * Directories are spread out: among the groups with at least an average share of free inodes and blocks, the one
+     * with the fewest directories. Files go in their parent directory's group, to keep them near each other.
+     * @param parentPtr Inode pointer of the parent directory, or -1 if there isn't one.
+     */
+    private AllocationGroup pickGroup(boolean directory, long parentPtr) {
+        if (!directory) return (parentPtr >= 0) ? groupOfInode(inodeNumber(parentPtr)) : allocGroups[0];
+
+        long averageInodes = getFreeInodeCount() / allocGroups.length;
+        long averageBlocks = getFreeBlockCount() / allocGroups.length;
+        AllocationGroup best = null, roomiest = allocGroups[0];
+        for (AllocationGroup group : allocGroups) {
+            if (group.getFreeInodes() > roomiest.getFreeInodes()) roomiest = group;
+            if (group.getFreeInodes() == 0 || group.getFreeInodes() < averageInodes || group.getFreeBlocks() < averageBlocks) continue;
+            if (best == null || group.getDirectories() < best.getDirectories()) best = group;
         }
+        return (best != null) ? best : roomiest;
+    }
+
+    /**
+     * Claims a free inode slot, updating its group's bitmap and descriptor on disk.
+     * Tries the group pickGroup() suggests first, then the ones after it.
+     * @return Offset (pointer) to the claimed slot, or -1 if the inode table is full.
+     */
+    private synchronized long allocateInodeSpot(boolean directory, long parentPtr) {
+        int inodeNum = claimInode(directory, parentPtr);
+        if (inodeNum == -1) return -1;
+        initialiseGroup(inodeNum / INODES_PER_GROUP);
+        writeInodeBitmapWord(inodeNum);
+        writeGroupDescriptor(groupOfInode(inodeNum));
+        return inodeOffset(inodeNum);
+    }
 
+    /**
+     * Takes a free inode in memory, like allocateInodeSpot(), leaving it to the caller to initialise its inode table
+     * group and write the bitmap word and group descriptor.
+     * @return Number of the inode, or -1 if the inode table is full.
+     */
+    private int claimInode(boolean directory, long parentPtr) {
+        int start = pickGroup(directory, parentPtr).index;
+        for (int n = 0; n < allocGroups.length; n++) {
+            int inodeNum = allocGroups[(start + n) % allocGroups.length].allocateInode(directory);
+            if (inodeNum != -1) return inodeNum;
+        }
         return -1;
     }
 
+    /**
+     * Releases the inode stored at <code>inodePtr</code> so its slot can be reused.
+     * @param inodePtr Offset (pointer) to the inode, as returned by writeInodeToDisk().
+     */
+    public synchronized void freeInode(long inodePtr) {
+        beginOperation();
+        releaseInode(inodePtr);
+    }
+
+    /** Same as freeInode(), as part of an operation that's already running. */
+    private void releaseInode(long inodePtr) {
+        int inodeNum = inodeNumber(inodePtr);
+        AllocationGroup group = groupOfInode(inodeNum);
+        if (!group.isInodeUsed(inodeNum)) return;  // already free
+        boolean directory = readInodeFromDisk(inodePtr).filetype == FileType.Directory;
+        group.freeInode(inodeNum, directory);
+        inodeCache.remove(inodeNum);
+        writeInodeBitmapWord(inodeNum);
+        writeByte(inodePtr, (byte) 0);  // clear the file type so the slot reads as empty
+        writeGroupDescriptor(group);
+    }
+
+    /**
+     * Returns the number of unused inodes, summed over the allocation groups' counters.
+     * @return Free inode count.
+     */
+    public synchronized int getFreeInodeCount() {
+        int free = 0;
+        for (AllocationGroup group : allocGroups) free += group.getFreeInodes();
+        return free;
+    }
+
+    /** Writes back <code>group</code>'s descriptor, as part of the operation that changed its counters. */
+    private void writeGroupDescriptor(AllocationGroup group) {
+        writeBytes(GROUP_TABLE_START + (long) group.index * AllocationGroup.DESCRIPTOR_BYTES,
+                group.encodeDescriptor(), AllocationGroup.DESCRIPTOR_BYTES);
+    }
+
+    /**
+     * Zeroes inode table group <code>group</code> if this is the first time it's used.
+     * The zeros go straight to the image and are forced before the group is marked initialised, so a crash can't
+     * leave an initialised group with old bytes in it. Nothing reads an uninitialised group, so it's never cached.
+     */
+    private void initialiseGroup(int group) {
+        initialiseGroups(new TreeSet<>(List.of(group)));
+    }
+
+    /**
+     * Same as initialiseGroup() for each of <code>groups</code>, with a single force for all of them.
+     * The uninitialised groups up to about a MB after each one are zeroed along with it: the next inodes claimed are
+     * most likely there, and the force costs the same either way. Neighbouring groups are zeroed in one write.
+     */
+    private void initialiseGroups(SortedSet<Integer> groups) {
+        int numGroups = (NUM_INODES + INODES_PER_GROUP - 1) / INODES_PER_GROUP;
+        int ahead = Math.max(1, INIT_AHEAD_BYTES / (INODES_PER_GROUP * INODE_SIZE_BYTES));
+        TreeSet<Integer> toZero = new TreeSet<>();
+        for (int group : groups) {
+            if (initialisedGroups.get(group)) continue;
+            for (int g = group; g < Math.min(numGroups, group + ahead) && !initialisedGroups.get(g); g++) toZero.add(g);
+        }
+        if (toZero.isEmpty()) return;
+        List<Integer> fresh = new ArrayList<>(toZero);
+
+        byte[] zeros = new byte[1024 * 1024];
+        for (int i = 0, last; i < fresh.size(); i = last + 1) {
+            last = i;
+            while (last + 1 < fresh.size() && fresh.get(last + 1) == fresh.get(last) + 1) last++;
+            long start = inodeOffset(fresh.get(i) * INODES_PER_GROUP);
+            long end = inodeOffset(Math.min(NUM_INODES, (fresh.get(last) + 1) * INODES_PER_GROUP));
+            for (long pos = start; pos < end; pos += zeros.length) {
+                device.write(pos, zeros, 0, (int) Math.min(zeros.length, end - pos));
+            }
+        }
+        forceDevice();
+        for (int group : fresh) {
+            initialisedGroups.set(group);
+            writeLong(OFFSET_GROUP_INIT_BITMAP + (long) (group / 64) * Long.BYTES, initialisedGroups.wordOf(group));
+        }
+    }
+
+    /** Writes back the bitmap word holding <code>inodeNum</code>'s bit. */
+    private void writeInodeBitmapWord(int inodeNum) {
+        writeLong(INODE_BITMAP_START + (long) (inodeNum / 64) * Long.BYTES, groupOfInode(inodeNum).inodeWordOf(inodeNum));
+    }
+
+    private long inodeOffset(int inodeNum) {
+        return INODE_TABLE_START + (long) inodeNum * INODE_SIZE_BYTES;
+    }
+
+    int inodeNumber(long inodePtr) {
+        if (inodePtr < INODE_TABLE_START || (inodePtr - INODE_TABLE_START) % INODE_SIZE_BYTES != 0
+                || (inodePtr - INODE_TABLE_START) / INODE_SIZE_BYTES >= NUM_INODES) {
+            throw new IllegalArgumentException("Not an inode pointer: " + inodePtr);
+        }
+        return (int) ((inodePtr - INODE_TABLE_START) / INODE_SIZE_BYTES);
+    }
+
     /**
      * Given a new inode, writes it to TBFF and returns its offset.
      * If no space is available, throws a runtime exception.
      * @param inode Inode to write to disk.
      * @return Offset (pointer) to this inode in TBFF.
      */
-    public int writeInodeToDisk(Inode inode) throws RuntimeException, IOException {
-        long inodePtr = getFreeInodeSpot();
+    public long writeInodeToDisk(Inode inode) throws RuntimeException {
+        return writeInodeToDisk(inode, -1);
+    }
+
+    /**
+     * Same as {@link #writeInodeToDisk(Inode)}, placing the inode according to its parent directory.
+     * See pickGroup() for how the allocation group is chosen.
+     * @param parentPtr Pointer to the parent directory's inode, or -1 for none.
+     */
+    public synchronized long writeInodeToDisk(Inode inode, long parentPtr) throws RuntimeException {
+        beginOperation();
+        long inodePtr = allocateInodeSpot(inode.filetype == FileType.Directory, parentPtr);
+        if (inodePtr == -1) throw new RuntimeException("No free inodes left on disk");
+
+        // The whole record goes out as one write. The type is its first byte, so the slot reads as taken.
+        writeBytes(inodePtr, inode.encode(), INODE_SIZE_BYTES);
+        inode.inodePtr = inodePtr;
+        inodeCache.put(inodeNumber(inodePtr), inode);
+        return inodePtr;
+    }
+
+    /**
+     * Creates the entries <code>names</code> in directory <code>dir</code> all at once, for importing whole trees.
+     * It's what writeInodeToDisk(), initDirectory() or writeData(), and addEntry() do for each entry, in bulk:
+     * the inodes are claimed together and written as runs of neighbouring slots, the new directories' blocks and
+     * the files' data are each allocated with one request and laid out back to back so every run takes one write,
+     * and the directory's index is updated leaf by leaf instead of entry by entry.
+     * On a disk opened with compression or dedup, files too big to keep in their inode go through writeData() one
+     * at a time instead, so they still get those.
+     * A big batch is created as several operations, each logging at most a quarter of the journal, so a crash
+     * keeps some of the entries but never half of one.
+     * Throws a runtime exception if a name is taken or the disk runs out of inodes or space. Names and inodes are
+     * checked before anything is created; if the disk runs out of space part way, the entries of the operations
+     * before stay, and everything the failed one claimed is given back.
+     * @param dir Directory inode the entries go in.
+     * @param names Names of the new entries.
+     * @param inodes New inodes, one per name, not on disk yet. New directories come out empty.
+     * @param contents Contents of each new file, null for the directories.
+     * @return Pointer to each new inode.
+     */
+    public synchronized long[] createEntries(Inode dir, List<String> names, List<Inode> inodes, List<byte[]> contents) {
+        if (dir.filetype != FileType.Directory) throw new RuntimeException("Not a directory");
+        if (inodes.size() > getFreeInodeCount()) throw new RuntimeException("No free inodes left on disk");
+        if (new HashSet<>(names).size() != names.size()) throw new RuntimeException("Duplicate names in one call");
+        DirectoryIndex index = directoryIndex(dir);
+        for (String name : names) {
+            if (index.lookup(name) != -1) throw new RuntimeException("Entry already exists: " + name);
+        }
 
-        // TODO:
-        //   Once we've obtained the free spot, you'll want to write it to TBFF
-        //   using a similar method to ``format()``. Write the inode to disk
-        //   however you'd like, but ensure it doesn't go over INODE_SIZE_BYTES.
-        //   We may also consider making the first byte of the inode something like
-        //   "F" for files or "D" for directories, so getFreeInodeSpot() only needs
-        //   to check one byte to see if a spot is free.
+        // How much an entry logs mostly depends on how many index leaves it touches. The first operation assumes
+        // the worst, the ones after it go by what the one before actually logged.
+        long budget = JOURNAL_SIZE / 4;
+        long perEntry = INODE_SIZE_BYTES + (DirectoryIndex.EMPTY_BLOCKS + 2L) * BLOCK_SIZE;
+        long[] inodePtrs = new long[names.size()];
+        for (int from = 0, to; from < names.size(); from = to) {
+            to = (int) Math.min(names.size(), from + Math.max(1, budget / perEntry));
+            beginOperation();
+            long logged = journal.runningBytes();
+            long[] created = createEntriesOnce(dir, names.subList(from, to), inodes.subList(from, to), contents.subList(from, to));
+            System.arraycopy(created, 0, inodePtrs, from, created.length);
+            perEntry = Math.max(1, 2 * (journal.runningBytes() - logged) / (to - from));  // twice, to be safe
+        }
+        return inodePtrs;
+    }
 
-        // Writing file type
-        fs.seek(inodePtr);
-        fs.writeInt(inode.getFileType());
+    /** Same as createEntries(), as one operation. */
+    private long[] createEntriesOnce(Inode dir, List<String> names, List<Inode> inodes, List<byte[]> contents) {
+        // Claim every slot first, so the blocks below can be placed near their inodes
+        TreeMap<Integer, Inode> claimed = new TreeMap<>();
+        for (Inode inode : inodes) {
+            int inodeNum = claimInode(inode.filetype == FileType.Directory, dir.inodePtr);
+            inode.inodePtr = inodeOffset(inodeNum);
+            claimed.put(inodeNum, inode);
+        }
+        long[] inodePtrs = new long[inodes.size()];
+        try {
+            TreeSet<Integer> tableGroups = new TreeSet<>();
+            for (int inodeNum : claimed.keySet()) tableGroups.add(inodeNum / INODES_PER_GROUP);
+            initialiseGroups(tableGroups);
+            Set<AllocationGroup> groups = new LinkedHashSet<>();
+            int lastWord = -1;
+            for (int inodeNum : claimed.keySet()) {
+                if (inodeNum / 64 != lastWord) writeInodeBitmapWord(inodeNum);
+                lastWord = inodeNum / 64;
+                groups.add(groupOfInode(inodeNum));
+            }
+            groups.forEach(this::writeGroupDescriptor);
 
-        // Writing permissions
-        FilePerms inodePerms = inode.getPermissions();
+            List<Inode> dirs = new ArrayList<>(), files = new ArrayList<>(), oneByOne = new ArrayList<>();
+            List<byte[]> fileData = new ArrayList<>(), oneByOneData = new ArrayList<>();
+            for (int i = 0; i < inodes.size(); i++) {
+                Inode inode = inodes.get(i);
+                byte[] data = contents.get(i);
+                if (inode.filetype == FileType.Directory) {
+                    dirs.add(inode);
+                } else if (data.length <= Inode.INLINE_CAPACITY) {
+                    if (data.length > 0) inode.inlineData = data.clone();
+                    inode.size = data.length;
+                } else if (!compress && fingerprints == null) {
+                    files.add(inode);
+                    fileData.add(data);
+                } else {
+                    oneByOne.add(inode);
+                    oneByOneData.add(data);
+                }
+            }
+            storeAll(dirs, Collections.nCopies(dirs.size(), DirectoryIndex.emptyImage(BLOCK_SIZE)), true);
+            storeAll(files, fileData, false);
 
-        Permission owner = inodePerms.owner();
-        byte ownerPerms = 0;
-        if (owner.r()) { ownerPerms |= 0b00000100; }
-        if (owner.w()) { ownerPerms |= 0b00000010; }
-        if (owner.x()) { ownerPerms |= 0b00000001; }
+            // The inode records, one write per run of neighbouring slots
+            int maxRun = maxLoggedWrite() / INODE_SIZE_BYTES;
+            List<Integer> slots = new ArrayList<>(claimed.keySet());
+            for (int i = 0, end; i < slots.size(); i = end) {
+                int first = slots.get(i);
+                end = i + 1;
+                while (end < slots.size() && slots.get(end) == first + (end - i) && end - i < maxRun) end++;
+                byte[] run = new byte[(end - i) * INODE_SIZE_BYTES];
+                for (int j = i; j < end; j++) {
+                    Inode inode = claimed.get(slots.get(j));
+                    System.arraycopy(inode.encode(), 0, run, (j - i) * INODE_SIZE_BYTES, INODE_SIZE_BYTES);
+                    inodeCache.put(slots.get(j), inode);
+                }
+                writeBytes(inodeOffset(first), run, run.length);
+            }
+            for (int i = 0; i < oneByOne.size(); i++) writeData(oneByOne.get(i), oneByOneData.get(i), compress, fingerprints != null, 0);
 
-        Permission group = inodePerms.group();
-        byte groupPerms = 0;
-        if (group.r()) { groupPerms |= 0b00000100; }
-        if (group.w()) { groupPerms |= 0b00000010; }
-        if (group.x()) { groupPerms |= 0b00000001; }
+            Map<String, Long> entries = new LinkedHashMap<>();
+            for (int i = 0; i < inodes.size(); i++) {
+                inodePtrs[i] = inodes.get(i).inodePtr;
+                entries.put(names.get(i), inodePtrs[i]);
+            }
+            directoryIndex(dir).insertAll(entries);
+            modified(dir);
+        } catch (RuntimeException e) {
+            // Out of space, a name was taken or the directory is full. Nothing points at the new inodes yet, so
+            // give back everything they got so far.
+            releaseClaimed(claimed);
+            throw e;
+        }
+        return inodePtrs;
+    }
 
-        Permission other = inodePerms.group();
-        byte otherPerms = 0;
-        if (other.r()) { otherPerms |= 0b00000100; }
-        if (other.w()) { otherPerms |= 0b00000010; }
-        if (other.x()) { otherPerms |= 0b00000001; }
+    /**
+     * Undoes a failed createEntriesOnce(): frees the blocks and pointer blocks each of the <code>claimed</code>
+     * inodes got so far, then the inodes themselves, which may or may not have been written out yet.
+     */
+    private void releaseClaimed(Map<Integer, Inode> claimed) {
+        Set<AllocationGroup> groups = new LinkedHashSet<>();
+        for (Map.Entry<Integer, Inode> slot : claimed.entrySet()) {
+            int inodeNum = slot.getKey();
+            Inode inode = slot.getValue();
+            for (Extent extent : blockMap(inode).extents()) releaseBlocks(extent);
+            for (long pointerBlock : pointerBlocks(inode)) releaseBlocks(new Extent(pointerBlock, 1));
+            AllocationGroup group = groupOfInode(inodeNum);
+            group.freeInode(inodeNum, inode.filetype == FileType.Directory);
+            groups.add(group);
+            inodeCache.remove(inodeNum);
+            writeInodeBitmapWord(inodeNum);
+            writeByte(inode.inodePtr, (byte) 0);  // in case its record made it out
+            inode.inodePtr = -1;
+        }
+        groups.forEach(this::writeGroupDescriptor);
+    }
 
-        fs.writeByte(ownerPerms);
-        fs.writeByte(groupPerms);
-        fs.writeByte(otherPerms);
+    /**
+     * Gives each of <code>inodes</code> new blocks holding <code>images</code>, with a single allocation for all of
+     * them. The images are laid out back to back in the order given, and written a run of blocks at a time.
+     * Pointer blocks, for the few files that need them, are allocated afterwards.
+     * @param logged Whether the blocks are metadata, to be journaled, rather than file data.
+     */
+    private void storeAll(List<Inode> inodes, List<byte[]> images, boolean logged) {
+        if (inodes.isEmpty()) return;
+        long total = 0;
+        for (byte[] image : images) {
+            long numBlocks = (image.length + BLOCK_SIZE - 1) / BLOCK_SIZE;
+            if (numBlocks > MAX_FILE_BLOCKS) throw new RuntimeException("File too large: " + image.length + " bytes");
+            total += numBlocks;
+        }
 
-        // Writing UID, GUID, etc.
-        fs.writeInt(inode.getUserId());
-        fs.writeInt(inode.getGroupId());
-        fs.writeInt(inode.getNumRefs());
-        fs.writeLong(inode.getCreateTime());
-        fs.writeLong(inode.getModTime());
-        fs.writeLong(inode.getAccessTime());
+        int file = 0;     // inode whose blocks are being handed out
+        int block = 0;    // block of that inode's image
+        long[] dataBlocks = new long[(images.get(0).length + BLOCK_SIZE - 1) / BLOCK_SIZE];
+        BlockMap map = new BlockMap();
+        int maxChunk = (int) Math.min(total, logged ? maxLoggedWrite() / BLOCK_SIZE : WRITE_CHUNK_BLOCKS);
+        byte[] buf = new byte[maxChunk * BLOCK_SIZE];
+        List<Extent> allocated = allocateBlocks(total, -1, inodes.get(0));
+        try {
+            for (Extent extent : allocated) {
+                for (long chunk = extent.start(); chunk < extent.end(); chunk += maxChunk) {
+                    int chunkBlocks = (int) Math.min(maxChunk, extent.end() - chunk);
+                    Arrays.fill(buf, 0, chunkBlocks * BLOCK_SIZE, (byte) 0);
+                    for (int i = 0; i < chunkBlocks; i++) {
+                        byte[] image = images.get(file);
+                        int offset = block * BLOCK_SIZE;
+                        System.arraycopy(image, offset, buf, i * BLOCK_SIZE, Math.min(BLOCK_SIZE, image.length - offset));
+                        map.add(block, chunk + i);
+                        dataBlocks[block++] = chunk + i;
+                        if (block < dataBlocks.length) continue;
 
-        // Writing pointers to data block
-        long[] dataPtrs = inode.getDataPtrs();
-        for (long dataPtr : dataPtrs) {
-            if (dataPtr == 0) { break; }
-            fs.writeLong(dataPtr);
+                        // That was the inode's last block
+                        Inode inode = inodes.get(file);
+                        storePointers(inode, dataBlocks);
+                        inode.blockMap = map;
+                        inode.size = (inode.filetype == FileType.Directory) ? (long) dataBlocks.length * BLOCK_SIZE : image.length;
+                        if (++file == inodes.size()) break;
+                        block = 0;
+                        dataBlocks = new long[(images.get(file).length + BLOCK_SIZE - 1) / BLOCK_SIZE];
+                        map = new BlockMap();
+                    }
+                    if (logged) writeBytes(DATA_START + chunk * BLOCK_SIZE, buf, chunkBlocks * BLOCK_SIZE);
+                    else writeUnlogged(DATA_START + chunk * BLOCK_SIZE, buf, 0, chunkBlocks * BLOCK_SIZE);
+                }
+            }
+        } catch (RuntimeException e) {
+            // No room for some file's pointer blocks. Hand back all of this call's blocks, and the pointer blocks
+            // of the files done so far, so none of the inodes points at anything.
+            for (Extent extent : allocated) releaseBlocks(extent);
+            for (int i = 0; i <= file && i < inodes.size(); i++) {
+                Inode inode = inodes.get(i);
+                for (long pointerBlock : pointerBlocks(inode)) releaseBlocks(new Extent(pointerBlock, 1));
+                Arrays.fill(inode.dataPtrs, 0);
+                inode.indirect = inode.doubleIndirect = 0;
+                inode.blockMap = null;
+                inode.size = 0;
+            }
+            throw e;
         }
+    }
 
-        return 0;
+    /**
+     * Largest journaled write the bulk paths make in one go. Well under the half of the journal that triggers a
+     * checkpoint, since a single write can't be split across one.
+     */
+    private int maxLoggedWrite() {
+        return (int) Math.max(BLOCK_SIZE, Math.min(WRITE_CHUNK_BLOCKS * BLOCK_SIZE, JOURNAL_SIZE / 8) / BLOCK_SIZE * BLOCK_SIZE);
     }
 
     /**
      * Given a long offset, reads the inode stored at that position in TBFF
      * and returns an inode object constructed from it.
-     * If no inode is found at that position, will raise some typa error idk
+     * Inodes are cached, so reading the same one again returns the same object without touching the disk.
+     * If no inode is found at that position, throws a runtime exception.
      * @param offset Position in TBFF where the Inode is found
-     * @return newInode created from reading TBFF
+     * @return The inode stored at <code>offset</code>.
+     */
+    public synchronized Inode readInodeFromDisk(long offset) {
+        int inodeNum = inodeNumber(offset);
+        Inode inode = inodeCache.get(inodeNum);
+        if (inode != null) return inode;
+
+        // Unallocated slots may sit in a group that was never initialised, so don't even read them
+        if (!groupOfInode(inodeNum).isInodeUsed(inodeNum)) throw new RuntimeException("No inode at " + offset);
+        byte[] raw = new byte[INODE_SIZE_BYTES];
+        readBytes(offset, raw, raw.length);
+        inode = Inode.decode(raw, 0);
+        if (inode == null) throw new RuntimeException("No inode at " + offset);
+        inode.inodePtr = offset;
+        inodeCache.put(inodeNum, inode);
+        return inode;
+    }
+
+    /**
+     * Records that <code>inode</code> changed. The new copy is written back when it leaves the inode cache
+     * or on the next sync, so many updates to a hot inode cost a single write.
+     * @param inode Inode previously written with writeInodeToDisk() or read with readInodeFromDisk().
+     */
+    public synchronized void updateInode(Inode inode) {
+        if (inode.inodePtr == -1) throw new RuntimeException("Inode was never written to disk");
+        inodeCache.putDirty(inodeNumber(inode.inodePtr), inode);
+    }
+
+    /** Sets <code>inode</code>'s modification time, and marks it dirty if it's on disk. */
+    private void modified(Inode inode) {
+        inode.tsModify = System.currentTimeMillis();
+        if (inode.inodePtr != -1) updateInode(inode);
+    }
+
+    /**
+     * Records a read of <code>inode</code>, according to the disk's AtimeMode. In RELATIME mode the new access time
+     * stays in memory, so a read never makes the inode dirty.
+     */
+    private void accessed(Inode inode) {
+        if (atime == AtimeMode.NOATIME || inode.inodePtr == -1) return;
+        long now = System.currentTimeMillis();
+        if (atime == AtimeMode.STRICT) {
+            inode.tsAccess = now;
+            updateInode(inode);
+            return;
+        }
+        if (inode.tsAccess > inode.tsModify && now - inode.tsAccess < RELATIME_MAX_AGE_MS) return;
+        inode.tsAccess = now;
+        inodeCache.putLazy(inodeNumber(inode.inodePtr), inode);
+    }
+
+    /**
+     * Returns the inode of the root directory, creating an empty one the first time a disk is mounted.
+     * @return Offset (pointer) to the root directory's inode.
+     */
+    public synchronized long getRootInodePtr() {
+        byte[] raw = new byte[Long.BYTES];
+        readBytes(OFFSET_ROOT_INODE_PTR, raw, raw.length);
+        long rootPtr = ByteBuffer.wrap(raw).getLong();
+        if (rootPtr == 0) {
+            Inode root = new Inode(FileType.Directory, Inode.parsePerms("rwxr-xr-x"));
+            rootPtr = writeInodeToDisk(root);
+            directoryIndex(root).init();
+            writeLong(OFFSET_ROOT_INODE_PTR, rootPtr);
+        }
+        return rootPtr;
+    }
+
+    /**
+     * Allocates <code>count</code> data blocks and records them in the block bitmap.
+     * Blocks are handed out as contiguous runs, see {@link BlockAllocator#allocate(long, long)}.
+     * @param count Number of blocks needed.
+     * @param goal Preferred first block, e.g. the one after a file's last block, or -1.
+     * @return The allocated extents in order. Throws a runtime exception if the disk is full.
+     */
+    synchronized List<Extent> allocateBlocks(long count, long goal) {
+        return allocateBlocks(count, goal, null);
+    }
+
+    /**
+     * Same as {@link #allocateBlocks(long, long)}, preferring the allocation group of <code>inode</code> when there's
+     * no goal. A request the first group can't hold carries on in the groups after it.
+     * @param inode Inode the blocks are for, or null.
+     */
+    private synchronized List<Extent> allocateBlocks(long count, long goal, Inode inode) {
+        List<Extent> extents = new ArrayList<>();
+        if (count <= 0) return extents;
+        if (count > getFreeBlockCount()) throw new RuntimeException("No space left on disk");
+
+        int start = 0;
+        if (goal >= 0) start = groupOfBlock(goal).index;
+        else if (inode != null && inode.inodePtr != -1) start = groupOfInode(inodeNumber(inode.inodePtr)).index;
+        for (int n = 0; n < allocGroups.length && count > 0; n++) {
+            AllocationGroup group = allocGroups[(start + n) % allocGroups.length];
+            long take = Math.min(count, group.getFreeBlocks());
+            if (take == 0) continue;
+            for (Extent extent : group.allocateBlocks(take, goal)) {
+                writeBlockBitmapWords(group, extent);
+                extents.add(extent);
+            }
+            writeGroupDescriptor(group);
+            count -= take;
+        }
+        return extents;
+    }
+
+    /**
+     * Returns an extent of data blocks to the free pool.
+     * @param extent Blocks to free. May span allocation groups.
+     */
+    synchronized void freeBlocks(Extent extent) {
+        if (fingerprints != null) fingerprints.forget(extent);
+        for (Extent part : splitByGroup(extent)) {
+            AllocationGroup group = groupOfBlock(part.start());
+            group.freeBlocks(part);
+            writeBlockBitmapWords(group, part);
+            writeGroupDescriptor(group);
+        }
+    }
+
+    /** Cuts <code>extent</code> at allocation group boundaries. */
+    private List<Extent> splitByGroup(Extent extent) {
+        List<Extent> parts = new ArrayList<>();
+        for (long start = extent.start(); start < extent.end(); ) {
+            long end = Math.min(extent.end(), (start / ALLOC_GROUP_BLOCKS + 1) * ALLOC_GROUP_BLOCKS);
+            parts.add(new Extent(start, end - start));
+            start = end;
+        }
+        return parts;
+    }
+
+    /**
+     * Returns the number of unused data blocks, summed over the allocation groups' counters.
+     * @return Free block count.
+     */
+    public synchronized long getFreeBlockCount() {
+        long free = 0;
+        for (AllocationGroup group : allocGroups) free += group.getFreeBlocks();
+        return free;
+    }
+
+    /**
+     * Grows the disk to <code>newSizeBytes</code> while it's mounted. The image file is extended and all the new space
+     * goes to the data region: the last allocation group is filled up to full size, then new groups are added after it.
+     * Nothing already on the disk moves or gets rewritten.
+     * The inode table sits in front of the data region and can't grow, so the new groups have no inodes of their own.
+     * @param newSizeBytes New size of the image. The data region can grow to about GROW_LIMIT times its formatted size.
+     * @throws RuntimeException If the disk has a snapshot, or can't grow that far.
+     */
+    public synchronized void grow(long newSizeBytes) {
+        if (newSizeBytes < SIZE_BYTES) throw new RuntimeException("Cannot shrink disk from " + SIZE_BYTES + " to " + newSizeBytes + " bytes");
+        long newNumBlocks = (newSizeBytes - DATA_START) / BLOCK_SIZE;
+        if (newNumBlocks > MAX_BLOCKS) {
+            throw new RuntimeException("Disk can grow to at most " + (DATA_START + MAX_BLOCKS * BLOCK_SIZE) + " bytes");
+        }
+        int newNumGroups = (int) ((newNumBlocks + ALLOC_GROUP_BLOCKS - 1) / ALLOC_GROUP_BLOCKS);
+        if (newNumGroups > MAX_GROWN_ALLOC_GROUPS) throw new RuntimeException("Disk can't have more than " + MAX_GROWN_ALLOC_GROUPS + " groups");
+        // The snapshot's bitmaps are sized for the disk as it was when the snapshot was taken
+        if (snapshotFile != null) throw new RuntimeException("Cannot grow a disk with a snapshot, delete it first");
+        beginOperation();
+
+        // Extend the file first, so the superblock never describes space that isn't there.
+        // The new space reads as zeros, which is exactly an empty bitmap slice for it.
+        device.resize(newSizeBytes);
+        SIZE_BYTES = newSizeBytes;
+        if (newNumBlocks == NUM_BLOCKS) return;
+        NUM_BLOCKS = newNumBlocks;
+
+        // The last group was probably cut short, so it gets the first of the new blocks
+        AllocationGroup[] groups = Arrays.copyOf(allocGroups, newNumGroups);
+        AllocationGroup last = allocGroups[allocGroups.length - 1];
+        groups[last.index] = last.resized((int) Math.min(ALLOC_GROUP_BLOCKS, NUM_BLOCKS - last.firstBlock));
+        for (int g = allocGroups.length; g < newNumGroups; g++) {
+            int blocks = (int) Math.min(ALLOC_GROUP_BLOCKS, NUM_BLOCKS - (long) g * ALLOC_GROUP_BLOCKS);
+            groups[g] = loadGroup(g, AllocationGroup.newDescriptor(0, blocks));
+        }
+        for (int g = last.index; g < newNumGroups; g++) writeGroupDescriptor(groups[g]);
+        writeLong(OFFSET_NUM_BLOCKS, NUM_BLOCKS);
+        writeInt(OFFSET_ALLOC_GROUPS, newNumGroups);
+        allocGroups = groups;
+
+        // The reference counts need room for the new blocks too
+        if (refcountFile != null) {
+            Inode file = refcountFile;
+            byte[] table = new byte[(int) (NUM_BLOCKS * Character.BYTES)];
+            readData(file, table, false);
+            refcountFile = null;  // its own blocks are never shared, they can just be freed
+            writeData(file, table, false, false, 0);
+            journal.commit();
+            cache.flush();
+            forceDevice();
+            writeBytes(OFFSET_REFCOUNT_INODE, file.encode(), INODE_SIZE_BYTES);
+            refcountFile = file;
+        }
+        journal.commit();
+    }
+
+    /** Writes back the bitmap words covering <code>extent</code>, in one write. */
+    private void writeBlockBitmapWords(AllocationGroup group, Extent extent) {
+        byte[] words = group.blockWordsCovering(extent);
+        writeBytes(BLOCK_BITMAP_START + (extent.start() / 64) * Long.BYTES, words, words.length);
+    }
+
+    /**
+     * Replaces the contents of <code>inode</code> with <code>data</code>.
+     * The old blocks are released and the new ones are allocated as one run sized to the write where possible,
+     * so each run is written with a single contiguous I/O. Pointer blocks are allocated after the data.
+     * A file's contents of up to Inode.INLINE_CAPACITY bytes are kept in the inode instead, with no blocks at all.
+     * If the disk was opened with compression, bigger files are stored compressed when that saves a block.
+     * If it was opened with dedup, blocks whose contents another file already has are shared with that file.
+     * A file with preallocated blocks that <code>data</code> fits in is written in place instead, see preallocate().
+     * @param inode Inode whose data pointers and size are updated. If it's on disk it's marked dirty.
+     * @param data New contents. At most MAX_FILE_BLOCKS blocks.
+     */
+    public synchronized void writeData(Inode inode, byte[] data) {
+        beginOperation();
+        if (fitsPreallocated(inode, data.length)) {
+            overwrite(inode, data);
+            return;
+        }
+        boolean isFile = inode.filetype == FileType.File;
+        writeData(inode, data, compress && isFile, fingerprints != null && isFile, 0);
+    }
+
+    /**
+     * Reserves blocks for file <code>inode</code> to grow to <code>sizeBytes</code>, in as few runs as the
+     * allocator can manage, without writing them. Until the file outgrows them, writeData() writes into these
+     * blocks in place: no allocation per write, and the layout stays as contiguous as it was reserved.
+     * The reserved blocks past the file's data are unwritten. They read as zeros and don't count towards its size.
+     * Writing no data at all or more than fits, or taking a snapshot, ends the reservation.
+     * Does nothing if the file already has enough blocks reserved.
+     * @param inode File inode. Its current contents are kept.
+     * @param sizeBytes Size to reserve blocks for. At most MAX_FILE_BLOCKS blocks.
+     */
+    public synchronized void preallocate(Inode inode, long sizeBytes) {
+        if (inode.filetype != FileType.File) throw new RuntimeException("Only files can be preallocated");
+        beginOperation();
+        long numBlocks = (sizeBytes + BLOCK_SIZE - 1) / BLOCK_SIZE;
+        if (numBlocks > MAX_FILE_BLOCKS) throw new RuntimeException("File too large: " + sizeBytes + " bytes");
+        if (!inode.compressed && numBlocks <= mappedBlocks(inode)) return;
+        byte[] data = new byte[(int) inode.size];
+        readData(inode, data, false);
+        writeData(inode, data, false, false, numBlocks);
+    }
+
+    /**
+     * Whether <code>inode</code> is a file with preallocated blocks past its data that <code>length</code> bytes
+     * fit in. Those blocks are never offered for dedup, but the snapshot may share them, and then they can't be
+     * written over.
+     */
+    private boolean fitsPreallocated(Inode inode, int length) {
+        if (inode.filetype != FileType.File || inode.compressed || inode.isInline() || length == 0) return false;
+        long mapped = mappedBlocks(inode);
+        if (mapped <= (inode.size + BLOCK_SIZE - 1) / BLOCK_SIZE || mapped < (length + BLOCK_SIZE - 1) / BLOCK_SIZE) return false;
+        if (snapshotBlocks == null) return true;
+        for (Extent extent : blockMap(inode).extents()) {
+            for (long b = extent.start(); b < extent.end(); b++) {
+                if (isShared(b)) return false;
+            }
+        }
+        return true;
+    }
+
+    /** Number of data blocks mapped to <code>inode</code>, written or not. */
+    private long mappedBlocks(Inode inode) {
+        long count = 0;
+        for (Extent extent : blockMap(inode).extents()) count += extent.length();
+        return count;
+    }
+
+    /** Writes <code>data</code> over the start of <code>inode</code>'s preallocated blocks. */
+    private void overwrite(Inode inode, byte[] data) {
+        for (Map.Entry<Long, Extent> run : blockMap(inode).runs().entrySet()) {
+            long offset = run.getKey() * BLOCK_SIZE;
+            if (offset >= data.length) break;
+            int len = (int) Math.min(run.getValue().length() * BLOCK_SIZE, data.length - offset);
+            writeUnlogged(DATA_START + run.getValue().start() * BLOCK_SIZE, data, (int) offset, len);
+        }
+        inode.size = data.length;
+        modified(inode);
+    }
+
+    /**
+     * Same as {@link #writeData(Inode, byte[])}, but never in place.
+     * @param compress Whether the data may be stored compressed, see CompressedData.
+     * @param dedup Whether the data's blocks may be shared with other files, and offered for sharing.
+     * @param reserveBlocks Number of blocks to allocate even if the data needs fewer, see preallocate(). 0 for none.
      */
-    public Inode readInodeFromDisk(long offset) {
-        Inode newInode = new Inode(FileType.File); // placeholder
-        return newInode;
+    private void writeData(Inode inode, byte[] data, boolean compress, boolean dedup, long reserveBlocks) {
+        if ((data.length + BLOCK_SIZE - 1) / BLOCK_SIZE > MAX_FILE_BLOCKS) throw new RuntimeException("File too large: " + data.length + " bytes");
+
+        BlockMap oldMap = blockMap(inode);
+        long goal = oldMap.extents().isEmpty() ? -1 : oldMap.extents().iterator().next().start();
+        for (Extent extent : oldMap.extents()) releaseBlocks(extent);
+        for (long pointerBlock : pointerBlocks(inode)) releaseBlocks(new Extent(pointerBlock, 1));
+        Arrays.fill(inode.dataPtrs, 0);
+        inode.indirect = 0;
+        inode.doubleIndirect = 0;
+        inode.inlineData = null;
+        inode.compressed = false;
+
+        // Small files live in the inode and don't need a block
+        if (inode.filetype == FileType.File && data.length <= Inode.INLINE_CAPACITY && reserveBlocks == 0) {
+            inode.inlineData = data.clone();
+            inode.blockMap = new BlockMap();
+            inode.size = data.length;
+            modified(inode);
+            return;
+        }
+
+        byte[] stored = compress ? CompressedData.pack(data, BLOCK_SIZE) : null;
+        if (stored != null) inode.compressed = true;
+        else stored = data;
+
+        BlockMap map = new BlockMap();
+        long numBlocks = Math.max(reserveBlocks, (stored.length + BLOCK_SIZE - 1) / BLOCK_SIZE);
+        long[] dataBlocks = new long[(int) numBlocks];
+        long[] hashes = dedup ? hashBlocks(stored, (int) numBlocks) : null;
+        int numShared = dedup ? shareDuplicates(stored, hashes, dataBlocks) : 0;
+        int block = 0;
+        if (numShared == 0) {
+            for (Extent extent : allocateBlocks(numBlocks, goal, inode)) {
+                int offset = block * BLOCK_SIZE;
+                int len = (int) Math.min(extent.length() * BLOCK_SIZE, stored.length - offset);
+                if (len > 0) writeUnlogged(DATA_START + extent.start() * BLOCK_SIZE, stored, offset, len);  // reserved blocks stay unwritten
+                map.addRun(block, extent);
+                for (long b = extent.start(); b < extent.end(); b++) {
+                    if (dedup) fingerprints.put(hashes[block], b);
+                    dataBlocks[block++] = b;
+                }
+            }
+        } else {
+            // Only the blocks nobody else has get new space, so the file's blocks aren't one run. Write them one by one.
+            for (Extent extent : allocateBlocks(numBlocks - numShared, goal, inode)) {
+                for (long b = extent.start(); b < extent.end(); b++) {
+                    while (dataBlocks[block] != 0) block++;
+                    int offset = block * BLOCK_SIZE;
+                    writeUnlogged(DATA_START + b * BLOCK_SIZE, stored, offset, Math.min(BLOCK_SIZE, stored.length - offset));
+                    fingerprints.put(hashes[block], b);
+                    dataBlocks[block++] = b;
+                }
+            }
+            for (int i = 0; i < numBlocks; i++) map.add(i, dataBlocks[i]);
+        }
+        storePointers(inode, dataBlocks);
+
+        inode.blockMap = map;
+        inode.size = data.length;
+        modified(inode);
+    }
+
+    /** Hash of each block-sized chunk of <code>stored</code>, see FingerprintIndex.hash(). */
+    private long[] hashBlocks(byte[] stored, int numBlocks) {
+        long[] hashes = new long[numBlocks];
+        for (int i = 0; i < numBlocks; i++) {
+            int offset = i * BLOCK_SIZE;
+            hashes[i] = FingerprintIndex.hash(stored, offset, Math.min(BLOCK_SIZE, stored.length - offset));
+        }
+        return hashes;
+    }
+
+    /**
+     * Looks up each block of <code>stored</code> in the fingerprint index, and shares the ones another file already
+     * has by taking a reference on them. Two blocks within the same write are never matched with each other.
+     * @param hashes Hash of each block, see hashBlocks().
+     * @param dataBlocks Gets the shared data block for each block that was found. The rest stay 0.
+     * @return Number of blocks shared.
+     */
+    private int shareDuplicates(byte[] stored, long[] hashes, long[] dataBlocks) {
+        byte[] candidate = new byte[BLOCK_SIZE];
+        int shared = 0;
+        for (int i = 0; i < hashes.length; i++) {
+            long b = fingerprints.lookup(hashes[i]);
+            if (b == -1) continue;
+            int offset = i * BLOCK_SIZE;
+            int len = Math.min(BLOCK_SIZE, stored.length - offset);
+            // Hashes can collide, the contents have to actually match
+            readBytes(DATA_START + b * BLOCK_SIZE, candidate, len);
+            if (!Arrays.equals(candidate, 0, len, stored, offset, offset + len)) continue;
+            int refs = extraRefs(b);
+            if (refs == MAX_EXTRA_REFS) continue;
+            setExtraRefs(b, refs + 1);
+            dataBlocks[i] = b;
+            shared++;
+        }
+        return shared;
+    }
+
+    /** Number of references to data block <code>blockNo</code> beyond the first. */
+    private int extraRefs(long blockNo) {
+        if (refcountFile == null) return 0;
+        byte[] raw = new byte[Character.BYTES];
+        readAt(refcountFile, blockNo * Character.BYTES, raw, 0, raw.length);
+        return ByteBuffer.wrap(raw).getChar();
+    }
+
+    /** Sets the extra reference count of <code>blockNo</code>, creating the reference count file if there isn't one yet. */
+    private void setExtraRefs(long blockNo, int refs) {
+        if (refcountFile == null) createRefcountFile();
+        writeAt(refcountFile, blockNo * Character.BYTES, ByteBuffer.allocate(Character.BYTES).putChar((char) refs).array());
+    }
+
+    /** Allocates a zeroed reference count file and points the superblock at it. */
+    private void createRefcountFile() {
+        Inode file = new Inode(FileType.File);
+        writeData(file, new byte[(int) Math.max(BLOCK_SIZE, NUM_BLOCKS * Character.BYTES)], false, false, 0);
+        // Like the snapshot, the zeros have to be on disk before the superblock points at them
+        journal.commit();
+        cache.flush();
+        forceDevice();
+        writeBytes(OFFSET_REFCOUNT_INODE, file.encode(), INODE_SIZE_BYTES);
+        refcountFile = file;
+    }
+
+    /**
+     * Fills in the direct, single- and double-indirect pointers of <code>inode</code> for <code>dataBlocks</code>,
+     * allocating and writing whatever pointer blocks are needed.
+     */
+    private void storePointers(Inode inode, long[] dataBlocks) {
+        int numDirect = Math.min(dataBlocks.length, Inode.NUM_DIRECT);
+        System.arraycopy(dataBlocks, 0, inode.dataPtrs, 0, numDirect);
+        if (dataBlocks.length == numDirect) return;
+
+        // One single-indirect block, then the double-indirect block and its children, all in one allocation
+        int remaining = dataBlocks.length - Inode.NUM_DIRECT - PTRS_PER_BLOCK;
+        int numChildren = (remaining > 0) ? (remaining + PTRS_PER_BLOCK - 1) / PTRS_PER_BLOCK : 0;
+        long[] pointerBlocks = new long[1 + ((numChildren > 0) ? 1 + numChildren : 0)];
+        long goal = dataBlocks[dataBlocks.length - 1] + 1;
+        int next = 0;
+        for (Extent extent : allocateBlocks(pointerBlocks.length, goal)) {
+            for (long b = extent.start(); b < extent.end(); b++) pointerBlocks[next++] = b;
+        }
+
+        inode.indirect = pointerBlocks[0];
+        writePointerBlock(inode.indirect, dataBlocks, Inode.NUM_DIRECT);
+        if (numChildren == 0) return;
+
+        inode.doubleIndirect = pointerBlocks[1];
+        long[] children = Arrays.copyOfRange(pointerBlocks, 2, pointerBlocks.length);
+        writePointerBlock(inode.doubleIndirect, children, 0);
+        for (int i = 0; i < numChildren; i++) {
+            writePointerBlock(children[i], dataBlocks, Inode.NUM_DIRECT + PTRS_PER_BLOCK + i * PTRS_PER_BLOCK);
+        }
+    }
+
+    /**
+     * Writes up to PTRS_PER_BLOCK entries of <code>ptrs</code>, starting at <code>from</code>, to pointer block
+     * <code>blockNo</code>. Unused entries are 0. Pointer blocks are metadata, so they're journaled.
+     */
+    private void writePointerBlock(long blockNo, long[] ptrs, int from) {
+        ByteBuffer buf = ByteBuffer.allocate(BLOCK_SIZE);
+        for (int i = from; i < ptrs.length && i < from + PTRS_PER_BLOCK; i++) buf.putLong(ptrs[i]);
+        writeBytes(DATA_START + blockNo * BLOCK_SIZE, buf.array(), BLOCK_SIZE);
+    }
+
+    /** Reads pointer block <code>blockNo</code>. */
+    private long[] readPointerBlock(long blockNo) {
+        byte[] raw = new byte[BLOCK_SIZE];
+        readBytes(DATA_START + blockNo * BLOCK_SIZE, raw, BLOCK_SIZE);
+        long[] ptrs = new long[PTRS_PER_BLOCK];
+        ByteBuffer.wrap(raw).asLongBuffer().get(ptrs);
+        return ptrs;
+    }
+
+    /**
+     * Returns the run map of <code>inode</code>'s data, walking its pointers the first time and reusing the
+     * result afterwards.
+     */
+    private BlockMap blockMap(Inode inode) {
+        if (inode.blockMap != null) return inode.blockMap;
+
+        BlockMap map = new BlockMap();
+        long fileBlock = 0;
+        for (long dataPtr : inode.dataPtrs) map.add(fileBlock++, dataPtr);
+        if (inode.indirect != 0) {
+            for (long dataPtr : readPointerBlock(inode.indirect)) map.add(fileBlock++, dataPtr);
+        }
+        fileBlock = Inode.NUM_DIRECT + PTRS_PER_BLOCK;
+        if (inode.doubleIndirect != 0) {
+            for (long child : readPointerBlock(inode.doubleIndirect)) {
+                if (child == 0) {
+                    fileBlock += PTRS_PER_BLOCK;
+                    continue;
+                }
+                for (long dataPtr : readPointerBlock(child)) map.add(fileBlock++, dataPtr);
+            }
+        }
+        inode.blockMap = map;
+        return map;
+    }
+
+    /** Every pointer block (indirect, double-indirect and its children) <code>inode</code> uses. */
+    private List<Long> pointerBlocks(Inode inode) {
+        List<Long> blocks = new ArrayList<>();
+        if (inode.indirect != 0) blocks.add(inode.indirect);
+        if (inode.doubleIndirect != 0) {
+            blocks.add(inode.doubleIndirect);
+            for (long child : readPointerBlock(inode.doubleIndirect)) if (child != 0) blocks.add(child);
+        }
+        return blocks;
+    }
+
+    /**
+     * Adds one zeroed block to the end of <code>inode</code>'s data, next to its current last block if possible.
+     * Used for files that grow a block at a time, like directories.
+     * @param inode Inode to extend. Must not have holes.
+     * @return Number of the new block within the file.
+     */
+    synchronized long appendBlock(Inode inode) {
+        long fileBlock = (inode.size + BLOCK_SIZE - 1) / BLOCK_SIZE;
+        if (fileBlock >= MAX_FILE_BLOCKS) throw new RuntimeException("File too large");
+        BlockMap map = blockMap(inode);
+        long goal = (fileBlock > 0) ? map.lookup(fileBlock - 1) + 1 : -1;
+        long dataBlock = allocateBlocks(1, goal, inode).get(0).start();
+        writeUnlogged(DATA_START + dataBlock * BLOCK_SIZE, new byte[BLOCK_SIZE], 0, BLOCK_SIZE);
+        setPointer(inode, fileBlock, dataBlock);
+
+        map.add(fileBlock, dataBlock);
+        inode.size = (fileBlock + 1) * BLOCK_SIZE;
+        if (inode.inodePtr != -1) updateInode(inode);
+        return fileBlock;
+    }
+
+    /**
+     * Adds the first <code>len</code> bytes of <code>src</code> to the end of file <code>inode</code>, for building
+     * up a file a piece at a time without holding all of it in memory. The data is stored as is, without compression
+     * or dedup.
+     * @param inode File that's neither inline nor compressed. Its size must be a whole number of blocks, so only the
+     *              last piece may end part way through a block.
+     */
+    synchronized void append(Inode inode, byte[] src, int len) {
+        if (inode.isInline() || inode.compressed || inode.size % BLOCK_SIZE != 0) throw new RuntimeException("Can't append to this file");
+        beginOperation();
+        long size = inode.size;
+        for (int off = 0; off < len; off += BLOCK_SIZE) {
+            long fileBlock = appendBlock(inode);
+            writeUnlogged(DATA_START + mapBlock(inode, fileBlock) * BLOCK_SIZE, src, off, Math.min(BLOCK_SIZE, len - off));
+        }
+        inode.size = size + len;
+        modified(inode);
+    }
+
+    /**
+     * Points block <code>fileBlock</code> of <code>inode</code> at <code>dataBlock</code>, allocating
+     * pointer blocks on the way if they don't exist yet.
+     */
+    private void setPointer(Inode inode, long fileBlock, long dataBlock) {
+        if (fileBlock < Inode.NUM_DIRECT) {
+            inode.dataPtrs[(int) fileBlock] = dataBlock;
+            return;
+        }
+        fileBlock -= Inode.NUM_DIRECT;
+        if (fileBlock < PTRS_PER_BLOCK) {
+            if (inode.indirect == 0) inode.indirect = newPointerBlock(dataBlock + 1);
+            else inode.indirect = unsharePointerBlock(inode.indirect);
+            writeLong(DATA_START + inode.indirect * BLOCK_SIZE + fileBlock * Long.BYTES, dataBlock);
+            return;
+        }
+        fileBlock -= PTRS_PER_BLOCK;
+        if (inode.doubleIndirect == 0) inode.doubleIndirect = newPointerBlock(dataBlock + 1);
+        else inode.doubleIndirect = unsharePointerBlock(inode.doubleIndirect);
+        long childPos = DATA_START + inode.doubleIndirect * BLOCK_SIZE + (fileBlock / PTRS_PER_BLOCK) * Long.BYTES;
+        byte[] raw = new byte[Long.BYTES];
+        readBytes(childPos, raw, raw.length);
+        long child = ByteBuffer.wrap(raw).getLong();
+        long newChild = (child == 0) ? newPointerBlock(dataBlock + 1) : unsharePointerBlock(child);
+        if (newChild != child) {
+            child = newChild;
+            writeLong(childPos, child);
+        }
+        writeLong(DATA_START + child * BLOCK_SIZE + (fileBlock % PTRS_PER_BLOCK) * Long.BYTES, dataBlock);
+    }
+
+    /**
+     * Makes sure pointer block <code>blockNo</code> can be changed in place. If the snapshot shares it, the live
+     * filesystem gets its own copy instead, and the caller has to store the returned block number in its parent.
+     * @return The block to write to: <code>blockNo</code> itself, or the new copy.
+     */
+    private long unsharePointerBlock(long blockNo) {
+        if (!isShared(blockNo)) return blockNo;
+        byte[] copy = new byte[BLOCK_SIZE];
+        readBytes(DATA_START + blockNo * BLOCK_SIZE, copy, BLOCK_SIZE);
+        long newBlock = allocateBlocks(1, blockNo + 1).get(0).start();
+        writeBytes(DATA_START + newBlock * BLOCK_SIZE, copy, BLOCK_SIZE);
+        releaseBlocks(new Extent(blockNo, 1));
+        return newBlock;
+    }
+
+    /**
+     * Moves block <code>fileBlock</code> of <code>inode</code> to a newly allocated block, because the snapshot
+     * shares the current one. Nothing is copied: the caller is about to overwrite the whole block.
+     * @return The new data block.
+     */
+    private long relocateBlock(Inode inode, long fileBlock) {
+        long oldBlock = mapBlock(inode, fileBlock);
+        long newBlock = allocateBlocks(1, oldBlock + 1).get(0).start();
+        setPointer(inode, fileBlock, newBlock);
+        releaseBlocks(new Extent(oldBlock, 1));
+        inode.blockMap = null;  // rebuilt from the pointers on next use
+        if (inode.inodePtr != -1) updateInode(inode);
+        return newBlock;
+    }
+
+    /** Allocates a pointer block full of zeros. */
+    private long newPointerBlock(long goal) {
+        long blockNo = allocateBlocks(1, goal).get(0).start();
+        writeBytes(DATA_START + blockNo * BLOCK_SIZE, new byte[BLOCK_SIZE], BLOCK_SIZE);
+        return blockNo;
+    }
+
+    /**
+     * Finds the data block holding block <code>fileBlock</code> of <code>inode</code>.
+     * @return Index of the block in the data region, or 0 if that part of the file isn't mapped.
+     */
+    synchronized long mapBlock(Inode inode, long fileBlock) {
+        return blockMap(inode).lookup(fileBlock);
+    }
+
+    /**
+     * Reads the first <code>dst.length</code> bytes of <code>inode</code>'s data.
+     * Each contiguous run of blocks is one read. Unmapped blocks, and anything past the file's size (like preallocated
+     * blocks), read as zeros. Inline data is copied out of the inode,
+     * and compressed data is inflated cluster by cluster, only as far as <code>dst</code> reaches.
+     * @param inode Inode to read.
+     * @param dst Buffer to fill. The caller decides how many bytes the file has.
+     */
+    public synchronized void readData(Inode inode, byte[] dst) {
+        readData(inode, dst, true);
+    }
+
+    /**
+     * Same as {@link #readData(Inode, byte[])}.
+     * @param touch Whether the read counts as an access, see accessed(). Not for reads the user didn't ask for,
+     *              or for a snapshot's inodes, which can't change.
+     */
+    synchronized void readData(Inode inode, byte[] dst, boolean touch) {
+        if (touch) accessed(inode);
+        if (inode.isInline()) {
+            System.arraycopy(inode.inlineData, 0, dst, 0, Math.min(dst.length, inode.inlineData.length));
+            return;
+        }
+        if (inode.compressed) {
+            CompressedData.unpack((offset, buf, off, len) -> readAt(inode, offset, buf, off, len), inode.size, dst);
+            return;
+        }
+        readRange(inode, 0, dst, 0, (int) Math.min(dst.length, inode.size));
+    }
+
+    /**
+     * Reads up to <code>len</code> bytes of <code>inode</code>'s data starting at byte <code>offset</code>, for reading
+     * a file a piece at a time. With <code>readAhead</code>, reads that follow on from the last one also start
+     * prefetching the data after them, see ReadAhead. Compressed files are read a cluster at a time anyway and
+     * don't get read-ahead.
+     * @param inode Inode to read.
+     * @param readAhead Read-ahead state of the open file, or null to only read what's asked for.
+     * @return Number of bytes read, 0 at the end of the file.
+     */
+    public synchronized int read(Inode inode, long offset, byte[] dst, int off, int len, ReadAhead readAhead) {
+        return read(inode, offset, dst, off, len, readAhead, true);
+    }
+
+    /**
+     * Same as {@link #read(Inode, long, byte[], int, int, ReadAhead)}.
+     * @param touch Whether the read counts as an access, see readData(Inode, byte[], boolean).
+     */
+    synchronized int read(Inode inode, long offset, byte[] dst, int off, int len, ReadAhead readAhead, boolean touch) {
+        if (touch) accessed(inode);
+        if (offset >= inode.size) return 0;
+        len = (int) Math.min(len, inode.size - offset);
+        if (inode.isInline()) {
+            System.arraycopy(inode.inlineData, (int) offset, dst, off, len);
+        } else if (inode.compressed) {
+            CompressedData.unpack((pos, buf, bufOff, n) -> readAt(inode, pos, buf, bufOff, n), inode.size, offset, dst, off, len);
+        } else {
+            if (readAhead != null) {
+                readAhead.awaitWindows(offset + len);
+                long[] window = readAhead.advance(offset, len, inode.size);
+                if (window != null) readAhead.started(prefetchRange(inode, window[0], window[1], true));
+            }
+            readRange(inode, offset, dst, off, len);
+        }
+        return len;
+    }
+
+    /** Reads bytes <code>offset</code> to <code>offset + len</code> of an uncompressed file, one read per run. */
+    private void readRange(Inode inode, long offset, byte[] dst, int off, int len) {
+        for (Map.Entry<Long, Extent> run : blockMap(inode).runs().entrySet()) {
+            long runStart = run.getKey() * BLOCK_SIZE;
+            if (runStart >= offset + len) break;
+            long start = Math.max(offset, runStart);
+            long end = Math.min(offset + len, runStart + run.getValue().length() * BLOCK_SIZE);
+            if (start >= end) continue;
+            readBytes(DATA_START + run.getValue().start() * BLOCK_SIZE + (start - runStart), dst, (int) (off + start - offset), (int) (end - start));
+        }
+    }
+
+    /**
+     * Reads all of <code>inode</code>'s data without blocking the caller. Blocks that aren't cached are loaded
+     * in the background first, with every run in flight at once.
+     * @param inode Inode to read.
+     * @return Future for the file's contents, as they are when the reads finish.
+     */
+    public CompletableFuture<byte[]> readDataAsync(Inode inode) {
+        return prefetchData(inode).thenApplyAsync(v -> {
+            synchronized (this) {
+                byte[] data = new byte[(int) inode.getSize()];
+                readData(inode, data);
+                return data;
+            }
+        });
+    }
+
+    /**
+     * Starts loading <code>inode</code>'s data blocks into the block cache.
+     * @return Future that completes once they're cached.
+     */
+    synchronized CompletableFuture<Void> prefetchData(Inode inode) {
+        return prefetchRange(inode, 0, inode.getSize(), false);
+    }
+
+    /**
+     * Starts loading the blocks holding bytes <code>from</code> to <code>to</code> of <code>inode</code>'s data
+     * into the block cache, one read per run.
+     * @param readSoon Whether the blocks are about to be read, see BlockCache.prefetch().
+     * @return Future that completes once they're cached.
+     */
+    private CompletableFuture<Void> prefetchRange(Inode inode, long from, long to, boolean readSoon) {
+        to = Math.min(to, inode.getSize());
+        List<CompletableFuture<Void>> loads = new ArrayList<>();
+        for (Map.Entry<Long, Extent> run : blockMap(inode).runs().entrySet()) {
+            long runStart = run.getKey() * BLOCK_SIZE;
+            if (runStart >= to) break;
+            long start = Math.max(from, runStart);
+            long end = Math.min(to, runStart + run.getValue().length() * BLOCK_SIZE);
+            if (start >= end) continue;
+            loads.add(cache.prefetch(DATA_START + run.getValue().start() * BLOCK_SIZE + (start - runStart), (int) (end - start), readSoon));
+        }
+        return CompletableFuture.allOf(loads.toArray(new CompletableFuture<?>[0]));
+    }
+
+    /**
+     * Returns the hashed index of directory <code>dir</code>. Its blocks are metadata and go through the journal.
+     * @param dir Directory inode, set up with initDirectory().
+     */
+    private DirectoryIndex directoryIndex(Inode dir) {
+        return new DirectoryIndex(new DirectoryIndex.Storage() {
+            public void read(long fileBlock, byte[] dst) {
+                readBytes(DATA_START + mapBlock(dir, fileBlock) * BLOCK_SIZE, dst, BLOCK_SIZE);
+            }
+            public void write(long fileBlock, byte[] src) {
+                long dataBlock = mapBlock(dir, fileBlock);
+                if (isShared(dataBlock)) dataBlock = relocateBlock(dir, fileBlock);
+                writeBytes(DATA_START + dataBlock * BLOCK_SIZE, src, BLOCK_SIZE);
+            }
+            public long append() {
+                return appendBlock(dir);
+            }
+            public long numBlocks() {
+                return (dir.size + BLOCK_SIZE - 1) / BLOCK_SIZE;
+            }
+        }, BLOCK_SIZE);
+    }
+
+    /**
+     * Gives an empty directory inode its index root and first leaf.
+     * @param dir Directory inode with no data yet.
+     */
+    public synchronized void initDirectory(Inode dir) {
+        if (dir.filetype != FileType.Directory) throw new RuntimeException("Not a directory");
+        beginOperation();
+        directoryIndex(dir).init();
+    }
+
+    /**
+     * Looks <code>name</code> up in directory <code>dir</code>. Reads the index root and a single leaf.
+     * @return Pointer to the entry's inode, or -1 if there's none.
+     */
+    public synchronized long lookupEntry(Inode dir, String name) {
+        return directoryIndex(dir).lookup(name);
+    }
+
+    /**
+     * Adds the entry <code>name</code> -> <code>inodePtr</code> to directory <code>dir</code>.
+     * Throws a runtime exception if the name is taken.
+     */
+    public synchronized void addEntry(Inode dir, String name, long inodePtr) {
+        beginOperation();
+        directoryIndex(dir).insert(name, inodePtr);
+        modified(dir);
+    }
+
+    /**
+     * Removes the entry <code>name</code> from directory <code>dir</code>.
+     * @return Whether there was such an entry.
+     */
+    public synchronized boolean removeEntry(Inode dir, String name) {
+        beginOperation();
+        if (!directoryIndex(dir).remove(name)) return false;
+        modified(dir);
+        return true;
+    }
+
+    /**
+     * @return Every entry of directory <code>dir</code>, name -> inode pointer.
+     */
+    public synchronized Map<String, Long> listEntries(Inode dir) {
+        return listEntries(dir, true);
+    }
+
+    /**
+     * Same as {@link #listEntries(Inode)}.
+     * @param touch Whether the listing counts as an access, see readData(Inode, byte[], boolean).
+     */
+    synchronized Map<String, Long> listEntries(Inode dir, boolean touch) {
+        if (touch) accessed(dir);
+        return directoryIndex(dir).list();
+    }
+
+    public boolean isReadOnly() {
+        return false;
+    }
+
+    /**
+     * Takes a point-in-time, read-only copy of the whole filesystem.
+     * Only metadata is copied: the used part of the inode table and the block bitmap. Every data block in use
+     * right now becomes shared between the live filesystem and the snapshot. Shared blocks are never changed in
+     * place again: a directory or pointer block gets a fresh copy the first time the live side writes it, and file
+     * data is always rewritten into new blocks anyway. Blocks the live side frees go on a dead list instead of
+     * back to the allocator, until the snapshot is deleted. A disk holds one snapshot at a time.
+     */
+    public synchronized void createSnapshot() {
+        if (snapshotFile != null) throw new RuntimeException("Disk already has a snapshot, delete it first");
+        beginOperation();
+        long rootPtr = getRootInodePtr();
+        inodeCache.flush();  // the copied table must include inodes that only changed in memory
+
+        int copied = 0;
+        for (AllocationGroup group : allocGroups) {
+            List<Integer> used = group.usedInodes();
+            if (!used.isEmpty()) copied = used.get(used.size() - 1) + 1;
+        }
+        byte[] blockWords = blockBitmapWords();
+
+        // Snapshot file: header block, inode table copy, block bitmap copy, dead list (empty for now)
+        long tableBytes = alignToBlock((long) copied * INODE_SIZE_BYTES);
+        long bitmapBytes = alignToBlock(blockWords.length);
+        byte[] contents = new byte[(int) (BLOCK_SIZE + tableBytes + 2 * bitmapBytes)];
+        ByteBuffer.wrap(contents).putInt(SNAPSHOT_MAGIC).putLong(System.currentTimeMillis()).putLong(rootPtr).putInt(copied);
+        readBytes(INODE_TABLE_START, contents, BLOCK_SIZE, copied * INODE_SIZE_BYTES);
+        System.arraycopy(blockWords, 0, contents, (int) (BLOCK_SIZE + tableBytes), blockWords.length);
+
+        Inode file = new Inode(FileType.File);
+        writeData(file, contents, false, false, 0);  // read and written in place, so never compressed or shared
+        // The copy has to be on disk before the superblock points at it
+        journal.commit();
+        cache.flush();
+        forceDevice();
+        writeBytes(OFFSET_SNAPSHOT_INODE, file.encode(), INODE_SIZE_BYTES);
+
+        snapshotFile = file;
+        snapshotBlocks = new Bitmap((int) NUM_BLOCKS, blockWords);  // the file's own blocks aren't in here
+        deadBlocks = new Bitmap((int) NUM_BLOCKS);
+        snapshotRootPtr = rootPtr;
+        snapshotInodes = copied;
+    }
+
+    /**
+     * Deletes the snapshot, returning the blocks only it was using to the free pool.
+     * Does nothing if there is no snapshot.
+     */
+    public synchronized void deleteSnapshot() {
+        if (snapshotFile == null) return;
+        beginOperation();
+        Inode file = snapshotFile;
+        Bitmap dead = deadBlocks;
+        snapshotFile = null;
+        snapshotBlocks = null;
+        deadBlocks = null;
+
+        writeBytes(OFFSET_SNAPSHOT_INODE, new byte[INODE_SIZE_BYTES], INODE_SIZE_BYTES);
+        for (int start = dead.nextSet(0); start < dead.size(); ) {
+            int end = dead.nextClear(start);
+            freeBlocks(new Extent(start, end - start));
+            start = dead.nextSet(end);
+        }
+        writeData(file, new byte[0], false, false, 0);
+    }
+
+    public synchronized boolean hasSnapshot() {
+        return snapshotFile != null;
+    }
+
+    /**
+     * @return A read-only view of the snapshot that can be mounted like a disk, or null if there's no snapshot.
+     */
+    synchronized Volume getSnapshot() {
+        return (snapshotFile == null) ? null : new SnapshotVolume(this, snapshotFile);
+    }
+
+    /** Root directory of the snapshot stored in <code>file</code>. */
+    synchronized long getSnapshotRootPtr(Inode file) {
+        checkSnapshot(file);
+        return snapshotRootPtr;
+    }
+
+    /**
+     * Reads an inode as it was when the snapshot stored in <code>file</code> was taken.
+     * @param inodePtr Pointer to the inode, the same as the live filesystem's.
+     */
+    synchronized Inode readSnapshotInode(Inode file, long inodePtr) {
+        checkSnapshot(file);
+        int inodeNum = inodeNumber(inodePtr);
+        byte[] raw = new byte[INODE_SIZE_BYTES];
+        if (inodeNum < snapshotInodes) readAt(file, BLOCK_SIZE + (long) inodeNum * INODE_SIZE_BYTES, raw, 0, raw.length);
+        Inode inode = Inode.decode(raw, 0);
+        if (inode == null) throw new RuntimeException("No inode at " + inodePtr + " in snapshot");
+        inode.inodePtr = inodePtr;
+        return inode;
+    }
+
+    /** Throws unless <code>file</code> is still this disk's snapshot, so a deleted one can't be read. */
+    void checkSnapshot(Inode file) {
+        if (file != snapshotFile) throw new RuntimeException("Snapshot was deleted");
+    }
+
+    /** Reads the snapshot header and bitmaps from the snapshot file found when the disk was opened. */
+    private void loadSnapshot() {
+        byte[] header = new byte[4 + 8 + 8 + 4];
+        readAt(snapshotFile, 0, header, 0, header.length);
+        ByteBuffer buf = ByteBuffer.wrap(header);
+        if (buf.getInt() != SNAPSHOT_MAGIC) throw new RuntimeException("Corrupt snapshot header");
+        buf.getLong();  // creation time
+        snapshotRootPtr = buf.getLong();
+        snapshotInodes = buf.getInt();
+
+        byte[] raw = new byte[Bitmap.bytesFor((int) NUM_BLOCKS)];
+        readAt(snapshotFile, snapshotBitmapOffset(), raw, 0, raw.length);
+        snapshotBlocks = new Bitmap((int) NUM_BLOCKS, raw);
+        raw = new byte[raw.length];
+        readAt(snapshotFile, deadBitmapOffset(), raw, 0, raw.length);
+        deadBlocks = new Bitmap((int) NUM_BLOCKS, raw);
+    }
+
+    private long snapshotBitmapOffset() {
+        return BLOCK_SIZE + alignToBlock((long) snapshotInodes * INODE_SIZE_BYTES);
+    }
+
+    private long deadBitmapOffset() {
+        return snapshotBitmapOffset() + alignToBlock(Bitmap.bytesFor((int) NUM_BLOCKS));
+    }
+
+    /** Whether data block <code>blockNo</code> of the live filesystem is also part of the snapshot. */
+    private boolean isShared(long blockNo) {
+        return snapshotBlocks != null && snapshotBlocks.get((int) blockNo);
+    }
+
+    /**
+     * Drops the live filesystem's reference on <code>extent</code>. Blocks other files still share just lose a
+     * reference, the rest are released with releaseOwned().
+     */
+    private void releaseBlocks(Extent extent) {
+        if (refcountFile == null) {
+            releaseOwned(extent);
+            return;
+        }
+        ByteBuffer refs = ByteBuffer.allocate((int) extent.length() * Character.BYTES);
+        readAt(refcountFile, extent.start() * Character.BYTES, refs.array(), 0, refs.capacity());
+        for (long start = extent.start(); start < extent.end(); ) {
+            boolean shared = refs.getChar((int) (start - extent.start()) * Character.BYTES) > 0;
+            long end = start + 1;
+            while (end < extent.end() && (refs.getChar((int) (end - extent.start()) * Character.BYTES) > 0) == shared) end++;
+            if (shared) {
+                for (long b = start; b < end; b++) setExtraRefs(b, refs.getChar((int) (b - extent.start()) * Character.BYTES) - 1);
+            } else {
+                releaseOwned(new Extent(start, end - start));
+            }
+            start = end;
+        }
+    }
+
+    /**
+     * Frees blocks the live filesystem no longer uses. Blocks the snapshot shares stay allocated and go on
+     * its dead list instead.
+     */
+    private void releaseOwned(Extent extent) {
+        if (snapshotBlocks == null) {
+            freeBlocks(extent);
+            return;
+        }
+        for (long start = extent.start(); start < extent.end(); ) {
+            boolean shared = isShared(start);
+            long end = start + 1;
+            while (end < extent.end() && isShared(end) == shared) end++;
+            if (shared) {
+                if (fingerprints != null) fingerprints.forget(new Extent(start, end - start));
+                deadBlocks.setRange((int) start, (int) end);
+                byte[] words = deadBlocks.wordsCovering((int) start, (int) end);
+                writeAt(snapshotFile, deadBitmapOffset() + (start / 64) * Long.BYTES, words);
+            } else {
+                freeBlocks(new Extent(start, end - start));
+            }
+            start = end;
+        }
+    }
+
+    /** Reads <code>len</code> bytes of <code>inode</code>'s data starting at byte <code>offset</code>. */
+    private void readAt(Inode inode, long offset, byte[] dst, int off, int len) {
+        while (len > 0) {
+            int inBlock = (int) (offset % BLOCK_SIZE);
+            int chunk = Math.min(len, BLOCK_SIZE - inBlock);
+            readBytes(DATA_START + mapBlock(inode, offset / BLOCK_SIZE) * BLOCK_SIZE + inBlock, dst, off, chunk);
+            offset += chunk; off += chunk; len -= chunk;
+        }
+    }
+
+    /** Overwrites part of <code>inode</code>'s data in place, through the journal. */
+    private void writeAt(Inode inode, long offset, byte[] src) {
+        for (int off = 0; off < src.length; ) {
+            int inBlock = (int) (offset % BLOCK_SIZE);
+            int chunk = Math.min(src.length - off, BLOCK_SIZE - inBlock);
+            writeBytes(DATA_START + mapBlock(inode, offset / BLOCK_SIZE) * BLOCK_SIZE + inBlock, src, off, chunk);
+            offset += chunk; off += chunk;
+        }
+    }
+
+    /**
+     * Returns the hit/miss/eviction counters of the block cache.
+     * @return Snapshot of the cache statistics.
+     */
+    public CacheStats getCacheStats() {
+        return cache.getStats();
+    }
+
+    /**
+     * Replaces <code>inode</code>'s data like writeData(), then starts writing the new blocks out in the background.
+     * @param inode Inode to write.
+     * @param data New contents.
+     * @return Future that completes once the data has reached the image file. It isn't forced, use sync() for that.
+     */
+    public CompletableFuture<Void> writeDataAsync(Inode inode, byte[] data) {
+        writeData(inode, data);
+        return cache.flushAsync();
+    }
+
+    /**
+     * Pushes any writes still sitting in memory out to the image file.
+     */
+    public void sync() {
+        syncAsync().join();
+    }
+
+    /**
+     * Same as sync(), but only the journal commit happens on the calling thread. The block writes are all
+     * submitted together and the final force() runs once they complete.
+     * @return Future that completes once everything is durable.
+     */
+    public CompletableFuture<Void> syncAsync() {
+        synchronized (this) {
+            inodeCache.flush();
+            journal.commit();
+        }
+        return cache.flushAsync().thenRunAsync(this::forceDevice);
+    }
+
+    /**
+     * Commits the journal, writes every changed block home and then empties the journal.
+     * Runs whenever the journal gets half full, and on close so a cleanly closed image has nothing to replay.
+     * Only ever called between operations, see beginOperation(). Inodes that changed in memory are logged first,
+     * so the bitmap words and the inodes an operation changed always end up in the same transaction. That includes
+     * the ones whose only change is their access time, which is rare enough here.
+     */
+    private synchronized void checkpoint() {
+        inodeCache.flush();
+        journal.commit();
+        cache.flush();
+        forceDevice();
+        journal.checkpointed();
+    }
+
+    /**
+     * Called by every operation that changes metadata before it logs anything, and by nothing in the middle of
+     * one. If the journal is half full, it's checkpointed here, between operations: a checkpoint commits the
+     * running transaction, and committing part of an operation would let a crash keep only that part.
+     * No single operation logs more than half the journal (bulk ones like createEntries() are split into
+     * operations that don't), so whatever the running transaction holds always fits in the log when it's committed.
+     */
+    private synchronized void beginOperation() {
+        // Inodes that changed in memory get logged whenever they're flushed or evicted, so count them in
+        if (journal.needsCheckpoint(inodeCache.pending() * (INODE_SIZE_BYTES + 16))) checkpoint();
+    }
+
+    /**
+     * Group commit: every <code>intervalMs</code>, whatever metadata changes were logged since the last round
+     * go to the journal with a single force(). Holding the disk's lock means no operation is half logged.
+     */
+    private void commitLoop(long intervalMs) {
+        long lastAtimeFlush = System.currentTimeMillis();
+        while (!closed) {
+            try {
+                Thread.sleep(intervalMs);
+            } catch (InterruptedException e) {
+                return;
+            }
+            synchronized (this) {
+                if (closed) return;
+                // Access times only changed in memory ride along with real changes, except for one round in a while
+                if (System.currentTimeMillis() - lastAtimeFlush >= ATIME_FLUSH_MS) {
+                    inodeCache.flush();
+                    lastAtimeFlush = System.currentTimeMillis();
+                } else {
+                    inodeCache.flushDirty();
+                }
+                journal.commit();
+                if (journal.needsCheckpoint(0)) checkpoint();
+            }
+        }
+    }
+
+    /**
+     * Writes the state field and forces it to disk. It's not journaled: replaying a crash must not mark anything clean.
+     */
+    private void setState(int state) {
+        writeUnlogged(OFFSET_STATE, ByteBuffer.allocate(Integer.BYTES).putInt(state).array(), 0, Integer.BYTES);
+        cache.flush();
+        forceDevice();
+    }
+
+    /**
+     * Full check of a disk that wasn't unmounted cleanly. Walks every inode in use and compares the blocks they
+     * point at with the block bitmap: blocks nothing points at are freed, blocks in use but marked free are claimed.
+     * Inodes marked in use that can't be read are freed too, and so are their blocks since nothing refers to them.
+     * Then every allocation group's counters are recounted from the bitmaps, and shared blocks' reference counts
+     * from the inodes.
+     */
+    private synchronized void checkConsistency() {
+        Bitmap referenced = new Bitmap((int) NUM_BLOCKS);
+        referenced.set(0);  // reserved, see format()
+        int[] directories = new int[allocGroups.length];
+        int[] extraRefs = (refcountFile != null) ? new int[(int) NUM_BLOCKS] : null;
+        int orphans = 0;
+        for (AllocationGroup group : allocGroups) {
+            for (int inodeNum : group.usedInodes()) {
+                Inode inode;
+                try {
+                    inode = readInodeFromDisk(inodeOffset(inodeNum));
+                } catch (RuntimeException e) {
+                    // Marked used but there's no (readable) inode there. Nothing can find its blocks either, so
+                    // they're left unreferenced and get freed below with the other leaks.
+                    group.freeInode(inodeNum, false);
+                    writeInodeBitmapWord(inodeNum);
+                    orphans++;
+                    continue;
+                }
+                if (inode.filetype == FileType.Directory) directories[group.index]++;
+                if (extraRefs != null) countSharing(extraRefs, referenced, inode);
+                markReferenced(referenced, inode);
+            }
+        }
+        if (snapshotFile != null) {
+            markReferenced(referenced, snapshotFile);
+            for (int b = deadBlocks.nextSet(0); b < NUM_BLOCKS; b = deadBlocks.nextSet(b + 1)) referenced.set(b);
+        }
+        int fixedRefs = 0;
+        if (refcountFile != null) {
+            markReferenced(referenced, refcountFile);
+            ByteBuffer table = ByteBuffer.allocate((int) NUM_BLOCKS * Character.BYTES);
+            readAt(refcountFile, 0, table.array(), 0, table.capacity());
+            for (int b = 0; b < NUM_BLOCKS; b++) {
+                int refs = Math.min(extraRefs[b], MAX_EXTRA_REFS);
+                if (table.getChar(b * Character.BYTES) == refs) continue;
+                setExtraRefs(b, refs);
+                fixedRefs++;
+            }
+        }
+
+        Bitmap used = new Bitmap((int) NUM_BLOCKS, blockBitmapWords());
+        long leaked = 0, claimed = 0;
+        for (int start = 0; start < NUM_BLOCKS; ) {
+            boolean isUsed = used.get(start), isReferenced = referenced.get(start);
+            int end = start + 1;
+            while (end < NUM_BLOCKS && end % ALLOC_GROUP_BLOCKS != 0 && used.get(end) == isUsed && referenced.get(end) == isReferenced) end++;
+            Extent extent = new Extent(start, end - start);
+            if (isUsed && !isReferenced) {
+                freeBlocks(extent);
+                leaked += end - start;
+            } else if (!isUsed && isReferenced) {
+                AllocationGroup group = groupOfBlock(start);
+                group.reserveBlocks(extent);
+                writeBlockBitmapWords(group, extent);
+                claimed += end - start;
+            }
+            start = end;
+        }
+
+        for (AllocationGroup group : allocGroups) {
+            group.recount(directories[group.index]);
+            writeGroupDescriptor(group);
+        }
+        if (orphans > 0) System.out.println("Freed " + orphans + " orphaned inodes;");
+        if (leaked + claimed > 0) System.out.println("Freed " + leaked + " and claimed " + claimed + " blocks;");
+        if (fixedRefs > 0) System.out.println("Fixed " + fixedRefs + " reference counts;");
+    }
+
+    /** Counts a reference in <code>extraRefs</code> for each of <code>inode</code>'s data blocks that's already marked. */
+    private void countSharing(int[] extraRefs, Bitmap referenced, Inode inode) {
+        if (inode.filetype != FileType.File) return;
+        for (Extent extent : blockMap(inode).extents()) {
+            for (long b = extent.start(); b < extent.end(); b++) {
+                if (referenced.get((int) b)) extraRefs[(int) b]++;
+            }
+        }
+    }
+
+    /** The whole block bitmap, put together from the allocation groups' slices. */
+    private byte[] blockBitmapWords() {
+        ByteArrayOutputStream words = new ByteArrayOutputStream();
+        for (AllocationGroup group : allocGroups) words.writeBytes(group.blockWords());
+        return words.toByteArray();
+    }
+
+    /** Sets the bit of every data and pointer block of <code>inode</code> in <code>referenced</code>. */
+    private void markReferenced(Bitmap referenced, Inode inode) {
+        for (Extent extent : blockMap(inode).extents()) referenced.setRange((int) extent.start(), (int) extent.end());
+        for (long pointerBlock : pointerBlocks(inode)) referenced.set((int) pointerBlock);
+    }
+
+    private void forceDevice() {
+        device.force();
+    }
+
+    /**
+     * Same as unmount().
+     */
+    public void close() {
+        unmount();
+    }
+
+    /**
+     * Writes everything back, saves the allocation hints and marks the image clean, then closes the image file.
+     * The next mount of a clean image reads the counters as they are instead of checking the whole disk.
+     * The disk can't be used afterwards.
+     */
+    public void unmount() {
+        synchronized (this) {
+            if (closed) return;
+            closed = true;
+            inodeCache.flush();
+        }
+        if (committer != null) committer.interrupt();
+        checkpoint();
+        synchronized (this) {
+            // Everything else is home and forced by now, so the flag can't get ahead of what it vouches for
+            // The descriptors carry the groups' search hints, the superblock gets the totals
+            for (AllocationGroup group : allocGroups) {
+                writeUnlogged(GROUP_TABLE_START + (long) group.index * AllocationGroup.DESCRIPTOR_BYTES,
+                        group.encodeDescriptor(), 0, AllocationGroup.DESCRIPTOR_BYTES);
+            }
+            writeUnlogged(OFFSET_FREE_INODES, ByteBuffer.allocate(Integer.BYTES).putInt(getFreeInodeCount()).array(), 0, Integer.BYTES);
+            writeUnlogged(OFFSET_FREE_BLOCKS, ByteBuffer.allocate(Long.BYTES).putLong(getFreeBlockCount()).array(), 0, Long.BYTES);
+            setState(STATE_CLEAN);
+        }
+        cache.close();
+        forceDevice();
+        device.close();
+    }
+
+    // Positional helpers for metadata. These all go through the block cache, so repeated access
+    // to the same superblock fields, bitmap words and inode slots never touches the image.
+    // Writes are logged to the journal first.
+
+    private void writeByte(long pos, byte value) {
+        writeBytes(pos, new byte[] { value }, 0, 1);
+    }
+
+    private int readInt(long pos) {
+        byte[] b = new byte[Integer.BYTES];
+        cache.read(pos, b, 0, b.length);
+        return ByteBuffer.wrap(b).getInt();
+    }
+
+    private void writeInt(long pos, int value) {
+        writeBytes(pos, ByteBuffer.allocate(Integer.BYTES).putInt(value).array(), 0, Integer.BYTES);
+    }
+
+    private void writeLong(long pos, long value) {
+        writeBytes(pos, ByteBuffer.allocate(Long.BYTES).putLong(value).array(), 0, Long.BYTES);
+    }
+
+    private void readBytes(long pos, byte[] dst, int len) {
+        cache.read(pos, dst, 0, len);
+    }
+
+    private void readBytes(long pos, byte[] dst, int off, int len) {
+        cache.read(pos, dst, off, len);
+    }
+
+    private void writeBytes(long pos, byte[] src, int len) {
+        writeBytes(pos, src, 0, len);
+    }
+
+    private synchronized void writeBytes(long pos, byte[] src, int off, int len) {
+        long txnSeq = journal.log(pos, src, off, len);
+        cache.write(pos, src, off, len, txnSeq);
+    }
+
+    /** Writes file data. Data blocks aren't journaled, only the metadata pointing at them is. */
+    private void writeUnlogged(long pos, byte[] src, int off, int len) {
+        cache.write(pos, src, off, len);
     }
 }
@@ -0,0 +1,61 @@
+package jbash.filesystem;
+
+/**
+ * Settings for opening a TBFF disk.
+ * @param device What the image is stored on, see DeviceType.
+ * @param cacheBlocks Number of 4K blocks the block cache may hold.
+ * @param flushIntervalMs How often dirty cached blocks are written back in the background, or 0 to only write them on sync/eviction.
+ * @param commitIntervalMs How often logged metadata changes are group-committed to the journal, or 0 to only commit on sync/close.
+ * @param fastFormat If true, new images are formatted sparse with a lazily zeroed inode table instead of being written in full.
+ * @param inodeCacheSize Number of decoded inodes kept in memory.
+ * @param ioQueueDepth Maximum number of asynchronous reads and writes in flight at once.
+ * @param compression If true, file data is stored deflated wherever that saves space. Images written either way read the same.
+ * @param dedupIndexSize Number of block hashes kept in memory to find duplicate file blocks, which are then stored once.
+ *                       0 turns deduplication off.
+ * @param atime When reads update access times, and when those updates are written, see AtimeMode.
+ */
+public record TBFFOptions(DeviceType device, int cacheBlocks, long flushIntervalMs, long commitIntervalMs, boolean fastFormat, int inodeCacheSize, int ioQueueDepth, boolean compression, int dedupIndexSize, AtimeMode atime) {
+    public static TBFFOptions defaults() {
+        return new TBFFOptions(DeviceType.FILE, 1024, 1000, 50, true, 512, 32, false, 0, AtimeMode.RELATIME);
+    }
+
+    public TBFFOptions withDevice(DeviceType device) {
+        return new TBFFOptions(device, cacheBlocks, flushIntervalMs, commitIntervalMs, fastFormat, inodeCacheSize, ioQueueDepth, compression, dedupIndexSize, atime);
+    }
+
+    public TBFFOptions withCacheBlocks(int cacheBlocks) {
+        return new TBFFOptions(device, cacheBlocks, flushIntervalMs, commitIntervalMs, fastFormat, inodeCacheSize, ioQueueDepth, compression, dedupIndexSize, atime);
+    }
+
+    public TBFFOptions withFlushIntervalMs(long flushIntervalMs) {
+        return new TBFFOptions(device, cacheBlocks, flushIntervalMs, commitIntervalMs, fastFormat, inodeCacheSize, ioQueueDepth, compression, dedupIndexSize, atime);
+    }
+
+    public TBFFOptions withCommitIntervalMs(long commitIntervalMs) {
+        return new TBFFOptions(device, cacheBlocks, flushIntervalMs, commitIntervalMs, fastFormat, inodeCacheSize, ioQueueDepth, compression, dedupIndexSize, atime);
+    }
+
+    public TBFFOptions withFastFormat(boolean fastFormat) {
+        return new TBFFOptions(device, cacheBlocks, flushIntervalMs, commitIntervalMs, fastFormat, inodeCacheSize, ioQueueDepth, compression, dedupIndexSize, atime);
+    }
+
+    public TBFFOptions withInodeCacheSize(int inodeCacheSize) {
+        return new TBFFOptions(device, cacheBlocks, flushIntervalMs, commitIntervalMs, fastFormat, inodeCacheSize, ioQueueDepth, compression, dedupIndexSize, atime);
+    }
+
+    public TBFFOptions withIoQueueDepth(int ioQueueDepth) {
+        return new TBFFOptions(device, cacheBlocks, flushIntervalMs, commitIntervalMs, fastFormat, inodeCacheSize, ioQueueDepth, compression, dedupIndexSize, atime);
+    }
+
+    public TBFFOptions withCompression(boolean compression) {
+        return new TBFFOptions(device, cacheBlocks, flushIntervalMs, commitIntervalMs, fastFormat, inodeCacheSize, ioQueueDepth, compression, dedupIndexSize, atime);
+    }
+
+    public TBFFOptions withDedupIndexSize(int dedupIndexSize) {
+        return new TBFFOptions(device, cacheBlocks, flushIntervalMs, commitIntervalMs, fastFormat, inodeCacheSize, ioQueueDepth, compression, dedupIndexSize, atime);
+    }
+
+    public TBFFOptions withAtime(AtimeMode atime) {
+        return new TBFFOptions(device, cacheBlocks, flushIntervalMs, commitIntervalMs, fastFormat, inodeCacheSize, ioQueueDepth, compression, dedupIndexSize, atime);
+    }
+}
@@ -0,0 +1,56 @@
+package jbash.filesystem;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Something a directory tree can be mounted from: a TBFF disk, or a read-only view of one such as a snapshot.
+ * Inodes are identified by their pointers, as handed out by writeInodeToDisk().
+ */
+interface Volume {
+    /** Pointer to the root directory's inode. */
+    long getRootInodePtr();
+
+    Inode readInodeFromDisk(long inodePtr);
+
+    /** Fills <code>dst</code> with the start of <code>inode</code>'s data. */
+    void readData(Inode inode, byte[] dst);
+
+    /**
+     * Reads up to <code>len</code> bytes of <code>inode</code>'s data starting at byte <code>offset</code>.
+     * @param readAhead Read-ahead state of the open file, or null.
+     * @return Number of bytes read, 0 at the end of the file.
+     */
+    int read(Inode inode, long offset, byte[] dst, int off, int len, ReadAhead readAhead);
+
+    /** @return Pointer to the inode of entry <code>name</code> in <code>dir</code>, or -1. */
+    long lookupEntry(Inode dir, String name);
+
+    Map<String, Long> listEntries(Inode dir);
+
+    /** Whether the mutators below all fail. */
+    boolean isReadOnly();
+
+    /**
+     * @param parentPtr Pointer to the inode of the directory the new inode goes in, or -1. Used for placement only.
+     */
+    long writeInodeToDisk(Inode inode, long parentPtr);
+
+    void writeData(Inode inode, byte[] data);
+
+    /** Reserves blocks for file <code>inode</code> to grow to <code>sizeBytes</code>, see TBFF.preallocate(). */
+    void preallocate(Inode inode, long sizeBytes);
+
+    void initDirectory(Inode dir);
+
+    void addEntry(Inode dir, String name, long inodePtr);
+
+    /**
+     * Creates many new entries in <code>dir</code> at once, see TBFF.createEntries().
+     * @param contents Contents of each new file, null for directories.
+     * @return Pointer to each new inode.
+     */
+    long[] createEntries(Inode dir, List<String> names, List<Inode> inodes, List<byte[]> contents);
+
+    boolean removeEntry(Inode dir, String name);
+}
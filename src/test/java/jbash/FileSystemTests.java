@@ -1,9 +1,12 @@
 package jbash;
 
+import jbash.filesystem.DeviceType;
 import jbash.filesystem.Directory;
 import jbash.filesystem.File;
 import jbash.filesystem.FileSystemAPI;
 import jbash.filesystem.FileSystemObject;
+import jbash.filesystem.TBFF;
+import jbash.filesystem.TBFFOptions;
 import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Nested;
@@ -250,4 +253,44 @@ public class FileSystemTests {
         Assertions.assertTrue(FSAPI.moveCurrentDirectory("/testFolder"), "Failed to move to testFolder");
         Assertions.assertEquals(testDirectory, FSAPI.getFileSystemObject("./").get(), "Current directory not equal to testFolder after moving to testFolder");
     }
+
+    @Test
+    void testBatch() {
+        FSAPI.createDirectory("/home");
+        int created = FSAPI.newBatch()
+                .directory("/home/user")
+                .directory("/home/user/docs/")
+                .file("/home/user/docs/notes.txt", "hello")
+                .file("/home/user/empty")
+                .file("/home/user/empty", "duplicate")
+                .file("/missing/file")
+                .commit();
+        Assertions.assertEquals(4, created, "Batch created the wrong number of entries");
+
+        Optional<File> notes = FSAPI.getFileSystemFile("/home/user/docs/notes.txt");
+        Assertions.assertTrue(notes.isPresent(), "File in a directory from the same batch not found");
+        Assertions.assertEquals("hello", notes.get().getContents(), "Batch file has the wrong contents");
+        Assertions.assertEquals("", FSAPI.getFileSystemFile("/home/user/empty").get().getContents(), "Duplicate entry replaced the first one");
+        Assertions.assertEquals(0, FSAPI.newBatch().directory("/home/user").commit(), "Batch created an existing directory");
+    }
+
+    @Test
+    void testMountAt() {
+        FSAPI.createDirectory("/tmp");
+        FSAPI.createFile("hidden", "/tmp", "under");
+        TBFF scratch = new TBFF("scratch", 1024*1024, TBFFOptions.defaults().withDevice(DeviceType.MEMORY));
+        Assertions.assertTrue(FSAPI.mountAt("/tmp", scratch), "Failed to mount disk on /tmp");
+        Assertions.assertFalse(FSAPI.mountAt("/", scratch), "Mounted disk a second time");
+        Assertions.assertEquals(List.of("/tmp"), FSAPI.getMountPoints(), "Wrong mount points");
+
+        Assertions.assertTrue(FSAPI.getFileSystemFile("/tmp/hidden").isEmpty(), "Mounted disk doesn't hide directory under it");
+        Assertions.assertTrue(FSAPI.createFile("notes.txt", "/tmp", "hello"), "Failed to create file on mounted disk");
+        Assertions.assertEquals("hello", FSAPI.getFileSystemFile("/tmp/../tmp/notes.txt").get().getContents(), "Path across mount point not resolved");
+        Assertions.assertFalse(FSAPI.moveFSO("/tmp/notes.txt", "/"), "Moved file to another disk");
+
+        Assertions.assertTrue(FSAPI.unmountAt("/tmp"), "Failed to unmount /tmp");
+        Assertions.assertEquals("under", FSAPI.getFileSystemFile("/tmp/hidden").get().getContents(), "Directory under mount point not restored");
+        Assertions.assertTrue(FSAPI.getFileSystemFile("/tmp/notes.txt").isEmpty(), "File on unmounted disk still visible");
+        scratch.unmount();
+    }
 }
@@ -1,14 +1,172 @@
 package jbash;
 
 
+import jbash.filesystem.DeviceType;
+import jbash.filesystem.FileSystemAPI;
 import jbash.filesystem.TBFF;
+import jbash.filesystem.TBFFOptions;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 
 public class TBFFTests {
-    TBFF testPartition = new TBFF("testPartition.bff", 1024*1024);
+    TBFF testPartition;
+
+    @BeforeEach
+    void mount() {
+        testPartition = new TBFF("testPartition", 1024*1024, TBFFOptions.defaults().withDevice(DeviceType.MEMORY));
+    }
+
+    @AfterEach
+    void unmount() {
+        testPartition.unmount();
+    }
 
     @Test
     void testGetFreeInodeSpot() {
         testPartition.getFreeInodeSpot();
     }
-}
\ No newline at end of file
+
+    @Test
+    void testFreshDiskHasAllInodesFree() {
+        java.io.File image = new java.io.File("testFresh.bff");
+        image.delete();
+
+        TBFF disk = new TBFF(image.getName(), 1024*1024);
+        Assertions.assertEquals(128, disk.getFreeInodeCount(), "1MB disk should start with 128 free inodes");
+        Assertions.assertNotEquals(-1, disk.getFreeInodeSpot(), "Fresh disk has no free inode");
+        Assertions.assertTrue(disk.getFreeBlockCount() > 0, "Fresh disk has no free data blocks");
+        disk.close();
+        image.delete();
+    }
+
+    @Test
+    void testMappedModeMatchesFileMode() {
+        java.io.File image = new java.io.File("testMapped.bff");
+        image.delete();
+        String big = "written through the mapping, ".repeat(2000);  // spans many blocks, not inline
+
+        FileSystemAPI fsapi = FileSystemAPI.getInstance();
+        fsapi.reset();
+        fsapi = FileSystemAPI.getInstance();
+        fsapi.createDirectory("/mnt");
+        TBFF mappedDisk = new TBFF(image.getName(), 1024*1024, TBFFOptions.defaults().withDevice(DeviceType.MAPPED));
+        Assertions.assertTrue(fsapi.mountAt("/mnt", mappedDisk));
+        fsapi.createDirectory("/mnt/docs");
+        fsapi.createFile("small.txt", "/mnt/docs", "hello");
+        fsapi.createFile("big.txt", "/mnt/docs", big);
+        Assertions.assertTrue(fsapi.unmountAt("/mnt"));
+        long freeBlocks = mappedDisk.getFreeBlockCount();
+        mappedDisk.close();
+
+        TBFF fileDisk = new TBFF(image.getName(), 1024*1024);
+        Assertions.assertEquals(freeBlocks, fileDisk.getFreeBlockCount(), "Mapped and file modes disagree on the layout");
+        Assertions.assertTrue(fsapi.mountAt("/mnt", fileDisk));
+        Assertions.assertEquals("hello", fsapi.getFileSystemFile("/mnt/docs/small.txt").get().getContents(), "Small file differs in file mode");
+        Assertions.assertEquals(big, fsapi.getFileSystemFile("/mnt/docs/big.txt").get().getContents(), "Big file differs in file mode");
+        Assertions.assertTrue(fsapi.unmountAt("/mnt"));
+        fileDisk.close();
+        image.delete();
+    }
+
+    @Test
+    void testForeignAndOutdatedImagesAreNotFormatted() throws java.io.IOException {
+        java.io.File image = new java.io.File("testForeign.bff");
+        byte[] junk = new byte[1024*1024];
+        java.util.Arrays.fill(junk, (byte) 7);
+        java.nio.file.Files.write(image.toPath(), junk);
+        RuntimeException e = Assertions.assertThrows(RuntimeException.class, () -> new TBFF(image.getName(), 1024*1024));
+        Assertions.assertTrue(e.getCause().getMessage().contains("not a TBFF image"), "Unclear error: " + e.getCause().getMessage());
+        Assertions.assertArrayEquals(junk, java.nio.file.Files.readAllBytes(image.toPath()), "Foreign image was written to");
+
+        image.delete();
+        new TBFF(image.getName(), 1024*1024).close();
+        try (java.io.RandomAccessFile raw = new java.io.RandomAccessFile(image, "rw")) {
+            raw.seek(20);  // layout version in the superblock
+            int version = raw.readInt();
+            raw.seek(20);
+            raw.writeInt(version - 1);
+        }
+        byte[] outdated = java.nio.file.Files.readAllBytes(image.toPath());
+        e = Assertions.assertThrows(RuntimeException.class, () -> new TBFF(image.getName(), 1024*1024));
+        Assertions.assertTrue(e.getCause().getMessage().contains("layout version"), "Unclear error: " + e.getCause().getMessage());
+        Assertions.assertArrayEquals(outdated, java.nio.file.Files.readAllBytes(image.toPath()), "Outdated image was written to");
+        image.delete();
+    }
+
+    @Test
+    void testMemoryDiskMatchesFileAndLeavesNoImage() {
+        java.io.File image = new java.io.File("testMemory.bff");
+        image.delete();
+
+        TBFF memoryDisk = new TBFF(image.getName(), 1024*1024, TBFFOptions.defaults().withDevice(DeviceType.MEMORY));
+        long firstSpot = memoryDisk.getFreeInodeSpot();
+        memoryDisk.close();
+        Assertions.assertFalse(image.exists(), "Memory disk wrote an image file");
+
+        TBFF fileDisk = new TBFF(image.getName(), 1024*1024);
+        Assertions.assertEquals(firstSpot, fileDisk.getFreeInodeSpot(), "Memory and file devices disagree on the layout");
+        fileDisk.close();
+        image.delete();
+    }
+
+    @Test
+    void testFastFormatMatchesFullFormat() {
+        java.io.File fastImage = new java.io.File("testFastFormat.bff");
+        java.io.File fullImage = new java.io.File("testFullFormat.bff");
+        fastImage.delete();
+        fullImage.delete();
+
+        TBFF fastDisk = new TBFF(fastImage.getName(), 4*1024*1024);
+        TBFF fullDisk = new TBFF(fullImage.getName(), 4*1024*1024, TBFFOptions.defaults().withFastFormat(false));
+        Assertions.assertEquals(fullDisk.getFreeInodeCount(), fastDisk.getFreeInodeCount());
+        Assertions.assertEquals(fullDisk.getFreeBlockCount(), fastDisk.getFreeBlockCount());
+        Assertions.assertEquals(fullDisk.getFreeInodeSpot(), fastDisk.getFreeInodeSpot());
+        fastDisk.close();
+        fullDisk.close();
+        fastImage.delete();
+        fullImage.delete();
+    }
+
+    @Test
+    void testSnapshotSurvivesReopenAndFreesOnDelete() {
+        java.io.File image = new java.io.File("testSnapshot.bff");
+        image.delete();
+
+        TBFF disk = new TBFF(image.getName(), 1024*1024);
+        disk.getRootInodePtr();
+        long freeBlocks = disk.getFreeBlockCount();
+        disk.createSnapshot();
+        Assertions.assertTrue(disk.hasSnapshot());
+        Assertions.assertThrows(RuntimeException.class, disk::createSnapshot, "Second snapshot shouldn't be allowed");
+        disk.close();
+
+        disk = new TBFF(image.getName(), 1024*1024);
+        Assertions.assertTrue(disk.hasSnapshot(), "Snapshot lost on reopen");
+        disk.deleteSnapshot();
+        Assertions.assertFalse(disk.hasSnapshot());
+        Assertions.assertEquals(freeBlocks, disk.getFreeBlockCount(), "Deleting the snapshot didn't free its blocks");
+        disk.close();
+        image.delete();
+    }
+
+    @Test
+    void testGrowAddsSpaceWhileMounted() {
+        java.io.File image = new java.io.File("testGrow.bff");
+        image.delete();
+
+        TBFF disk = new TBFF(image.getName(), 4*1024*1024);
+        long freeBlocks = disk.getFreeBlockCount();
+        disk.grow(16*1024*1024);
+        Assertions.assertEquals(16*1024*1024, image.length());
+        Assertions.assertEquals(freeBlocks + 3*1024, disk.getFreeBlockCount(), "Grown space isn't free");
+        Assertions.assertThrows(RuntimeException.class, () -> disk.grow(1024*1024), "Disks shouldn't shrink");
+        disk.close();
+
+        TBFF reopened = new TBFF(image.getName(), 16*1024*1024);
+        Assertions.assertEquals(freeBlocks + 3*1024, reopened.getFreeBlockCount(), "Grown space lost on reopen");
+        reopened.close();
+        image.delete();
+    }
+}
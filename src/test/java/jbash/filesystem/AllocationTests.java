@@ -0,0 +1,124 @@
+package jbash.filesystem;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+public class AllocationTests {
+    static final int BLOCK = 4096;
+    static final TBFFOptions OPTIONS = TBFFOptions.defaults().withFlushIntervalMs(0).withCommitIntervalMs(0);
+
+    /** Two empty directories and one file of <code>fileBytes</code>, in that order. */
+    static void createBatch(TBFF disk, Inode root, int fileBytes) {
+        List<String> names = List.of("a", "b", "big");
+        List<Inode> inodes = List.of(new Inode(FileType.Directory), new Inode(FileType.Directory), new Inode(FileType.File));
+        List<byte[]> contents = new ArrayList<>();
+        contents.add(null);
+        contents.add(null);
+        contents.add(new byte[fileBytes]);
+        disk.createEntries(root, names, inodes, contents);
+    }
+
+    @Test
+    void testCreateEntriesRollsBackWhenDiskFills() {
+        CrashDisk device = new CrashDisk();
+        TBFF disk = new TBFF(device, "full", 16*1024*1024, OPTIONS);
+        Inode root = disk.readInodeFromDisk(disk.getRootInodePtr());
+        int freeInodes = disk.getFreeInodeCount();
+        long freeBlocks = disk.getFreeBlockCount();
+
+        // Far too much data: fails before any block is handed out
+        Assertions.assertThrows(RuntimeException.class, () -> createBatch(disk, root, (int) (freeBlocks + 10) * BLOCK));
+        Assertions.assertEquals(freeInodes, disk.getFreeInodeCount(), "Inodes leaked");
+        Assertions.assertEquals(freeBlocks, disk.getFreeBlockCount(), "Blocks leaked");
+
+        // The data fits exactly after the directories' blocks, but its pointer blocks don't
+        long dirBlocks = 2 * DirectoryIndex.EMPTY_BLOCKS;
+        Assertions.assertThrows(RuntimeException.class, () -> createBatch(disk, root, (int) (freeBlocks - dirBlocks) * BLOCK));
+        Assertions.assertEquals(freeInodes, disk.getFreeInodeCount(), "Inodes leaked");
+        Assertions.assertEquals(freeBlocks, disk.getFreeBlockCount(), "Blocks leaked");
+        Assertions.assertEquals(-1, disk.lookupEntry(root, "big"), "Failed entry was added");
+
+        // Nothing's left taken, so the same batch fits once it's a bit smaller
+        createBatch(disk, root, (int) (freeBlocks - dirBlocks - 16) * BLOCK);
+        Assertions.assertNotEquals(-1, disk.lookupEntry(root, "big"));
+        int usedInodes = freeInodes - disk.getFreeInodeCount();
+        long usedBlocks = freeBlocks - disk.getFreeBlockCount();
+        disk.close();
+
+        TBFF reopened = new TBFF(device.getImage(), "full", 16*1024*1024, OPTIONS);
+        Assertions.assertEquals(3, usedInodes);
+        Assertions.assertEquals(freeInodes - usedInodes, reopened.getFreeInodeCount(), "Counts changed on reopen");
+        Assertions.assertEquals(freeBlocks - usedBlocks, reopened.getFreeBlockCount(), "Counts changed on reopen");
+        reopened.close();
+    }
+
+    static Inode mkdir(TBFF disk, Inode parent, String name) {
+        Inode dir = new Inode(FileType.Directory);
+        disk.addEntry(parent, name, disk.writeInodeToDisk(dir, parent.inodePtr));
+        disk.initDirectory(dir);
+        return dir;
+    }
+
+    @Test
+    void testDirectoriesSpreadAndFilesStayWithThem() {
+        TBFF disk = new TBFF(new CrashDisk(), "groups", 64*1024*1024, OPTIONS);
+        int groups = disk.getAllocationGroupCount();
+        Assertions.assertTrue(groups >= 4, "Only " + groups + " allocation groups");
+        Inode root = disk.readInodeFromDisk(disk.getRootInodePtr());
+
+        // Each new directory goes to a roomy group with the fewest directories, so the first few all get their own
+        Set<Integer> dirGroups = new HashSet<>();
+        for (int d = 0; d < groups / 2; d++) {
+            Inode dir = mkdir(disk, root, "d" + d);
+            int group = disk.allocationGroupOfInode(dir.inodePtr);
+            Assertions.assertTrue(dirGroups.add(group), "Directory d" + d + " shares group " + group);
+            Assertions.assertEquals(group, disk.allocationGroupOfBlock(disk.mapBlock(dir, 0)), "Directory's blocks in another group");
+
+            // Its files, and their data, go in the same group
+            for (int f = 0; f < 3; f++) {
+                Inode file = new Inode(FileType.File);
+                disk.addEntry(dir, "f" + f, disk.writeInodeToDisk(file, dir.inodePtr));
+                disk.writeData(file, new byte[20 * BLOCK]);
+                Assertions.assertEquals(group, disk.allocationGroupOfInode(file.inodePtr), "File not in its directory's group");
+                for (int b = 0; b < 20; b++) {
+                    Assertions.assertEquals(group, disk.allocationGroupOfBlock(disk.mapBlock(file, b)), "File data not in its directory's group");
+                }
+            }
+        }
+    }
+
+    @Test
+    void testFullGroupSpillsIntoTheNext() {
+        CrashDisk device = new CrashDisk();
+        TBFF disk = new TBFF(device, "groups", 64*1024*1024, OPTIONS);
+        Inode root = disk.readInodeFromDisk(disk.getRootInodePtr());
+        Inode dir = mkdir(disk, root, "dir");
+        int group = disk.allocationGroupOfInode(dir.inodePtr);
+        long free = disk.getFreeBlockCount();
+
+        // More than a group holds: the data starts in the directory's group and carries on in the following ones
+        int blocks = (int) (free / disk.getAllocationGroupCount()) * 3 / 2;
+        Inode file = new Inode(FileType.File);
+        long ptr = disk.writeInodeToDisk(file, dir.inodePtr);
+        disk.addEntry(dir, "big", ptr);
+        byte[] data = new byte[blocks * BLOCK];
+        for (int i = 0; i < data.length; i++) data[i] = (byte) (i / BLOCK);
+        disk.writeData(file, data);
+        Assertions.assertEquals(group, disk.allocationGroupOfBlock(disk.mapBlock(file, 0)));
+        Assertions.assertEquals((group + 1) % disk.getAllocationGroupCount(), disk.allocationGroupOfBlock(disk.mapBlock(file, blocks - 1)), "Didn't spill into the next group");
+        long used = free - disk.getFreeBlockCount();
+        disk.close();
+
+        TBFF reopened = new TBFF(device.getImage(), "groups", 64*1024*1024, OPTIONS);
+        Assertions.assertEquals(free - used, reopened.getFreeBlockCount(), "Group counters changed on reopen");
+        byte[] back = new byte[data.length];
+        reopened.readData(reopened.readInodeFromDisk(ptr), back);
+        Assertions.assertArrayEquals(data, back);
+        reopened.close();
+    }
+}
@@ -0,0 +1,135 @@
+package jbash.filesystem;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+public class AtimeTests {
+    // The committer runs, so whatever a read made dirty is in the journal before the crash
+    static final TBFFOptions OPTIONS = TBFFOptions.defaults().withFlushIntervalMs(0).withCommitIntervalMs(10);
+
+    /** Disk on <code>device</code> with one small file in the root directory, "file", synced. */
+    static TBFF mount(CrashDisk device, AtimeMode atime) {
+        TBFF disk = new TBFF(device, "atime", 1024*1024, OPTIONS.withAtime(atime));
+        Inode root = disk.readInodeFromDisk(disk.getRootInodePtr());
+        Inode file = new Inode(FileType.File);
+        disk.addEntry(root, "file", disk.writeInodeToDisk(file, root.inodePtr));
+        disk.writeData(file, "some contents".getBytes());
+        disk.sync();
+        return disk;
+    }
+
+    static Inode lookup(TBFF disk, String name) {
+        return disk.readInodeFromDisk(disk.lookupEntry(disk.readInodeFromDisk(disk.getRootInodePtr()), name));
+    }
+
+    static void read(TBFF disk, Inode file) throws InterruptedException {
+        Thread.sleep(5);  // so every read has its own time
+        disk.readData(file, new byte[(int) file.size]);
+    }
+
+    /** The access time of "file" once <code>device</code> is crashed, which is whatever was committed so far. */
+    static long accessTimeAfterCrash(CrashDisk device, TBFF disk, AtimeMode atime) throws InterruptedException {
+        Thread.sleep(200);  // a good few commit rounds
+        synchronized (disk) {
+            device.crash();
+        }
+        TBFF reopened = new TBFF(device.getImage(), "atime", 1024*1024, OPTIONS.withAtime(atime));
+        long accessed = lookup(reopened, "file").getAccessTime();
+        reopened.close();
+        return accessed;
+    }
+
+    @Test
+    void testStrictUpdatesEveryRead() throws InterruptedException {
+        CrashDisk device = new CrashDisk();
+        TBFF disk = mount(device, AtimeMode.STRICT);
+        Inode file = lookup(disk, "file");
+        long before = file.getAccessTime();
+
+        read(disk, file);
+        long first = file.getAccessTime();
+        Assertions.assertTrue(first > before, "Read didn't update the access time");
+        read(disk, file);
+        Assertions.assertTrue(file.getAccessTime() > first, "Second read didn't update the access time");
+
+        // Listing a directory is a read of it too
+        Inode root = disk.readInodeFromDisk(disk.getRootInodePtr());
+        long rootBefore = root.getAccessTime();
+        Thread.sleep(5);
+        disk.listEntries(root);
+        Assertions.assertTrue(root.getAccessTime() > rootBefore, "Listing didn't update the access time");
+
+        // Each update is a metadata change like any other, committed without waiting for a sync
+        long last = file.getAccessTime();
+        Assertions.assertEquals(last, accessTimeAfterCrash(device, disk, AtimeMode.STRICT), "Access time not committed");
+    }
+
+    @Test
+    void testRelatimeOnlyUpdatesStaleTimesAndNeverDirties() throws InterruptedException {
+        CrashDisk device = new CrashDisk();
+        TBFF disk = mount(device, AtimeMode.RELATIME);
+        Inode file = lookup(disk, "file");
+        long before = file.getAccessTime();
+        Assertions.assertTrue(before <= file.getModTime());
+
+        // Older than the last change, so the first read updates it, the next ones don't
+        read(disk, file);
+        long first = file.getAccessTime();
+        Assertions.assertTrue(first > file.getModTime(), "Stale access time not updated");
+        read(disk, file);
+        read(disk, file);
+        Assertions.assertEquals(first, file.getAccessTime(), "Fresh access time updated again");
+
+        // The new time only lives in memory: commits pass it over, so a crash loses it
+        Assertions.assertEquals(before, accessTimeAfterCrash(device, disk, AtimeMode.RELATIME), "Read made the inode dirty");
+    }
+
+    @Test
+    void testRelatimeWrittenWithChangesAndOnClose() throws InterruptedException {
+        CrashDisk device = new CrashDisk();
+        TBFF disk = mount(device, AtimeMode.RELATIME);
+        Inode file = lookup(disk, "file");
+
+        // A change makes the time stale again, and the update after it goes out with the next real change
+        read(disk, file);
+        Thread.sleep(5);
+        disk.writeData(file, "new contents".getBytes());
+        read(disk, file);
+        Assertions.assertTrue(file.getAccessTime() > file.getModTime(), "Access time older than the change not updated");
+        long accessed = file.getAccessTime();
+        disk.writeData(file, "newer contents".getBytes());
+        Assertions.assertEquals(accessed, accessTimeAfterCrash(device, disk, AtimeMode.RELATIME), "Access time didn't ride along with the change");
+
+        // Unmounting writes it too
+        CrashDisk closed = new CrashDisk();
+        disk = mount(closed, AtimeMode.RELATIME);
+        file = lookup(disk, "file");
+        read(disk, file);
+        accessed = file.getAccessTime();
+        disk.close();
+        TBFF reopened = new TBFF(closed.getImage(), "atime", 1024*1024, OPTIONS.withAtime(AtimeMode.RELATIME));
+        Assertions.assertEquals(accessed, lookup(reopened, "file").getAccessTime(), "Access time lost on close");
+        reopened.close();
+    }
+
+    @Test
+    void testNoatimeNeverUpdates() throws InterruptedException {
+        CrashDisk device = new CrashDisk();
+        TBFF disk = mount(device, AtimeMode.NOATIME);
+        Inode file = lookup(disk, "file");
+        long before = file.getAccessTime();
+        Inode root = disk.readInodeFromDisk(disk.getRootInodePtr());
+        long rootBefore = root.getAccessTime();
+
+        read(disk, file);
+        disk.read(file, 2, new byte[4], 0, 4, null);
+        disk.listEntries(root);
+        Assertions.assertEquals(before, file.getAccessTime());
+        Assertions.assertEquals(rootBefore, root.getAccessTime());
+        disk.close();
+
+        TBFF reopened = new TBFF(device.getImage(), "atime", 1024*1024, OPTIONS.withAtime(AtimeMode.NOATIME));
+        Assertions.assertEquals(before, lookup(reopened, "file").getAccessTime());
+        reopened.close();
+    }
+}
@@ -0,0 +1,99 @@
+package jbash.filesystem;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+public class BlockAllocatorTests {
+    /** Allocator over <code>size</code> blocks with the extents <code>used</code> (start, length pairs) taken. */
+    static BlockAllocator allocator(int size, long... used) {
+        Bitmap bitmap = new Bitmap(size);
+        for (int i = 0; i < used.length; i += 2) bitmap.setRange((int) used[i], (int) (used[i] + used[i + 1]));
+        return new BlockAllocator(bitmap);
+    }
+
+    static void assertExtents(List<Extent> extents, long... expected) {
+        Assertions.assertEquals(expected.length / 2, extents.size(), "Wrong extents: " + extents);
+        for (int i = 0; i < extents.size(); i++) {
+            Assertions.assertEquals(new Extent(expected[2 * i], expected[2 * i + 1]), extents.get(i), "Wrong extents: " + extents);
+        }
+    }
+
+    @Test
+    void testSmallestRunThatFits() {
+        // Free runs: 0-9 (10), 20-23 (4), 30-35 (6), 40-99 (60)
+        BlockAllocator allocator = allocator(100, 10, 10, 24, 6, 36, 4);
+        Assertions.assertEquals(80, allocator.getFreeBlocks());
+
+        assertExtents(allocator.allocate(5, -1), 30, 5);
+        assertExtents(allocator.allocate(4, -1), 20, 4);
+        assertExtents(allocator.allocate(30, -1), 40, 30);
+        Assertions.assertEquals(41, allocator.getFreeBlocks());
+        for (int b = 40; b < 70; b++) Assertions.assertTrue(allocator.getBitmap().get(b), "Block " + b + " not marked used");
+        Assertions.assertFalse(allocator.getBitmap().get(70));
+    }
+
+    @Test
+    void testGoalBlockComesFirst() {
+        BlockAllocator allocator = allocator(100, 0, 10);
+        assertExtents(allocator.allocate(5, 50), 50, 5);
+
+        // Right after a file's last block, even when it only has room for part of the request
+        allocator.allocate(1, 60);
+        assertExtents(allocator.allocate(8, 55), 55, 5, 61, 3);
+        // A goal that's taken only picks the run nearest to it
+        assertExtents(allocator.allocate(4, 52), 64, 4);
+        // No goal: carry on after the last allocation
+        assertExtents(allocator.allocate(2, -1), 68, 2);
+    }
+
+    @Test
+    void testAllocatingSplitsTheRun() {
+        BlockAllocator allocator = allocator(64);
+        assertExtents(allocator.allocate(10, 20), 20, 10);
+        Assertions.assertEquals(54, allocator.getFreeBlocks());
+        // What's left on either side is still free and usable as a whole
+        assertExtents(allocator.allocate(20, -1), 0, 20);
+        assertExtents(allocator.allocate(34, -1), 30, 34);
+        Assertions.assertEquals(0, allocator.getFreeBlocks());
+        Assertions.assertTrue(allocator.allocate(1, -1).isEmpty());
+
+        // Reserving also splits a run, and only works on free blocks
+        allocator.free(new Extent(40, 10));
+        allocator.reserve(new Extent(44, 2));
+        Assertions.assertEquals(8, allocator.getFreeBlocks());
+        Assertions.assertThrows(IllegalStateException.class, () -> allocator.reserve(new Extent(45, 2)));
+        assertExtents(allocator.allocate(4, -1), 40, 4);
+    }
+
+    @Test
+    void testFreeMergesNeighbours() {
+        BlockAllocator allocator = allocator(30);
+        allocator.allocate(30, -1);
+        allocator.free(new Extent(10, 5));
+        allocator.free(new Extent(20, 5));
+        allocator.free(new Extent(15, 5));  // joins both into 10-24
+
+        assertExtents(allocator.allocate(15, -1), 10, 15);
+        allocator.free(new Extent(10, 15));
+        allocator.free(new Extent(0, 10));
+        allocator.free(new Extent(25, 5));
+        Assertions.assertEquals(30, allocator.getFreeBlocks());
+        assertExtents(allocator.allocate(30, -1), 0, 30);
+        Assertions.assertEquals(30, allocator.getBitmap().cardinality());
+    }
+
+    @Test
+    void testNoRunBigEnough() {
+        // Free runs of 5, 3 and 2
+        BlockAllocator allocator = allocator(20, 5, 2, 10, 2, 14, 6);
+        Assertions.assertTrue(allocator.allocate(11, -1).isEmpty(), "More than is free");
+        Assertions.assertEquals(10, allocator.getFreeBlocks(), "Failed request took blocks");
+        Assertions.assertEquals(10, allocator.getBitmap().cardinality(), "Failed request marked blocks");
+
+        // Enough in total, but in no single run: spread over the largest ones first
+        assertExtents(allocator.allocate(9, -1), 0, 5, 7, 3, 12, 1);
+        Assertions.assertEquals(1, allocator.getFreeBlocks());
+    }
+}
@@ -0,0 +1,178 @@
+package jbash.filesystem;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class BlockCacheTests {
+    static final int BLOCK = 512;
+
+    /** Disk in memory whose async writes and reads can be held back until the test releases them. */
+    static class SlowBacking implements BlockCache.Backing {
+        final byte[] image = new byte[64 * BLOCK];
+        final List<Runnable> held = new ArrayList<>();
+        volatile boolean hold = false;
+        int reads = 0, writes = 0;
+
+        public synchronized void read(long firstBlock, byte[] dst, int off, int numBlocks) {
+            reads++;
+            System.arraycopy(image, (int) firstBlock * BLOCK, dst, off, numBlocks * BLOCK);
+        }
+
+        public synchronized void write(long firstBlock, byte[] src, int off, int numBlocks) {
+            writes++;
+            System.arraycopy(src, off, image, (int) firstBlock * BLOCK, numBlocks * BLOCK);
+        }
+
+        /** Reads what's on disk now, but only completes when released. */
+        public CompletableFuture<Void> readAsync(long firstBlock, byte[] dst, int off, int numBlocks) {
+            read(firstBlock, dst, off, numBlocks);
+            return later(() -> {});
+        }
+
+        /** Only lands on disk when released. */
+        public CompletableFuture<Void> writeAsync(long firstBlock, byte[] src, int off, int numBlocks) {
+            byte[] copy = Arrays.copyOfRange(src, off, off + numBlocks * BLOCK);
+            return later(() -> write(firstBlock, copy, 0, numBlocks));
+        }
+
+        private synchronized CompletableFuture<Void> later(Runnable io) {
+            CompletableFuture<Void> done = new CompletableFuture<>();
+            Runnable complete = () -> {
+                io.run();
+                done.complete(null);
+            };
+            if (hold) held.add(complete);
+            else complete.run();
+            return done;
+        }
+
+        void release() {
+            List<Runnable> ready;
+            synchronized (this) {
+                ready = new ArrayList<>(held);
+                held.clear();
+            }
+            ready.forEach(Runnable::run);
+        }
+
+        synchronized int heldCount() {
+            return held.size();
+        }
+
+        synchronized byte at(long block) {
+            return image[(int) block * BLOCK];
+        }
+    }
+
+    static byte[] filled(int value) {
+        byte[] block = new byte[BLOCK];
+        Arrays.fill(block, (byte) value);
+        return block;
+    }
+
+    @Test
+    void testUndurableBlocksAreHeldBack() {
+        SlowBacking disk = new SlowBacking();
+        BlockCache cache = new BlockCache(disk, BLOCK, 4, 0);
+        AtomicLong durable = new AtomicLong(4);
+        cache.setWriteAheadLog(durable::get);
+
+        cache.write(BLOCK, filled(1), 0, BLOCK, 4);
+        cache.write(2 * BLOCK, filled(2), 0, BLOCK, 5);
+        cache.flush();
+        Assertions.assertEquals(1, disk.at(1), "Durable block not written");
+        Assertions.assertEquals(0, disk.at(2), "Block written before its transaction was durable");
+
+        // Filling the cache can't evict it either, the cache grows instead
+        for (int b = 10; b < 20; b++) cache.write((long) b * BLOCK, filled(b), 0, BLOCK, 6);
+        Assertions.assertEquals(0, disk.at(2), "Block evicted before its transaction was durable");
+
+        durable.set(6);
+        cache.flush();
+        Assertions.assertEquals(2, disk.at(2));
+        for (int b = 10; b < 20; b++) Assertions.assertEquals(b, disk.at(b));
+    }
+
+    @Test
+    void testRewriteLandsAfterWriteInFlight() throws Exception {
+        SlowBacking disk = new SlowBacking();
+        BlockCache cache = new BlockCache(disk, BLOCK, 8, 0);
+        disk.hold = true;
+        cache.write(3 * BLOCK, filled(1), 0, BLOCK);
+        CompletableFuture<Void> first = cache.flushAsync();
+        Assertions.assertFalse(first.isDone());
+
+        // The newer copy must wait for the older one, or the older one could land last
+        cache.write(3 * BLOCK, filled(2), 0, BLOCK);
+        CompletableFuture<CompletableFuture<Void>> second = CompletableFuture.supplyAsync(cache::flushAsync);
+        Thread.sleep(100);
+        Assertions.assertEquals(1, disk.heldCount(), "Newer copy submitted while the older one was in flight");
+
+        disk.hold = false;
+        disk.release();
+        second.get().get();
+        Assertions.assertTrue(first.isDone());
+        Assertions.assertEquals(2, disk.at(3), "Older copy landed last");
+
+        // A read of a block whose write is in flight waits for it instead of reading the old copy from disk
+        BlockCache small = new BlockCache(disk, BLOCK, 1, 0);
+        disk.hold = true;
+        small.write(5 * BLOCK, filled(7), 0, BLOCK);
+        CompletableFuture<Void> write = small.flushAsync();
+        small.read(6 * BLOCK, new byte[BLOCK], 0, BLOCK);  // evicts block 5, now clean
+        CompletableFuture<byte[]> read = CompletableFuture.supplyAsync(() -> {
+            byte[] dst = new byte[BLOCK];
+            small.read(5 * BLOCK, dst, 0, BLOCK);
+            return dst;
+        });
+        Thread.sleep(100);
+        Assertions.assertFalse(read.isDone(), "Read didn't wait for the write in flight");
+        disk.hold = false;
+        disk.release();
+        write.get();
+        Assertions.assertEquals(7, read.get()[0]);
+    }
+
+    @Test
+    void testPrefetchLoadsRunsOnce() throws Exception {
+        SlowBacking disk = new SlowBacking();
+        for (int b = 0; b < 16; b++) disk.write(b, filled(b), 0, 1);
+        BlockCache cache = new BlockCache(disk, BLOCK, 32, 0);
+        cache.read(4 * BLOCK, new byte[BLOCK], 0, BLOCK);
+        int reads = disk.reads;
+
+        // Blocks 0-3 and 5-9 are missing, block 4 is cached: two reads
+        cache.prefetch(0, 10 * BLOCK).get();
+        Assertions.assertEquals(reads + 2, disk.reads, "Prefetch didn't merge runs or reread a cached block");
+        byte[] dst = new byte[10 * BLOCK];
+        cache.read(0, dst, 0, dst.length);
+        Assertions.assertEquals(reads + 2, disk.reads, "Prefetched blocks weren't cached");
+        for (int b = 0; b < 10; b++) Assertions.assertEquals(b, dst[b * BLOCK]);
+        Assertions.assertTrue(cache.prefetch(0, 10 * BLOCK).isDone(), "Prefetch of cached blocks should finish at once");
+    }
+
+    @Test
+    void testPrefetchDoesNotInstallStaleData() throws Exception {
+        SlowBacking disk = new SlowBacking();
+        BlockCache cache = new BlockCache(disk, BLOCK, 1, 0);
+        disk.hold = true;
+        CompletableFuture<Void> prefetch = cache.prefetch(2 * BLOCK, BLOCK);  // reads the old copy, completes later
+
+        cache.write(2 * BLOCK, filled(9), 0, BLOCK);
+        cache.read(8 * BLOCK, new byte[BLOCK], 0, BLOCK);  // evicts block 2, writing it home while the prefetch is still out
+        disk.hold = false;
+        disk.release();
+        prefetch.get();
+        cache.flush();
+
+        byte[] dst = new byte[BLOCK];
+        cache.read(2 * BLOCK, dst, 0, BLOCK);
+        Assertions.assertEquals(9, dst[0], "Prefetch installed data older than a write");
+    }
+}
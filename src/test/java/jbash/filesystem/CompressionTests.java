@@ -0,0 +1,107 @@
+package jbash.filesystem;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.util.Random;
+
+public class CompressionTests {
+    static final int CLUSTER = CompressedData.CLUSTER_BYTES;
+    static final TBFFOptions OPTIONS = TBFFOptions.defaults().withFlushIntervalMs(0).withCommitIntervalMs(0).withCompression(true);
+
+    /** Text that deflates well, except for cluster <code>noisyCluster</code> (if not -1), noise that has to be stored raw. */
+    static byte[] mixedContents(int len, int noisyCluster) {
+        byte[] data = new byte[len];
+        byte[] line = "the quick brown fox jumps over the lazy dog 0123456789\n".getBytes();
+        for (int i = 0; i < len; i++) data[i] = line[i % line.length];
+        if (noisyCluster == -1) return data;
+        Random random = new Random(noisyCluster);
+        for (int i = noisyCluster * CLUSTER; i < Math.min(len, (noisyCluster + 1) * CLUSTER); i++) data[i] = (byte) random.nextInt();
+        return data;
+    }
+
+    static void assertReads(TBFF disk, Inode file, byte[] data, long offset, int len) {
+        byte[] piece = new byte[len];
+        int read = disk.read(file, offset, piece, 0, len, null);
+        Assertions.assertEquals(Math.min(len, data.length - offset), read, "Wrong length read at " + offset);
+        for (int i = 0; i < read; i++) Assertions.assertEquals(data[(int) offset + i], piece[i], "Wrong byte at " + (offset + i));
+    }
+
+    @Test
+    void testRoundTripAcrossClusters() {
+        CrashDisk device = new CrashDisk();
+        TBFF disk = new TBFF(device, "compressed", 16*1024*1024, OPTIONS);
+        Inode file = new Inode(FileType.File);
+        long ptr = disk.writeInodeToDisk(file);
+        byte[] data = mixedContents(3 * CLUSTER + 1234, 1);
+        long free = disk.getFreeBlockCount();
+        disk.writeData(file, data);
+
+        Assertions.assertTrue(file.compressed, "Compressible file stored raw");
+        Assertions.assertEquals(data.length, file.size, "Size isn't the real one");
+        long used = free - disk.getFreeBlockCount();
+        Assertions.assertTrue(used < data.length / 4096, "Took " + used + " blocks");
+        disk.close();
+
+        TBFF reopened = new TBFF(device.getImage(), "compressed", 16*1024*1024, OPTIONS);
+        Inode reread = reopened.readInodeFromDisk(ptr);
+        byte[] back = new byte[data.length];
+        reopened.readData(reread, back);
+        Assertions.assertArrayEquals(data, back);
+
+        // Pieces straddling each cluster boundary, one spanning two, and the short last cluster
+        for (int c = 1; c <= 3; c++) assertReads(reopened, reread, data, (long) c * CLUSTER - 10, 20);
+        assertReads(reopened, reread, data, CLUSTER - 5, CLUSTER + 70);
+        assertReads(reopened, reread, data, data.length - 100, 500);
+        Assertions.assertEquals(0, reopened.read(reread, data.length, new byte[10], 0, 10, null));
+
+        // Reading only the start doesn't need the rest of the file
+        byte[] start = new byte[CLUSTER + 1];
+        reopened.readData(reread, start);
+        for (int i = 0; i < start.length; i++) Assertions.assertEquals(data[i], start[i]);
+        reopened.close();
+    }
+
+    @Test
+    void testExactClusterSizesAndIncompressibleData() {
+        TBFF disk = new TBFF(new CrashDisk(), "compressed", 16*1024*1024, OPTIONS);
+        for (int len : new int[]{CLUSTER, CLUSTER + 1, 2 * CLUSTER}) {
+            Inode file = new Inode(FileType.File);
+            disk.writeInodeToDisk(file);
+            byte[] data = mixedContents(len, -1);
+            disk.writeData(file, data);
+            Assertions.assertTrue(file.compressed, len + " bytes stored raw");
+            byte[] back = new byte[len];
+            disk.readData(file, back);
+            Assertions.assertArrayEquals(data, back, len + " bytes read back wrong");
+        }
+
+        // Noise can't be made smaller, so it's stored as is
+        Inode noise = new Inode(FileType.File);
+        disk.writeInodeToDisk(noise);
+        byte[] random = new byte[2 * CLUSTER];
+        new Random(7).nextBytes(random);
+        long free = disk.getFreeBlockCount();
+        disk.writeData(noise, random);
+        Assertions.assertFalse(noise.compressed, "Incompressible file stored compressed");
+        Assertions.assertEquals(free - 2 * CLUSTER / 4096 - 1, disk.getFreeBlockCount());  // and a single-indirect block
+        assertReads(disk, noise, random, CLUSTER - 10, 20);
+    }
+
+    @Test
+    void testRewritingFreesCompressedBlocks() {
+        TBFF disk = new TBFF(new CrashDisk(), "compressed", 16*1024*1024, OPTIONS);
+        Inode file = new Inode(FileType.File);
+        disk.writeInodeToDisk(file);
+        long free = disk.getFreeBlockCount();
+        disk.writeData(file, mixedContents(5 * CLUSTER, 2));
+
+        byte[] small = "small now".getBytes();
+        disk.writeData(file, small);
+        Assertions.assertFalse(file.compressed);
+        Assertions.assertEquals(free, disk.getFreeBlockCount(), "Compressed blocks leaked");
+        byte[] back = new byte[small.length];
+        disk.readData(file, back);
+        Assertions.assertArrayEquals(small, back);
+    }
+}
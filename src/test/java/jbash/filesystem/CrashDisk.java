@@ -0,0 +1,54 @@
+package jbash.filesystem;
+
+/**
+ * MemoryDisk that can be crashed: once crash() is called every write is silently dropped, like a machine that lost
+ * power. The disk as it was at that point can then be opened again with a new TBFF on getImage().
+ */
+class CrashDisk implements BlockDevice {
+    private final MemoryDisk image = new MemoryDisk();
+    private volatile boolean crashed = false;
+    private long lastWritePos = -1;
+    private int lastWriteLen = 0;
+
+    void crash() {
+        crashed = true;
+    }
+
+    MemoryDisk getImage() {
+        return image;
+    }
+
+    /** Offset and length of the last write that made it to the image before the crash. */
+    long lastWritePos() {
+        return lastWritePos;
+    }
+
+    int lastWriteLen() {
+        return lastWriteLen;
+    }
+
+    public long size() {
+        return image.size();
+    }
+
+    public void resize(long sizeBytes) {
+        if (!crashed) image.resize(sizeBytes);
+    }
+
+    public void read(long pos, byte[] dst, int off, int len) {
+        image.read(pos, dst, off, len);
+    }
+
+    public synchronized void write(long pos, byte[] src, int off, int len) {
+        if (crashed) return;
+        image.write(pos, src, off, len);
+        lastWritePos = pos;
+        lastWriteLen = len;
+    }
+
+    public void force() {
+    }
+
+    public void close() {
+    }
+}
@@ -0,0 +1,117 @@
+package jbash.filesystem;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+
+public class DedupTests {
+    static final int BLOCK = 4096;
+    static final TBFFOptions OPTIONS = TBFFOptions.defaults().withFlushIntervalMs(0).withCommitIntervalMs(0).withDedupIndexSize(1024);
+
+    /** <code>blocks</code> blocks, each different from the others and from other seeds' blocks. */
+    static byte[] contents(int blocks, int seed) {
+        byte[] data = new byte[blocks * BLOCK];
+        for (int i = 0; i < data.length; i++) data[i] = (byte) (i / BLOCK * 13 + seed * 101 + i % 7);
+        return data;
+    }
+
+    static Inode newFile(TBFF disk) {
+        Inode file = new Inode(FileType.File);
+        disk.writeInodeToDisk(file);
+        return file;
+    }
+
+    static void assertContents(TBFF disk, long inodePtr, byte[] expected) {
+        Inode inode = disk.readInodeFromDisk(inodePtr);
+        byte[] data = new byte[(int) inode.size];
+        disk.readData(inode, data);
+        Assertions.assertArrayEquals(expected, data);
+    }
+
+    @Test
+    void testSharedBlocksFreedWithLastReference() {
+        CrashDisk device = new CrashDisk();
+        TBFF disk = new TBFF(device, "dedup", 16*1024*1024, OPTIONS);
+        byte[] data = contents(8, 1);
+        Inode a = newFile(disk), b = newFile(disk), c = newFile(disk);
+        disk.writeData(a, data);
+        disk.writeData(b, data);  // the first share also sets up the reference counts
+        long free = disk.getFreeBlockCount();
+
+        disk.writeData(c, data);
+        Assertions.assertEquals(free, disk.getFreeBlockCount(), "Duplicate blocks weren't shared");
+        Assertions.assertEquals(disk.mapBlock(a, 3), disk.mapBlock(c, 3));
+
+        // Half the same, half new
+        Inode half = newFile(disk);
+        byte[] mixed = contents(8, 2);
+        System.arraycopy(data, 0, mixed, 0, 4 * BLOCK);
+        disk.writeData(half, mixed);
+        Assertions.assertEquals(free - 4, disk.getFreeBlockCount());
+        disk.close();
+
+        // Dropping references one at a time only frees the blocks with the last one, across a reopen
+        TBFF reopened = new TBFF(device.getImage(), "dedup", 16*1024*1024, OPTIONS);
+        for (Inode file : new Inode[]{a, b, c}) {
+            Assertions.assertEquals(free - 4, reopened.getFreeBlockCount(), "Shared blocks freed while still in use");
+            assertContents(reopened, half.inodePtr, mixed);
+            reopened.writeData(reopened.readInodeFromDisk(file.inodePtr), "gone".getBytes());
+        }
+        Assertions.assertEquals(free, reopened.getFreeBlockCount(), "Blocks only the last file used weren't freed");
+        assertContents(reopened, half.inodePtr, mixed);
+        reopened.writeData(reopened.readInodeFromDisk(half.inodePtr), "gone".getBytes());
+        Assertions.assertEquals(free + 8, reopened.getFreeBlockCount(), "Shared blocks leaked");
+        reopened.close();
+    }
+
+    @Test
+    void testBlocksWithinOneWriteAreNotShared() {
+        TBFF disk = new TBFF(new CrashDisk(), "dedup", 16*1024*1024, OPTIONS);
+        byte[] data = new byte[4 * BLOCK];
+        Arrays.fill(data, (byte) 5);  // four identical blocks
+        Inode file = newFile(disk);
+        long free = disk.getFreeBlockCount();
+        disk.writeData(file, data);
+        Assertions.assertEquals(free - 4, disk.getFreeBlockCount());
+        assertContents(disk, file.inodePtr, data);
+    }
+
+    @Test
+    void testSnapshotKeepsSharedBlocks() {
+        TBFF disk = new TBFF(new CrashDisk(), "dedup", 16*1024*1024, OPTIONS);
+        Inode root = disk.readInodeFromDisk(disk.getRootInodePtr());
+        byte[] data = contents(6, 3);
+        Inode a = newFile(disk), b = newFile(disk);
+        disk.addEntry(root, "a", a.inodePtr);
+        disk.writeData(a, data);
+        disk.writeData(b, data);
+        disk.createSnapshot();
+
+        // Both live copies go away, but the snapshot still has the blocks
+        disk.writeData(a, contents(6, 4));
+        disk.writeData(b, "gone".getBytes());
+        Volume snapshot = disk.getSnapshot();
+        Inode snapRoot = snapshot.readInodeFromDisk(snapshot.getRootInodePtr());
+        Inode snapA = snapshot.readInodeFromDisk(snapshot.lookupEntry(snapRoot, "a"));
+        byte[] old = new byte[(int) snapA.size];
+        snapshot.readData(snapA, old);
+        Assertions.assertArrayEquals(data, old, "Snapshot lost shared blocks");
+
+        // The same contents again mustn't share blocks that only the snapshot holds, they go when it's deleted
+        Inode c = newFile(disk);
+        long free = disk.getFreeBlockCount();
+        disk.writeData(c, data);
+        Assertions.assertEquals(free - 6, disk.getFreeBlockCount(), "Shared a block on the snapshot's dead list");
+        disk.deleteSnapshot();
+        assertContents(disk, c.inodePtr, data);
+        assertContents(disk, a.inodePtr, contents(6, 4));
+
+        // With the snapshot gone, new copies share live blocks again
+        Inode d = newFile(disk);
+        free = disk.getFreeBlockCount();
+        disk.writeData(d, data);
+        Assertions.assertEquals(free, disk.getFreeBlockCount());
+        assertContents(disk, d.inodePtr, data);
+    }
+}
@@ -0,0 +1,137 @@
+package jbash.filesystem;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+public class DirectoryIndexTests {
+    // Small blocks, so a root table holds 32 slots and a leaf about a dozen names
+    static final int BLOCK = 256;
+
+    /** A directory's blocks in memory. */
+    static class ArrayStorage implements DirectoryIndex.Storage {
+        final List<byte[]> blocks = new ArrayList<>();
+
+        public void read(long fileBlock, byte[] dst) {
+            System.arraycopy(blocks.get((int) fileBlock), 0, dst, 0, BLOCK);
+        }
+
+        public void write(long fileBlock, byte[] src) {
+            blocks.set((int) fileBlock, src.clone());
+        }
+
+        public long append() {
+            blocks.add(new byte[BLOCK]);
+            return blocks.size() - 1;
+        }
+
+        public long numBlocks() {
+            return blocks.size();
+        }
+    }
+
+    static DirectoryIndex newIndex(ArrayStorage storage) {
+        DirectoryIndex index = new DirectoryIndex(storage, BLOCK);
+        index.init();
+        return index;
+    }
+
+    static List<String> names(int count) {
+        List<String> names = new ArrayList<>();
+        for (int i = 0; i < count; i++) names.add("file" + i + ".txt");
+        return names;
+    }
+
+    @Test
+    void testSplitsKeepEveryName() {
+        ArrayStorage storage = new ArrayStorage();
+        DirectoryIndex index = newIndex(storage);
+        List<String> names = names(300);
+        for (int i = 0; i < names.size(); i++) index.insert(names.get(i), i);
+
+        Assertions.assertTrue(storage.numBlocks() > 20, "Leaves never split");
+        for (int i = 0; i < names.size(); i++) Assertions.assertEquals(i, index.lookup(names.get(i)), "Lost " + names.get(i));
+        Assertions.assertEquals(-1, index.lookup("missing"));
+        Assertions.assertEquals(300, index.list().size());
+        Assertions.assertThrows(RuntimeException.class, () -> index.insert("file7.txt", 1), "Duplicate name added");
+    }
+
+    @Test
+    void testGrowsPastRootTable() {
+        ArrayStorage storage = new ArrayStorage();
+        DirectoryIndex index = newIndex(storage);
+        // 32 root slots of ~12 names each would be full at a few hundred names without index nodes
+        List<String> names = names(20000);
+        for (int from = 0; from < names.size(); from += 1000) {
+            Map<String, Long> batch = new LinkedHashMap<>();
+            for (int i = from; i < from + 1000; i++) batch.put(names.get(i), (long) i);
+            index.insertAll(batch);
+        }
+
+        Assertions.assertTrue(storage.numBlocks() > 1000, "Expected more leaves than the root has slots");
+        for (int i = 0; i < names.size(); i++) Assertions.assertEquals(i, index.lookup(names.get(i)), "Lost " + names.get(i));
+        Assertions.assertEquals(20000, index.list().size());
+    }
+
+    @Test
+    void testLookupsAfterManyRemoves() {
+        ArrayStorage storage = new ArrayStorage();
+        DirectoryIndex index = newIndex(storage);
+        List<String> names = names(5000);
+        for (int i = 0; i < names.size(); i++) index.insert(names.get(i), i);
+        long grownTo = storage.numBlocks();
+
+        List<String> order = new ArrayList<>(names);
+        Collections.shuffle(order, new Random(42));
+        List<String> removed = order.subList(0, 4900), kept = order.subList(4900, 5000);
+        for (String name : removed) Assertions.assertTrue(index.remove(name), "Couldn't remove " + name);
+        Assertions.assertFalse(index.remove(removed.get(0)), "Removed twice");
+
+        for (String name : removed) Assertions.assertEquals(-1, index.lookup(name), name + " still there");
+        for (String name : kept) Assertions.assertEquals(names.indexOf(name), index.lookup(name), "Lost " + name);
+        Assertions.assertEquals(100, index.list().size());
+
+        // Emptied leaves were merged, and their blocks get reused instead of the directory growing
+        for (String name : removed) index.insert(name, names.indexOf(name));
+        Assertions.assertEquals(grownTo, storage.numBlocks(), "Merged leaves' blocks weren't reused");
+        for (int i = 0; i < names.size(); i++) Assertions.assertEquals(i, index.lookup(names.get(i)), "Lost " + names.get(i));
+    }
+
+    @Test
+    void testRemovingEverythingMergesBackToOneLeaf() {
+        ArrayStorage storage = new ArrayStorage();
+        DirectoryIndex index = newIndex(storage);
+        List<String> names = names(2000);
+        for (int i = 0; i < names.size(); i++) index.insert(names.get(i), i);
+        for (String name : names) index.remove(name);
+        Assertions.assertTrue(index.list().isEmpty());
+
+        // With everything merged, a leaf's worth of names fits without taking a single new block
+        long blocks = storage.numBlocks();
+        index.insertAll(Map.of("a", 1L, "b", 2L, "c", 3L));
+        Assertions.assertEquals(blocks, storage.numBlocks());
+        Assertions.assertEquals(2L, index.lookup("b"));
+    }
+
+    @Test
+    void testFailedInsertAllChangesNothing() {
+        ArrayStorage storage = new ArrayStorage();
+        DirectoryIndex index = newIndex(storage);
+        for (String name : names(500)) index.insert(name, 1);
+        List<byte[]> before = new ArrayList<>();
+        for (byte[] block : storage.blocks) before.add(block.clone());
+
+        Map<String, Long> batch = new LinkedHashMap<>();
+        for (int i = 0; i < 500; i++) batch.put("new" + i, (long) i);
+        batch.put("file3.txt", 9L);
+        Assertions.assertThrows(RuntimeException.class, () -> index.insertAll(batch));
+        Assertions.assertEquals(before.size(), storage.blocks.size(), "Blocks were added");
+        for (int i = 0; i < before.size(); i++) Assertions.assertArrayEquals(before.get(i), storage.blocks.get(i), "Block " + i + " changed");
+    }
+}
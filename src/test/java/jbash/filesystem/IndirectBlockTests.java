@@ -0,0 +1,114 @@
+package jbash.filesystem;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+public class IndirectBlockTests {
+    static final int BLOCK = 4096;
+    static final int PTRS = BLOCK / Long.BYTES;
+    static final long SINGLE_END = Inode.NUM_DIRECT + PTRS;  // first block mapped through the double-indirect block
+    static final TBFFOptions OPTIONS = TBFFOptions.defaults().withFlushIntervalMs(0).withCommitIntervalMs(0);
+
+    static byte[] pattern(int len, int seed) {
+        byte[] data = new byte[len];
+        for (int i = 0; i < len; i++) data[i] = (byte) (i / BLOCK * 7 + i + seed);
+        return data;
+    }
+
+    static TBFF newDisk() {
+        return new TBFF(new CrashDisk(), "indirect", 16*1024*1024, OPTIONS);
+    }
+
+    /** Every block of <code>file</code> is mapped, to a different data block, and nothing past its end is. */
+    static void assertMapped(TBFF disk, Inode file) {
+        long blocks = (file.size + BLOCK - 1) / BLOCK;
+        Set<Long> seen = new HashSet<>();
+        for (long b = 0; b < blocks; b++) {
+            long dataBlock = disk.mapBlock(file, b);
+            Assertions.assertNotEquals(0, dataBlock, "Block " + b + " not mapped");
+            Assertions.assertTrue(seen.add(dataBlock), "Block " + b + " mapped twice");
+        }
+        Assertions.assertEquals(0, disk.mapBlock(file, blocks), "Block past the end is mapped");
+    }
+
+    @Test
+    void testWritesAcrossEachBoundaryReadBack() {
+        TBFF disk = newDisk();
+        // Last direct block, first single-indirect, last single-indirect, first double-indirect, and into the
+        // double-indirect block's second child
+        long[] sizes = {
+            Inode.NUM_DIRECT * BLOCK, Inode.NUM_DIRECT * BLOCK + 1,
+            SINGLE_END * BLOCK, SINGLE_END * BLOCK + 1,
+            (SINGLE_END + PTRS) * BLOCK + 1,
+        };
+        for (long size : sizes) {
+            Inode file = new Inode(FileType.File);
+            disk.writeInodeToDisk(file);
+            byte[] data = pattern((int) size, (int) size);
+            disk.writeData(file, data);
+
+            long blocks = (size + BLOCK - 1) / BLOCK;
+            Assertions.assertEquals(blocks > Inode.NUM_DIRECT, file.indirect != 0, size + " bytes: wrong single-indirect block");
+            Assertions.assertEquals(blocks > SINGLE_END, file.doubleIndirect != 0, size + " bytes: wrong double-indirect block");
+            assertMapped(disk, file);
+
+            Inode reread = disk.readInodeFromDisk(file.inodePtr);
+            byte[] back = new byte[(int) size];
+            disk.readData(reread, back);
+            Assertions.assertArrayEquals(data, back, size + " bytes: read back wrong");
+
+            // Reads straddling the boundary blocks, at the last byte of one block and the first of the next
+            for (long boundary : new long[]{Inode.NUM_DIRECT, SINGLE_END}) {
+                long offset = boundary * BLOCK - 10;
+                if (offset >= size) continue;
+                byte[] piece = new byte[20];
+                int len = disk.read(reread, offset, piece, 0, piece.length, null);
+                Assertions.assertEquals(Math.min(20, size - offset), len);
+                for (int i = 0; i < len; i++) Assertions.assertEquals(data[(int) offset + i], piece[i], size + " bytes: wrong byte at " + (offset + i));
+            }
+        }
+    }
+
+    @Test
+    void testAppendedBlocksGrowThroughEveryLevel() {
+        TBFF disk = newDisk();
+        Inode file = new Inode(FileType.File);
+        disk.writeInodeToDisk(file);
+        // Pieces that don't line up with the boundaries, like a file built up a chunk at a time
+        byte[] data = pattern((int) (SINGLE_END + PTRS + 3) * BLOCK + 100, 3);
+        int piece = 5 * BLOCK;
+        for (int off = 0; off < data.length; off += piece) {
+            byte[] chunk = Arrays.copyOfRange(data, off, Math.min(data.length, off + piece));
+            disk.append(file, chunk, chunk.length);
+        }
+
+        Assertions.assertEquals(data.length, file.size);
+        Assertions.assertNotEquals(0, file.doubleIndirect);
+        assertMapped(disk, file);
+        byte[] back = new byte[data.length];
+        disk.readData(disk.readInodeFromDisk(file.inodePtr), back);
+        Assertions.assertArrayEquals(data, back);
+    }
+
+    @Test
+    void testShrinkingFreesPointerBlocks() {
+        TBFF disk = newDisk();
+        Inode file = new Inode(FileType.File);
+        disk.writeInodeToDisk(file);
+        long free = disk.getFreeBlockCount();
+
+        disk.writeData(file, pattern((int) (SINGLE_END + 2 * PTRS) * BLOCK, 1));
+        // Data blocks, the single-indirect block, the double-indirect block and its two full children
+        Assertions.assertEquals(free - (SINGLE_END + 2 * PTRS) - 1 - 1 - 2, disk.getFreeBlockCount(), "Wrong number of pointer blocks");
+
+        disk.writeData(file, pattern(2 * BLOCK, 2));
+        Assertions.assertEquals(0, file.indirect);
+        Assertions.assertEquals(0, file.doubleIndirect);
+        Assertions.assertEquals(free - 2, disk.getFreeBlockCount(), "Pointer blocks leaked");
+        assertMapped(disk, file);
+    }
+}
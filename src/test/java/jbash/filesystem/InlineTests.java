@@ -0,0 +1,92 @@
+package jbash.filesystem;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+public class InlineTests {
+    static final TBFFOptions OPTIONS = TBFFOptions.defaults().withFlushIntervalMs(0).withCommitIntervalMs(0);
+
+    static byte[] pattern(int len, int seed) {
+        byte[] data = new byte[len];
+        for (int i = 0; i < len; i++) data[i] = (byte) (i + seed);
+        return data;
+    }
+
+    static byte[] readAll(TBFF disk, long inodePtr) {
+        Inode inode = disk.readInodeFromDisk(inodePtr);
+        byte[] data = new byte[(int) inode.size];
+        disk.readData(inode, data);
+        return data;
+    }
+
+    @Test
+    void testInlineUpToCapacity() {
+        CrashDisk device = new CrashDisk();
+        TBFF disk = new TBFF(device, "inline", 1024*1024, OPTIONS);
+        long free = disk.getFreeBlockCount();
+
+        Inode full = new Inode(FileType.File);
+        long fullPtr = disk.writeInodeToDisk(full);
+        byte[] fits = pattern(Inode.INLINE_CAPACITY, 1);
+        disk.writeData(full, fits);
+        Assertions.assertTrue(full.isInline(), Inode.INLINE_CAPACITY + " bytes not inline");
+        Assertions.assertEquals(free, disk.getFreeBlockCount(), "Inline file took a block");
+
+        Inode over = new Inode(FileType.File);
+        long overPtr = disk.writeInodeToDisk(over);
+        byte[] tooBig = pattern(Inode.INLINE_CAPACITY + 1, 2);
+        disk.writeData(over, tooBig);
+        Assertions.assertFalse(over.isInline(), (Inode.INLINE_CAPACITY + 1) + " bytes inline");
+        Assertions.assertEquals(free - 1, disk.getFreeBlockCount());
+
+        Inode empty = new Inode(FileType.File);
+        long emptyPtr = disk.writeInodeToDisk(empty);
+        disk.writeData(empty, new byte[0]);
+        Assertions.assertTrue(empty.isInline());
+        disk.close();
+
+        // Both read back the same after a reopen, whole and in pieces
+        TBFF reopened = new TBFF(device.getImage(), "inline", 1024*1024, OPTIONS);
+        Assertions.assertArrayEquals(fits, readAll(reopened, fullPtr));
+        Assertions.assertArrayEquals(tooBig, readAll(reopened, overPtr));
+        Assertions.assertEquals(0, readAll(reopened, emptyPtr).length);
+        byte[] tail = new byte[50];
+        Assertions.assertEquals(10, reopened.read(reopened.readInodeFromDisk(fullPtr), Inode.INLINE_CAPACITY - 10, tail, 0, 50, null));
+        for (int i = 0; i < 10; i++) Assertions.assertEquals(fits[Inode.INLINE_CAPACITY - 10 + i], tail[i]);
+        Assertions.assertEquals(0, reopened.read(reopened.readInodeFromDisk(fullPtr), Inode.INLINE_CAPACITY, tail, 0, 50, null));
+        reopened.close();
+    }
+
+    @Test
+    void testMovingBetweenInlineAndBlocks() {
+        CrashDisk device = new CrashDisk();
+        TBFF disk = new TBFF(device, "inline", 1024*1024, OPTIONS);
+        Inode file = new Inode(FileType.File);
+        long ptr = disk.writeInodeToDisk(file);
+        long free = disk.getFreeBlockCount();
+
+        byte[][] versions = { pattern(100, 1), pattern(3 * 4096 + 5, 2), pattern(Inode.INLINE_CAPACITY, 3), pattern(Inode.INLINE_CAPACITY + 1, 4), pattern(7, 5) };
+        long[] blocksUsed = { 0, 4, 0, 1, 0 };
+        for (int v = 0; v < versions.length; v++) {
+            disk.writeData(file, versions[v]);
+            Assertions.assertEquals(blocksUsed[v] == 0, file.isInline(), "Version " + v + " stored wrong");
+            Assertions.assertEquals(free - blocksUsed[v], disk.getFreeBlockCount(), "Version " + v + ": blocks leaked or missing");
+            if (file.isInline()) {
+                for (long dataPtr : file.dataPtrs) Assertions.assertEquals(0, dataPtr, "Inline file kept a block pointer");
+            }
+            Assertions.assertArrayEquals(versions[v], readAll(disk, ptr), "Version " + v + " read back wrong");
+        }
+        disk.close();
+
+        TBFF reopened = new TBFF(device.getImage(), "inline", 1024*1024, OPTIONS);
+        Assertions.assertArrayEquals(versions[versions.length - 1], readAll(reopened, ptr));
+        Assertions.assertEquals(free, reopened.getFreeBlockCount());
+
+        // Preallocating takes an inline file out of the inode, contents and all
+        Inode reread = reopened.readInodeFromDisk(ptr);
+        reopened.preallocate(reread, 10 * 4096);
+        Assertions.assertFalse(reread.isInline());
+        Assertions.assertArrayEquals(versions[versions.length - 1], readAll(reopened, ptr));
+        reopened.close();
+    }
+}
@@ -0,0 +1,176 @@
+package jbash.filesystem;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class InodeTests {
+    /** Writer that remembers what was written back, in order. */
+    static class RecordingWriter implements InodeCache.Writer {
+        final List<Integer> written = new ArrayList<>();
+        final List<Inode> inodes = new ArrayList<>();
+
+        public void write(int inodeNum, Inode inode) {
+            written.add(inodeNum);
+            inodes.add(inode);
+        }
+    }
+
+    static void assertSameFields(Inode expected, Inode actual) {
+        Assertions.assertEquals(expected.filetype, actual.filetype);
+        Assertions.assertEquals(expected.perms, actual.perms);
+        Assertions.assertEquals(expected.userId, actual.userId);
+        Assertions.assertEquals(expected.groupId, actual.groupId);
+        Assertions.assertEquals(expected.numRefs, actual.numRefs);
+        Assertions.assertEquals(expected.size, actual.size);
+        Assertions.assertEquals(expected.tsCreate, actual.tsCreate);
+        Assertions.assertEquals(expected.tsModify, actual.tsModify);
+        Assertions.assertEquals(expected.tsAccess, actual.tsAccess);
+        Assertions.assertEquals(expected.compressed, actual.compressed);
+        Assertions.assertArrayEquals(expected.inlineData, actual.inlineData);
+        Assertions.assertArrayEquals(expected.dataPtrs, actual.dataPtrs);
+        Assertions.assertEquals(expected.indirect, actual.indirect);
+        Assertions.assertEquals(expected.doubleIndirect, actual.doubleIndirect);
+    }
+
+    @Test
+    void testBlockMappedInodeRoundTrips() {
+        Inode inode = new Inode(FileType.Directory, Inode.parsePerms("rwxr-x--x"));
+        inode.userId = 1000;
+        inode.groupId = -7;
+        inode.numRefs = 3;
+        inode.size = 5L * 1024 * 1024 * 1024;
+        inode.tsCreate = 1;
+        inode.tsModify = Long.MAX_VALUE;
+        inode.tsAccess = Long.MIN_VALUE;
+        inode.compressed = true;
+        for (int i = 0; i < Inode.NUM_DIRECT; i++) inode.dataPtrs[i] = (1L << 40) + i;
+        inode.indirect = 123456789L;
+        inode.doubleIndirect = -2;
+
+        byte[] raw = inode.encode();
+        Assertions.assertEquals(Inode.SIZE_BYTES, raw.length);
+        assertSameFields(inode, Inode.decode(raw, 0));
+
+        // Decoding reads one record out of a bigger buffer, like a block of the inode table
+        byte[] table = new byte[4 * Inode.SIZE_BYTES];
+        System.arraycopy(raw, 0, table, 2 * Inode.SIZE_BYTES, raw.length);
+        assertSameFields(inode, Inode.decode(table, 2 * Inode.SIZE_BYTES));
+        Assertions.assertNull(Inode.decode(table, Inode.SIZE_BYTES), "Free slot decoded as an inode");
+    }
+
+    @Test
+    void testInlineInodeRoundTrips() {
+        for (int len : new int[]{0, 1, Inode.INLINE_CAPACITY}) {
+            Inode inode = new Inode(FileType.File);
+            inode.inlineData = new byte[len];
+            for (int i = 0; i < len; i++) inode.inlineData[i] = (byte) (i + 1);
+            inode.size = len;
+            Inode decoded = Inode.decode(inode.encode(), 0);
+            Assertions.assertTrue(decoded.isInline(), len + " bytes: not inline any more");
+            assertSameFields(inode, decoded);
+        }
+    }
+
+    @Test
+    void testCorruptInodesAreRejected() {
+        byte[] raw = new Inode(FileType.File).encode();
+        raw[0] = 9;
+        Assertions.assertThrows(RuntimeException.class, () -> Inode.decode(raw, 0), "Bad file type accepted");
+
+        Inode inline = new Inode(FileType.File);
+        inline.inlineData = new byte[10];
+        inline.size = 10;
+        byte[] tooBig = inline.encode();
+        tooBig[23] = (byte) (Inode.INLINE_CAPACITY + 1);  // low byte of the size
+        Assertions.assertThrows(RuntimeException.class, () -> Inode.decode(tooBig, 0), "Inline data past the record accepted");
+    }
+
+    @Test
+    void testCacheEvictsLeastRecentlyUsed() {
+        RecordingWriter writer = new RecordingWriter();
+        InodeCache cache = new InodeCache(writer, 3);
+        Inode one = new Inode(FileType.File);
+        cache.put(1, one);
+        cache.put(2, new Inode(FileType.File));
+        cache.put(3, new Inode(FileType.File));
+        Assertions.assertSame(one, cache.get(1), "Cache didn't hand back the same object");
+
+        cache.put(4, new Inode(FileType.File));
+        Assertions.assertNull(cache.get(2), "Least recently used inode wasn't evicted");
+        Assertions.assertNotNull(cache.get(1));
+        Assertions.assertTrue(writer.written.isEmpty(), "Clean inode was written back");
+    }
+
+    @Test
+    void testCacheWritesBackDirtyInodes() {
+        RecordingWriter writer = new RecordingWriter();
+        InodeCache cache = new InodeCache(writer, 2);
+        Inode first = new Inode(FileType.File);
+        cache.putDirty(7, first);
+        cache.putDirty(7, first);  // dirty twice, still one write
+        cache.put(8, new Inode(FileType.File));
+        cache.put(9, new Inode(FileType.File));
+        Assertions.assertEquals(List.of(7), writer.written, "Evicted dirty inode not written exactly once");
+        Assertions.assertSame(first, writer.inodes.get(0));
+
+        // Flushing writes in inode number order and leaves nothing to write after
+        writer.written.clear();
+        cache.putDirty(9, cache.get(9));
+        cache.putDirty(8, cache.get(8));
+        Assertions.assertEquals(2, cache.pending());
+        cache.flush();
+        Assertions.assertEquals(List.of(8, 9), writer.written);
+        Assertions.assertEquals(0, cache.pending());
+        cache.flush();
+        Assertions.assertEquals(2, writer.written.size(), "Flushed inodes written again");
+
+        // Removed inodes are dropped without a write
+        cache.putDirty(8, cache.get(8));
+        cache.remove(8);
+        cache.flush();
+        Assertions.assertEquals(2, writer.written.size(), "Removed inode was written back");
+    }
+
+    @Test
+    void testLazyInodesWaitForFullFlush() {
+        RecordingWriter writer = new RecordingWriter();
+        InodeCache cache = new InodeCache(writer, 8);
+        cache.putLazy(1, new Inode(FileType.File));
+        cache.putDirty(2, new Inode(FileType.File));
+        cache.flushDirty();
+        Assertions.assertEquals(List.of(2), writer.written, "Access time written by the regular flush");
+        Assertions.assertEquals(1, cache.pending());
+
+        // Dirtying a lazy inode makes it a regular write, and a lazy change to a dirty one keeps it dirty
+        cache.putDirty(1, cache.get(1));
+        cache.putLazy(1, cache.get(1));
+        cache.flushDirty();
+        Assertions.assertEquals(List.of(2, 1), writer.written);
+        cache.putLazy(3, new Inode(FileType.File));
+        cache.flush();
+        Assertions.assertEquals(List.of(2, 1, 3), writer.written);
+    }
+
+    @Test
+    void testEvictedChangesSurviveReopen() {
+        CrashDisk device = new CrashDisk();
+        TBFFOptions options = TBFFOptions.defaults().withFlushIntervalMs(0).withCommitIntervalMs(0).withInodeCacheSize(4);
+        TBFF disk = new TBFF(device, "inodes", 1024*1024, options);
+        List<Long> ptrs = new ArrayList<>();
+        for (int i = 0; i < 20; i++) ptrs.add(disk.writeInodeToDisk(new Inode(FileType.File)));
+        // Far more changed inodes than the cache holds, so most are written back on eviction
+        for (int i = 0; i < 20; i++) {
+            Inode inode = disk.readInodeFromDisk(ptrs.get(i));
+            inode.userId = 100 + i;
+            disk.updateInode(inode);
+        }
+        disk.close();
+
+        TBFF reopened = new TBFF(device.getImage(), "inodes", 1024*1024, options);
+        for (int i = 0; i < 20; i++) Assertions.assertEquals(100 + i, reopened.readInodeFromDisk(ptrs.get(i)).userId, "Change to inode " + i + " lost");
+        reopened.close();
+    }
+}
@@ -0,0 +1,291 @@
+package jbash.filesystem;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+public class JournalTests {
+    static final int BLOCK = 512;
+    static final long JOURNAL_START = 4096;
+    static final long JOURNAL_SIZE = 8 * BLOCK;
+
+    /** In-memory image: home locations below JOURNAL_START, the journal region after it. */
+    static class ArrayDevice implements Journal.Device {
+        final byte[] bytes = new byte[(int) (JOURNAL_START + JOURNAL_SIZE)];
+
+        public void read(long pos, byte[] dst, int off, int len) {
+            System.arraycopy(bytes, (int) pos, dst, off, len);
+        }
+
+        public void write(long pos, byte[] src, int off, int len) {
+            System.arraycopy(src, off, bytes, (int) pos, len);
+        }
+
+        public void force() {
+        }
+    }
+
+    static Journal open(ArrayDevice device) {
+        Journal journal = new Journal(device, JOURNAL_START, JOURNAL_SIZE, BLOCK);
+        journal.recover();
+        return journal;
+    }
+
+    static void log(Journal journal, long pos, byte value, int len) {
+        byte[] bytes = new byte[len];
+        Arrays.fill(bytes, value);
+        journal.log(pos, bytes, 0, len);
+    }
+
+    /** Size in the log of a transaction holding one record of <code>len</code> bytes. */
+    static int txnSize(int len) {
+        return (4 + 8 + 4 + 4) + (8 + 4) + len;
+    }
+
+    @Test
+    void testCommittedTransactionsAreReplayed() {
+        ArrayDevice device = new ArrayDevice();
+        Journal journal = open(device);
+        journal.log(100, "hello".getBytes(StandardCharsets.UTF_8), 0, 5);
+        journal.commit();
+        journal.log(200, "world".getBytes(StandardCharsets.UTF_8), 0, 5);
+        journal.commit();
+        Assertions.assertEquals(0, device.bytes[100], "Commit wrote the home location");
+
+        Assertions.assertEquals(2, open(device).durableSeq(), "Replayed journal starts at the wrong sequence number");
+        Assertions.assertEquals("hello", new String(device.bytes, 100, 5, StandardCharsets.UTF_8));
+        Assertions.assertEquals("world", new String(device.bytes, 200, 5, StandardCharsets.UTF_8));
+        Assertions.assertEquals(0, open(device).recover(), "Replayed transactions were replayed again");
+    }
+
+    @Test
+    void testUncommittedRecordsAreLost() {
+        ArrayDevice device = new ArrayDevice();
+        Journal journal = open(device);
+        log(journal, 0, (byte) 1, 8);
+        journal.commit();
+        log(journal, 8, (byte) 2, 8);  // crash before this is committed
+
+        Assertions.assertEquals(1, new Journal(device, JOURNAL_START, JOURNAL_SIZE, BLOCK).recover());
+        Assertions.assertEquals(1, device.bytes[0]);
+        Assertions.assertEquals(0, device.bytes[8], "Uncommitted record was replayed");
+    }
+
+    @Test
+    void testGroupCommitWritesOneTransaction() {
+        ArrayDevice device = new ArrayDevice();
+        Journal journal = open(device);
+        for (int i = 0; i < 100; i++) log(journal, i * 4, (byte) i, 4);
+        journal.commit();
+        journal.commit();  // nothing new, so nothing written
+
+        Assertions.assertEquals(1, new Journal(device, JOURNAL_START, JOURNAL_SIZE, BLOCK).recover(), "Records weren't committed together");
+        for (int i = 0; i < 100; i++) Assertions.assertEquals((byte) i, device.bytes[i * 4 + 3], "Record " + i + " not replayed");
+    }
+
+    @Test
+    void testOverlappingRecordsReplayLatestBytes() {
+        ArrayDevice device = new ArrayDevice();
+        Journal journal = open(device);
+        // Bitmap words get logged through ranges of different lengths, in any order
+        log(journal, 0, (byte) 1, 16);
+        log(journal, 8, (byte) 2, 8);
+        log(journal, 0, (byte) 3, 4);
+        log(journal, 12, (byte) 4, 8);
+        journal.commit();
+
+        new Journal(device, JOURNAL_START, JOURNAL_SIZE, BLOCK).recover();
+        byte[] expected = {3, 3, 3, 3, 1, 1, 1, 1, 2, 2, 2, 2, 4, 4, 4, 4, 4, 4, 4, 4};
+        Assertions.assertArrayEquals(expected, Arrays.copyOf(device.bytes, expected.length), "Replay brought back overwritten bytes");
+    }
+
+    @Test
+    void testTornTailTransactionIsIgnored() {
+        ArrayDevice device = new ArrayDevice();
+        Journal journal = open(device);
+        log(journal, 0, (byte) 1, 8);
+        journal.commit();
+        log(journal, 8, (byte) 2, 8);
+        journal.commit();
+        // The second transaction is the last thing in the log, tear its last byte
+        device.bytes[(int) (JOURNAL_START + BLOCK + 2 * txnSize(8)) - 1] ^= 0x55;
+
+        Assertions.assertEquals(1, new Journal(device, JOURNAL_START, JOURNAL_SIZE, BLOCK).recover(), "Torn transaction was replayed");
+        Assertions.assertEquals(1, device.bytes[0]);
+        Assertions.assertEquals(0, device.bytes[8], "Torn transaction was replayed");
+    }
+
+    @Test
+    void testStaleTransactionAfterTailIsIgnored() {
+        ArrayDevice device = new ArrayDevice();
+        Journal journal = open(device);
+        log(journal, 0, (byte) 1, 8);
+        journal.commit();
+        int txnEnd = (int) (JOURNAL_START + BLOCK + txnSize(8));
+        byte[] stale = Arrays.copyOfRange(device.bytes, (int) JOURNAL_START + BLOCK, txnEnd);
+        journal.checkpointed();
+        device.bytes[0] = 9;  // the checkpointed change got overwritten at home since
+
+        // An intact transaction with an old sequence number where the next one would go, e.g. left over from an
+        // earlier trip around the log
+        System.arraycopy(stale, 0, device.bytes, txnEnd, stale.length);
+        Assertions.assertEquals(0, new Journal(device, JOURNAL_START, JOURNAL_SIZE, BLOCK).recover(), "Stale transaction was replayed");
+        Assertions.assertEquals(9, device.bytes[0]);
+    }
+
+    @Test
+    void testLogWrapsAroundAfterCheckpoints() {
+        ArrayDevice device = new ArrayDevice();
+        Journal journal = open(device);
+        for (int i = 0; i < 50; i++) {
+            log(journal, i * 64, (byte) (i + 1), 64);
+            journal.commit();
+            if (journal.needsCheckpoint(64)) journal.checkpointed();  // as if everything was written home
+        }
+        // The last transactions since the checkpoint come back, wherever in the log they ended up
+        new Journal(device, JOURNAL_START, JOURNAL_SIZE, BLOCK).recover();
+        Assertions.assertEquals(50, device.bytes[49 * 64], "Last transaction not replayed after the log wrapped");
+    }
+
+    @Test
+    void testCrashedDiskReplaysCommittedChanges() throws InterruptedException {
+        CrashDisk device = new CrashDisk();
+        TBFFOptions options = TBFFOptions.defaults().withFlushIntervalMs(0).withCommitIntervalMs(10);
+        TBFF disk = new TBFF(device, "crash", 1024*1024, options);
+        Inode root = disk.readInodeFromDisk(disk.getRootInodePtr());
+        Inode committed = new Inode(FileType.File);
+        disk.addEntry(root, "committed", disk.writeInodeToDisk(committed, root.inodePtr));
+        disk.writeData(committed, "survives the crash".getBytes());  // inline, so it's in the inode and journaled
+        Thread.sleep(200);  // committed by now, but nothing written home
+
+        synchronized (disk) {  // holding its lock keeps the committer out, so this never gets committed
+            Inode lost = new Inode(FileType.File);
+            disk.addEntry(root, "lost", disk.writeInodeToDisk(lost, root.inodePtr));
+            device.crash();
+        }
+
+        TBFF reopened = new TBFF(device.getImage(), "crash", 1024*1024, options);
+        Inode reopenedRoot = reopened.readInodeFromDisk(reopened.getRootInodePtr());
+        long ptr = reopened.lookupEntry(reopenedRoot, "committed");
+        Assertions.assertNotEquals(-1, ptr, "Committed entry lost");
+        Inode file = reopened.readInodeFromDisk(ptr);
+        byte[] data = new byte[(int) file.size];
+        reopened.readData(file, data);
+        Assertions.assertEquals("survives the crash", new String(data));
+        Assertions.assertEquals(-1, reopened.lookupEntry(reopenedRoot, "lost"), "Uncommitted entry survived");
+        Assertions.assertEquals(disk.getFreeInodeCount() + 1, reopened.getFreeInodeCount(), "Uncommitted inode still taken");
+        reopened.close();
+    }
+
+    @Test
+    void testCrashedDiskIgnoresTornLastCommit() throws InterruptedException {
+        CrashDisk device = new CrashDisk();
+        TBFFOptions options = TBFFOptions.defaults().withFlushIntervalMs(0).withCommitIntervalMs(10);
+        TBFF disk = new TBFF(device, "torn", 1024*1024, options);
+        Inode root = disk.readInodeFromDisk(disk.getRootInodePtr());
+        disk.addEntry(root, "first", disk.writeInodeToDisk(new Inode(FileType.File), root.inodePtr));
+        Thread.sleep(200);
+        disk.addEntry(root, "second", disk.writeInodeToDisk(new Inode(FileType.File), root.inodePtr));
+        Thread.sleep(200);
+        synchronized (disk) {
+            device.crash();
+        }
+        // Nothing goes home without a flusher, so the last write was the commit of "second". Tear it.
+        byte[] last = new byte[device.lastWriteLen()];
+        device.getImage().read(device.lastWritePos(), last, 0, last.length);
+        last[last.length - 1] ^= 0x55;
+        device.getImage().write(device.lastWritePos(), last, 0, last.length);
+
+        TBFF reopened = new TBFF(device.getImage(), "torn", 1024*1024, options);
+        Inode reopenedRoot = reopened.readInodeFromDisk(reopened.getRootInodePtr());
+        Assertions.assertNotEquals(-1, reopened.lookupEntry(reopenedRoot, "first"), "Intact commit lost");
+        Assertions.assertEquals(-1, reopened.lookupEntry(reopenedRoot, "second"), "Torn commit was replayed");
+        reopened.close();
+    }
+
+    /** Journal region of a CrashDisk laid out like ArrayDevice. */
+    static Journal.Device journalDevice(BlockDevice disk) {
+        if (disk.size() < JOURNAL_START + JOURNAL_SIZE) disk.resize(JOURNAL_START + JOURNAL_SIZE);
+        return new Journal.Device() {
+            public void read(long pos, byte[] dst, int off, int len) {
+                disk.read(pos, dst, off, len);
+            }
+
+            public void write(long pos, byte[] src, int off, int len) {
+                disk.write(pos, src, off, len);
+            }
+
+            public void force() {
+                disk.force();
+            }
+        };
+    }
+
+    static byte[] home(CrashDisk device, long pos) {
+        byte[] bytes = new byte[1];
+        device.getImage().read(pos, bytes, 0, 1);
+        return bytes;
+    }
+
+    @Test
+    void testWrapNeverOverwritesLiveTail() {
+        CrashDisk device = new CrashDisk();
+        Journal journal = new Journal(journalDevice(device), JOURNAL_START, JOURNAL_SIZE, BLOCK);
+        journal.recover();
+        long logSize = JOURNAL_SIZE - BLOCK;
+        log(journal, 0, (byte) 1, 1000);
+        journal.commit();
+        journal.checkpointed();  // the tail moves past the first transaction
+        log(journal, 1000, (byte) 2, 1000);
+        journal.commit();
+        log(journal, 2000, (byte) 3, 1000);
+        journal.commit();
+
+        // Doesn't fit before the end, and exactly fills what's free, but only if the end skipped at the wrap didn't count
+        int size = (int) (logSize - 2 * txnSize(1000)) - txnSize(0);
+        long skipped = logSize - 3 * txnSize(1000);
+        Assertions.assertTrue(skipped > 0 && skipped < txnSize(size));
+        log(journal, 3000, (byte) 4, size);
+        Assertions.assertThrows(IllegalStateException.class, journal::commit, "Wrapped transaction ran over the live tail");
+        Assertions.assertTrue(journal.hasUncommitted(), "Failed commit dropped the running transaction");
+
+        device.crash();
+        Assertions.assertEquals(2, new Journal(journalDevice(device.getImage()), JOURNAL_START, JOURNAL_SIZE, BLOCK).recover());
+        Assertions.assertEquals(2, home(device, 1000)[0]);
+        Assertions.assertEquals(3, home(device, 2000)[0]);
+        Assertions.assertEquals(0, home(device, 3000)[0], "Refused transaction was replayed");
+    }
+
+    @Test
+    void testCommitsUntilFull() {
+        CrashDisk device = new CrashDisk();
+        Journal journal = new Journal(journalDevice(device), JOURNAL_START, JOURNAL_SIZE, BLOCK);
+        journal.recover();
+        log(journal, 0, (byte) 1, 700);
+        journal.commit();
+        journal.checkpointed();  // so the log wraps somewhere in the middle
+
+        int committed = 0;
+        while (true) {
+            log(journal, 1000 + committed * 100, (byte) (committed + 1), 100);
+            try {
+                journal.commit();
+            } catch (IllegalStateException e) {
+                Assertions.assertTrue(journal.hasUncommitted(), "Failed commit dropped the running transaction");
+                break;
+            }
+            committed++;
+        }
+        Assertions.assertTrue(committed > (JOURNAL_SIZE - BLOCK) / txnSize(100) - 2, "Journal full after only " + committed);
+
+        // Logging more and trying again still doesn't lose anything that made it
+        log(journal, 50, (byte) 9, 10);
+        Assertions.assertThrows(IllegalStateException.class, journal::commit);
+        device.crash();
+        Assertions.assertEquals(committed, new Journal(journalDevice(device.getImage()), JOURNAL_START, JOURNAL_SIZE, BLOCK).recover(), "Committed transactions lost");
+        for (int i = 0; i < committed; i++) Assertions.assertEquals(i + 1, home(device, 1000 + i * 100)[0], "Transaction " + i + " not replayed");
+        Assertions.assertEquals(0, home(device, 1000 + committed * 100)[0], "Refused transaction was replayed");
+    }
+}
@@ -0,0 +1,84 @@
+package jbash.filesystem;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+public class LazyMountTests {
+    // More objects than the FileSystemAPI keeps loaded at once (MAX_LOADED_OBJECTS is 10000)
+    static final int DIRS = 120, FILES_PER_DIR = 100;
+    static final TBFFOptions OPTIONS = TBFFOptions.defaults().withDevice(DeviceType.MEMORY).withFlushIntervalMs(0).withCommitIntervalMs(0);
+
+    FileSystemAPI FSAPI;
+    TBFF disk;
+
+    @BeforeEach
+    public void setupFSAPI() {
+        FSAPI = FileSystemAPI.getInstance();
+        FSAPI.reset();
+        FSAPI = FileSystemAPI.getInstance();
+        disk = new TBFF("lazy", 160*1024*1024, OPTIONS);
+        Inode root = disk.readInodeFromDisk(disk.getRootInodePtr());
+        for (int d = 0; d < DIRS; d++) {
+            Inode dir = new Inode(FileType.Directory);
+            disk.addEntry(root, "d" + d, disk.writeInodeToDisk(dir, root.inodePtr));
+            disk.initDirectory(dir);
+            List<String> names = new ArrayList<>();
+            List<Inode> inodes = new ArrayList<>();
+            List<byte[]> contents = new ArrayList<>();
+            for (int f = 0; f < FILES_PER_DIR; f++) {
+                names.add("f" + f);
+                inodes.add(new Inode(FileType.File));
+                contents.add(("d" + d + "/f" + f).getBytes(StandardCharsets.UTF_8));
+            }
+            disk.createEntries(dir, names, inodes, contents);
+        }
+        FSAPI.createDirectory("/data");
+        Assertions.assertTrue(FSAPI.mountAt("/data", disk));
+    }
+
+    int loaded() {
+        return FSAPI.getFileSystemDirectory("/data").get().mount.getLoaded();
+    }
+
+    @Test
+    void testWalkPastLimitEvictsAndReloads() {
+        Assertions.assertTrue(FSAPI.writeToFile("/data/d0/f0", "changed before eviction"));
+        int peak = 0;
+        for (int d = 0; d < DIRS; d++) {
+            for (int f = 0; f < FILES_PER_DIR; f++) {
+                String path = "/data/d" + d + "/f" + f;
+                File file = FSAPI.getFileSystemFile(path).orElseThrow(() -> new AssertionError(path + " not found"));
+                if (d > 0 || f > 0) Assertions.assertEquals("d" + d + "/f" + f, file.getContents(), path + " has the wrong contents");
+                peak = Math.max(peak, loaded());
+            }
+        }
+        // Checked before each lookup, so the count never gets past the limit by more than one directory's worth
+        Assertions.assertTrue(peak <= 10000 + FILES_PER_DIR + 1, "Loaded objects grew to " + peak);
+        Assertions.assertTrue(loaded() < DIRS * (FILES_PER_DIR + 1), "Nothing was evicted");
+
+        // Everything evicted loads again as it was, changes included
+        Assertions.assertEquals("changed before eviction", FSAPI.getFileSystemFile("/data/d0/f0").get().getContents());
+        Assertions.assertEquals("d1/f99", FSAPI.getFileSystemFile("/data/d1/f99").get().getContents());
+        Assertions.assertEquals(FILES_PER_DIR, FSAPI.getFileSystemDirectory("/data/d5").get().getChildren().size());
+        Assertions.assertEquals(DIRS, FSAPI.getFileSystemDirectory("/data").get().getChildren().size());
+    }
+
+    @Test
+    void testCurrentDirectoryStaysLoaded() {
+        Assertions.assertTrue(FSAPI.moveCurrentDirectory("/data/d3"));
+        Directory current = FSAPI.getCurrentDirectory();
+        File pinned = FSAPI.getFileSystemFile("/data/d3/f7").get();
+        Directory other = FSAPI.getFileSystemDirectory("/data/d4").get();
+        other.getChildren();
+
+        Assertions.assertTrue(FSAPI.evictInactive() >= FILES_PER_DIR, "Other directory's children not evicted");
+        Assertions.assertSame(pinned, current.findChild("f7").get(), "Current directory's children were evicted");
+        Assertions.assertEquals("d4/f2", FSAPI.getFileSystemFile("/data/d4/f2").get().getContents());
+        Assertions.assertEquals("d3/f8", FSAPI.getFileSystemFile("f8").get().getContents(), "Relative path lost after eviction");
+    }
+}
@@ -0,0 +1,165 @@
+package jbash.filesystem;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+
+public class OverlayTests {
+    static final TBFFOptions OPTIONS = TBFFOptions.defaults().withFlushIntervalMs(0).withCommitIntervalMs(0);
+    static final int SIZE = 16*1024*1024;
+
+    static Inode mkdir(TBFF disk, Inode parent, String name) {
+        Inode dir = new Inode(FileType.Directory);
+        long ptr = disk.writeInodeToDisk(dir, parent.inodePtr);
+        disk.initDirectory(dir);
+        disk.addEntry(parent, name, ptr);
+        return dir;
+    }
+
+    static Inode mkfile(TBFF disk, Inode parent, String name, byte[] contents) {
+        Inode file = new Inode(FileType.File);
+        long ptr = disk.writeInodeToDisk(file, parent.inodePtr);
+        disk.writeData(file, contents);
+        disk.addEntry(parent, name, ptr);
+        return file;
+    }
+
+    /** Base disk with /etc/motd, /etc/init/boot and /big, a file bigger than copyUp()'s chunks. */
+    static TBFF newBase() {
+        TBFF base = new TBFF(new CrashDisk(), "base", SIZE, OPTIONS);
+        Inode root = base.readInodeFromDisk(base.getRootInodePtr());
+        Inode etc = mkdir(base, root, "etc");
+        mkfile(base, etc, "motd", "welcome".getBytes(StandardCharsets.UTF_8));
+        mkfile(base, mkdir(base, etc, "init"), "boot", "start".getBytes(StandardCharsets.UTF_8));
+        mkfile(base, root, "big", bigContents());
+        return base;
+    }
+
+    static byte[] bigContents() {
+        byte[] data = new byte[700 * 1000 + 123];
+        for (int i = 0; i < data.length; i++) data[i] = (byte) (i * 31 + i / 4096);
+        return data;
+    }
+
+    /** Root of a tree of Files and Directories on <code>volume</code>, like the FileSystemAPI's. */
+    static Directory mountTree(Volume volume) {
+        return new Directory("root", null, new Mount(volume, 1000), volume.getRootInodePtr());
+    }
+
+    static Directory dir(Directory parent, String name) {
+        return (Directory) parent.findChild(name).orElseThrow();
+    }
+
+    static File file(Directory parent, String name) {
+        return (File) parent.findChild(name).orElseThrow();
+    }
+
+    @Test
+    void testWhiteoutsHideLowerNames() {
+        TBFF base = newBase();
+        OverlayVolume overlay = new OverlayVolume(new TBFF(new CrashDisk(), "upper", SIZE, OPTIONS), base);
+        Directory root = mountTree(overlay);
+        Directory etc = dir(root, "etc");
+
+        etc.removeChild(file(etc, "motd"));
+        Inode etcInode = etc.inode();
+        Assertions.assertEquals(-1, overlay.lookupEntry(etcInode, "motd"), "Removed file still visible");
+        Assertions.assertFalse(overlay.listEntries(etcInode).containsKey("motd"), "Removed file still listed");
+        Assertions.assertFalse(overlay.removeEntry(etcInode, "motd"), "Removed twice");
+        Assertions.assertNotEquals(-1, base.lookupEntry(base.readInodeFromDisk(base.lookupEntry(base.readInodeFromDisk(base.getRootInodePtr()), "etc")), "motd"), "Base was changed");
+
+        // A name created again over a whiteout is a new file, and a directory created again starts out empty
+        File motd = new File("motd", etc, "new");
+        etc.addChild(motd);
+        Assertions.assertEquals("new", file(dir(mountTree(overlay), "etc"), "motd").getContents());
+        etc.removeChild(dir(etc, "init"));
+        etc.addChild(new Directory("init", etc));
+        Inode init = overlay.readInodeFromDisk(overlay.lookupEntry(etc.inode(), "init"));
+        Assertions.assertTrue(overlay.listEntries(init).isEmpty(), "Recreated directory shows what was below it");
+    }
+
+    @Test
+    void testCopyUpKeepsContents() {
+        TBFF base = newBase();
+        TBFF upper = new TBFF(new CrashDisk(), "upper", SIZE, OPTIONS);
+        OverlayVolume overlay = new OverlayVolume(upper, base);
+        Directory root = mountTree(overlay);
+        long free = upper.getFreeBlockCount();
+
+        // Preallocating keeps the contents, so the whole file has to come up, a chunk at a time
+        File big = file(root, "big");
+        long lowerPtr = big.inodePtr;
+        big.preallocate(1024 * 1024);
+        Inode copy = overlay.readInodeFromDisk(lowerPtr);
+        Assertions.assertNotEquals(lowerPtr, copy.inodePtr, "Old pointer doesn't lead to the copy");
+        Assertions.assertTrue(upper.getFreeBlockCount() < free, "Nothing was copied up");
+        byte[] data = new byte[(int) copy.getSize()];
+        overlay.readData(copy, data);
+        Assertions.assertArrayEquals(bigContents(), data, "Copy differs from the original");
+
+        // Rewriting a lower file copies up an empty file in its place, and the lower one is untouched
+        File motd = file(dir(root, "etc"), "motd");
+        motd.setContents("changed");
+        Assertions.assertEquals("changed", file(dir(mountTree(overlay), "etc"), "motd").getContents());
+        Inode baseEtc = base.readInodeFromDisk(base.lookupEntry(base.readInodeFromDisk(base.getRootInodePtr()), "etc"));
+        Inode baseMotd = base.readInodeFromDisk(base.lookupEntry(baseEtc, "motd"));
+        byte[] original = new byte[(int) baseMotd.getSize()];
+        base.readData(baseMotd, original);
+        Assertions.assertEquals("welcome", new String(original, StandardCharsets.UTF_8));
+
+        // Once the copy is removed, the old pointer no longer leads to it
+        root.removeChild(big);
+        Assertions.assertEquals(lowerPtr, overlay.readInodeFromDisk(lowerPtr).inodePtr, "Removed copy still reachable");
+        Assertions.assertEquals(-1, overlay.lookupEntry(root.inode(), "big"));
+    }
+
+    @Test
+    void testMoveLowerDirectory() {
+        TBFF base = newBase();
+        OverlayVolume overlay = new OverlayVolume(new TBFF(new CrashDisk(), "upper", SIZE, OPTIONS), base);
+        Directory root = mountTree(overlay);
+        Directory etc = dir(root, "etc");
+        File boot = file(dir(etc, "init"), "boot");  // found through etc's lower pointer
+        root.addChild(new Directory("moved", root));
+        Directory moved = dir(root, "moved");
+
+        // Moving it copies etc up in its new place, still merged with what's below
+        root.removeChild(etc);
+        moved.addChild(etc);
+        Assertions.assertEquals(-1, overlay.lookupEntry(root.inode(), "etc"), "Old name still visible");
+        Directory tree = dir(dir(mountTree(overlay), "moved"), "etc");
+        Assertions.assertEquals("welcome", file(tree, "motd").getContents());
+
+        // Move it again, now that it's an upper directory with something of its own, then change something found
+        // before either move
+        etc.addChild(new File("added", etc, "new"));
+        moved.removeChild(etc);
+        root.addChild(etc);
+        boot.setContents("changed");
+        Directory init = dir(dir(mountTree(overlay), "etc"), "init");
+        Assertions.assertEquals("changed", file(init, "boot").getContents(), "Change went somewhere else");
+        Assertions.assertEquals("new", file(dir(mountTree(overlay), "etc"), "added").getContents(), "Upper contents lost in the move");
+        Assertions.assertTrue(dir(mountTree(overlay), "moved").getChildren().isEmpty(), "Moved directory left behind");
+    }
+
+    @Test
+    void testOverlaysShareBase() {
+        TBFF base = newBase();
+        long baseFree = base.getFreeBlockCount();
+        OverlayVolume first = new OverlayVolume(new TBFF(new CrashDisk(), "first", SIZE, OPTIONS), base);
+        OverlayVolume second = new OverlayVolume(new TBFF(new CrashDisk(), "second", SIZE, OPTIONS), base);
+        Directory firstRoot = mountTree(first);
+        Directory secondRoot = mountTree(second);
+
+        file(dir(firstRoot, "etc"), "motd").setContents("first");
+        dir(secondRoot, "etc").removeChild(file(dir(secondRoot, "etc"), "motd"));
+        firstRoot.addChild(new File("only-first", firstRoot, "x"));
+
+        Assertions.assertEquals("first", file(dir(mountTree(first), "etc"), "motd").getContents());
+        Assertions.assertTrue(dir(mountTree(second), "etc").findChild("motd").isEmpty(), "Whiteout leaked into the other overlay");
+        Assertions.assertTrue(mountTree(second).findChild("only-first").isEmpty(), "New file leaked into the other overlay");
+        Assertions.assertEquals("start", file(dir(dir(mountTree(second), "etc"), "init"), "boot").getContents());
+        Assertions.assertEquals(baseFree, base.getFreeBlockCount(), "Base was written");
+    }
+}
@@ -0,0 +1,109 @@
+package jbash.filesystem;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+public class PreallocateTests {
+    static final int BLOCK = 4096;
+    static final TBFFOptions OPTIONS = TBFFOptions.defaults().withFlushIntervalMs(0).withCommitIntervalMs(0);
+
+    static byte[] pattern(int len, int seed) {
+        byte[] data = new byte[len];
+        for (int i = 0; i < len; i++) data[i] = (byte) (i / 3 + seed);
+        return data;
+    }
+
+    static long[] mapping(TBFF disk, Inode file, int blocks) {
+        long[] dataBlocks = new long[blocks];
+        for (int b = 0; b < blocks; b++) dataBlocks[b] = disk.mapBlock(file, b);
+        return dataBlocks;
+    }
+
+    @Test
+    void testReservedBlocksAreWrittenInPlace() {
+        CrashDisk device = new CrashDisk();
+        TBFF disk = new TBFF(device, "prealloc", 16*1024*1024, OPTIONS);
+        Inode file = new Inode(FileType.File);
+        long ptr = disk.writeInodeToDisk(file);
+        long free = disk.getFreeBlockCount();
+
+        disk.preallocate(file, 256 * BLOCK);
+        Assertions.assertEquals(0, file.size, "Preallocating changed the size");
+        Assertions.assertEquals(free - 256 - 1, disk.getFreeBlockCount(), "Wrong number of blocks reserved");  // and a single-indirect block
+        long[] reserved = mapping(disk, file, 256);
+        for (long dataBlock : reserved) Assertions.assertNotEquals(0, dataBlock, "Reserved block not mapped");
+        Assertions.assertEquals(0, disk.read(file, 0, new byte[10], 0, 10, null), "Read past the size");
+        disk.close();
+
+        // The reservation survives a reopen, and writes that fit go into it without allocating
+        TBFF reopened = new TBFF(device.getImage(), "prealloc", 16*1024*1024, OPTIONS);
+        Inode reread = reopened.readInodeFromDisk(ptr);
+        byte[] data = pattern(100 * BLOCK + 17, 1);
+        reopened.writeData(reread, data);
+        Assertions.assertEquals(free - 257, reopened.getFreeBlockCount(), "Write that fits allocated");
+        Assertions.assertArrayEquals(reserved, mapping(reopened, reread, 256), "Write didn't go in place");
+        byte[] back = new byte[data.length];
+        reopened.readData(reread, back);
+        Assertions.assertArrayEquals(data, back);
+
+        // A shorter write in place leaves old bytes in the blocks, but reads stop at the new size
+        byte[] shorter = pattern(10 * BLOCK + 3, 2);
+        reopened.writeData(reread, shorter);
+        Assertions.assertEquals(shorter.length, reread.size);
+        Assertions.assertEquals(0, reopened.read(reread, shorter.length, new byte[100], 0, 100, null));
+        byte[] tail = new byte[100];
+        Assertions.assertEquals(3, reopened.read(reread, shorter.length - 3, tail, 0, 100, null));
+        byte[] whole = new byte[data.length];
+        reopened.readData(reread, whole);
+        for (int i = shorter.length; i < whole.length; i++) Assertions.assertEquals(0, whole[i], "Stale byte at " + i + " read past the size");
+        reopened.close();
+    }
+
+    @Test
+    void testOutgrowingOrEmptyingEndsReservation() {
+        TBFF disk = new TBFF(new CrashDisk(), "prealloc", 16*1024*1024, OPTIONS);
+        Inode file = new Inode(FileType.File);
+        disk.writeInodeToDisk(file);
+        long free = disk.getFreeBlockCount();
+        byte[] start = pattern(3 * BLOCK, 3);
+        disk.writeData(file, start);
+        disk.preallocate(file, 20 * BLOCK);
+        byte[] kept = new byte[start.length];
+        disk.readData(file, kept);
+        Assertions.assertArrayEquals(start, kept, "Preallocating lost the contents");
+        disk.preallocate(file, 10 * BLOCK);  // already has enough
+        Assertions.assertEquals(free - 20 - 1, disk.getFreeBlockCount());
+
+        byte[] bigger = pattern(30 * BLOCK, 4);
+        disk.writeData(file, bigger);
+        Assertions.assertEquals(free - 30 - 1, disk.getFreeBlockCount(), "Outgrown reservation not given back");
+        byte[] back = new byte[bigger.length];
+        disk.readData(file, back);
+        Assertions.assertArrayEquals(bigger, back);
+
+        disk.preallocate(file, 40 * BLOCK);
+        disk.writeData(file, new byte[0]);
+        Assertions.assertEquals(free, disk.getFreeBlockCount(), "Emptied file kept its reservation");
+    }
+
+    @Test
+    void testSnapshotStopsWritesInPlace() {
+        TBFF disk = new TBFF(new CrashDisk(), "prealloc", 16*1024*1024, OPTIONS);
+        Inode root = disk.readInodeFromDisk(disk.getRootInodePtr());
+        Inode file = new Inode(FileType.File);
+        disk.addEntry(root, "file", disk.writeInodeToDisk(file, root.inodePtr));
+        byte[] before = pattern(5 * BLOCK, 5);
+        disk.writeData(file, before);
+        disk.preallocate(file, 16 * BLOCK);
+        long first = disk.mapBlock(file, 0);
+        disk.createSnapshot();
+
+        disk.writeData(file, pattern(6 * BLOCK, 6));
+        Assertions.assertNotEquals(first, disk.mapBlock(file, 0), "Wrote over a block the snapshot shares");
+        Volume snapshot = disk.getSnapshot();
+        Inode snapFile = snapshot.readInodeFromDisk(snapshot.lookupEntry(snapshot.readInodeFromDisk(snapshot.getRootInodePtr()), "file"));
+        byte[] old = new byte[(int) snapFile.size];
+        snapshot.readData(snapFile, old);
+        Assertions.assertArrayEquals(before, old, "Snapshot sees the new contents");
+    }
+}
@@ -0,0 +1,139 @@
+package jbash.filesystem;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class ReadAheadTests {
+    static final int BLOCK = 4096;
+    static final int MIN = ReadAhead.MIN_WINDOW_BYTES;
+    static final TBFFOptions OPTIONS = TBFFOptions.defaults().withFlushIntervalMs(0).withCommitIntervalMs(0);
+
+    /** Windows a reader reading <code>chunk</code> bytes at a time from <code>from</code> gets, up to <code>to</code>. */
+    static List<long[]> windows(ReadAhead readAhead, long from, long to, int chunk, long fileSize) {
+        List<long[]> windows = new ArrayList<>();
+        for (long offset = from; offset < to; offset += chunk) {
+            long[] window = readAhead.advance(offset, chunk, fileSize);
+            if (window != null) windows.add(window);
+        }
+        return windows;
+    }
+
+    @Test
+    void testWindowsDoubleUpToTheMaximum() {
+        long fileSize = 4 * 1024 * 1024;
+        ReadAhead readAhead = new ReadAhead(256 * 1024);
+        List<long[]> windows = windows(readAhead, 0, fileSize, BLOCK, fileSize);
+
+        Assertions.assertArrayEquals(new long[]{BLOCK, BLOCK + MIN}, windows.get(0), "First window should follow the first read");
+        long expected = MIN;
+        for (int i = 0; i < windows.size(); i++) {
+            long[] window = windows.get(i);
+            if (i > 0) Assertions.assertEquals(windows.get(i - 1)[1], window[0], "Windows don't follow on from each other");
+            if (window[1] < fileSize) Assertions.assertEquals(expected, window[1] - window[0], "Window " + i + " has the wrong size");
+            expected = Math.min(256 * 1024, expected * 2);
+        }
+        Assertions.assertEquals(fileSize, windows.get(windows.size() - 1)[1], "Read-ahead stopped before the end");
+        Assertions.assertNull(readAhead.advance(fileSize - BLOCK, BLOCK, fileSize), "Read-ahead past the end");
+    }
+
+    @Test
+    void testRandomReadsResetTheWindow() {
+        long fileSize = 4 * 1024 * 1024;
+        ReadAhead readAhead = new ReadAhead(256 * 1024);
+        windows(readAhead, 0, 512 * 1024, BLOCK, fileSize);
+
+        Assertions.assertNull(readAhead.advance(2 * 1024 * 1024, BLOCK, fileSize), "Jump was taken as sequential");
+        Assertions.assertNull(readAhead.advance(100 * BLOCK, BLOCK, fileSize), "Jump was taken as sequential");
+        // Sequential again from there: back to the smallest window
+        long[] window = readAhead.advance(101 * BLOCK, BLOCK, fileSize);
+        Assertions.assertArrayEquals(new long[]{102 * BLOCK, 102 * BLOCK + MIN}, window);
+    }
+
+    @Test
+    void testStreamingReadsComeFromTheCache() throws Exception {
+        CrashDisk device = new CrashDisk();
+        TBFF disk = new TBFF(device, "stream", 16*1024*1024, OPTIONS);
+        Inode file = new Inode(FileType.File);
+        long ptr = disk.writeInodeToDisk(file);
+        byte[] data = new byte[1536 * 1024 + 77];
+        for (int i = 0; i < data.length; i++) data[i] = (byte) (i * 7 + i / BLOCK);
+        disk.writeData(file, data);
+        disk.close();
+
+        // Front to back in small pieces: after the first few, every block was prefetched before it was asked for
+        TBFF reopened = new TBFF(device.getImage(), "stream", 16*1024*1024, OPTIONS);
+        long missesBefore = reopened.getCacheStats().misses();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (FileStream stream = new FileStream(reopened, reopened.readInodeFromDisk(ptr))) {
+            Assertions.assertEquals(data.length, stream.available());
+            byte[] chunk = new byte[1000];
+            for (int n; (n = stream.read(chunk, 0, chunk.length)) != -1; ) out.write(chunk, 0, n);
+            Assertions.assertEquals(-1, stream.read());
+            Assertions.assertEquals(0, stream.available());
+        }
+        Assertions.assertArrayEquals(data, out.toByteArray());
+        long misses = reopened.getCacheStats().misses() - missesBefore;
+        Assertions.assertTrue(misses < data.length / BLOCK / 10, misses + " of " + data.length / BLOCK + " blocks missed the cache");
+        reopened.close();
+    }
+
+    @Test
+    void testSkipAndSingleBytes() throws Exception {
+        TBFF disk = new TBFF(new CrashDisk(), "stream", 16*1024*1024, OPTIONS);
+        Inode file = new Inode(FileType.File);
+        disk.writeInodeToDisk(file);
+        byte[] data = new byte[100 * 1024];
+        for (int i = 0; i < data.length; i++) data[i] = (byte) (i % 251);
+        disk.writeData(file, data);
+
+        try (FileStream stream = new FileStream(disk, file)) {
+            Assertions.assertEquals(data[0] & 0xFF, stream.read());
+            Assertions.assertEquals(50000, stream.skip(50000));
+            Assertions.assertEquals(data[50001] & 0xFF, stream.read());
+            byte[] rest = new byte[data.length];
+            int n = stream.read(rest, 0, rest.length);
+            Assertions.assertEquals(data.length - 50002, n);
+            Assertions.assertEquals(data[50002], rest[0]);
+            Assertions.assertEquals(0, stream.skip(10), "Skipped past the end");
+            Assertions.assertEquals(-1, stream.read(rest, 0, 10));
+        }
+    }
+
+    @Test
+    void testRewriteWhileOpen() throws Exception {
+        // A one-inode cache, so the stream's inode gets evicted and the rewrite goes through a fresh copy
+        TBFF disk = new TBFF(new CrashDisk(), "stream", 16*1024*1024, OPTIONS.withInodeCacheSize(1));
+        Inode file = new Inode(FileType.File);
+        long ptr = disk.writeInodeToDisk(file);
+        byte[] old = new byte[200 * 1024];
+        Arrays.fill(old, (byte) 1);
+        disk.writeData(file, old);
+
+        try (FileStream stream = new FileStream(disk, file)) {
+            byte[] start = new byte[10 * 1024];
+            Assertions.assertEquals(start.length, stream.read(start, 0, start.length));
+            disk.writeInodeToDisk(new Inode(FileType.File));
+
+            // Rewritten shorter, and another file takes the blocks it gave up
+            byte[] now = new byte[50 * 1024];
+            Arrays.fill(now, (byte) 2);
+            disk.writeData(disk.readInodeFromDisk(ptr), now);
+            Inode other = new Inode(FileType.File);
+            disk.writeInodeToDisk(other);
+            byte[] otherData = new byte[150 * 1024];
+            Arrays.fill(otherData, (byte) 3);
+            disk.writeData(other, otherData);
+
+            Assertions.assertEquals(now.length - start.length, stream.available(), "Stream kept the old size");
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] chunk = new byte[4096];
+            for (int n; (n = stream.read(chunk, 0, chunk.length)) != -1; ) out.write(chunk, 0, n);
+            Assertions.assertArrayEquals(Arrays.copyOfRange(now, start.length, now.length), out.toByteArray(), "Stream read the old block map");
+        }
+    }
+}
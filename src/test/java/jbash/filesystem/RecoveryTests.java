@@ -0,0 +1,36 @@
+package jbash.filesystem;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+public class RecoveryTests {
+    static final TBFFOptions OPTIONS = TBFFOptions.defaults().withFlushIntervalMs(0).withCommitIntervalMs(0);
+
+    @Test
+    void testOrphanInodeIsFreedOnDirtyMount() {
+        CrashDisk device = new CrashDisk();
+        TBFF disk = new TBFF(device, "orphan", 1024*1024, OPTIONS);
+        Inode root = disk.readInodeFromDisk(disk.getRootInodePtr());
+        int freeInodes = disk.getFreeInodeCount();
+        long freeBlocks = disk.getFreeBlockCount();
+        Inode file = new Inode(FileType.File);
+        long ptr = disk.writeInodeToDisk(file, root.inodePtr);
+        disk.writeData(file, new byte[10 * 1024]);
+        disk.close();
+
+        // Mounting marks the image dirty, and the crash keeps it that way
+        TBFF crashed = new TBFF(device, "orphan", 1024*1024, OPTIONS);
+        synchronized (crashed) {
+            device.crash();
+        }
+        // The inode's bit is still set, but the record it points at is gone
+        device.getImage().write(ptr, new byte[]{0}, 0, 1);
+
+        TBFF reopened = new TBFF(device.getImage(), "orphan", 1024*1024, OPTIONS);
+        Assertions.assertEquals(freeInodes, reopened.getFreeInodeCount(), "Orphaned inode still taken");
+        Assertions.assertEquals(freeBlocks, reopened.getFreeBlockCount(), "Orphaned inode's blocks still taken");
+        Inode again = new Inode(FileType.File);
+        Assertions.assertEquals(ptr, reopened.writeInodeToDisk(again, root.inodePtr), "Orphaned slot wasn't reused");
+        reopened.close();
+    }
+}